@@ -0,0 +1,655 @@
+import utils.BusDevice;
+import utils.ClockedDevice;
+
+
+// The audio processing unit of the 2A03: two pulse channels, a triangle, a
+// noise channel and a delta modulation channel (DMC) that plays 1-bit
+// samples from CPU memory. Registers, handed on by Nes:
+//   $4000-$4003  pulse 1: duty and envelope, sweep, timer low, timer high and length
+//   $4004-$4007  pulse 2, the same
+//   $4008-$400B  triangle: linear counter, unused, timer low, timer high and length
+//   $400C-$400F  noise: envelope, unused, mode and period, length
+//   $4010-$4013  DMC: IRQ, loop and rate, direct level, sample address, sample length
+//   $4015        channel enables; reads back length counters and IRQ flags
+//   $4017        frame counter: bit 7 five-step mode, bit 6 IRQ inhibit
+//
+// Like the PPU, the APU is not ticked with the CPU. It catches up when a
+// register is accessed and at each step of the frame counter, four or five
+// a frame. Between two of those nothing about the channels changes but the
+// position of their timers, so each channel runs the whole block in one go:
+// it jumps from one change of its output to the next and hands the step to
+// a BlipBuffer, and a silent channel skips the block entirely. The samples
+// go into "samples", from which AudioOutput plays them or WavWriter saves
+// them. Channels are mixed with the usual linear approximation of the
+// console's mixer.
+//
+// The frame counter IRQ and the DMC IRQ are asserted on the scheduler, which
+// takes them through CPU6502.irq(). DMC fetches do not stall the CPU.
+public class APU2A03 implements BusDevice, ClockedDevice {
+
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    static final double CPU_RATE = 236_250_000.0 / 11 / Scheduler.CPU_DIVIDER; // NTSC, Hz
+
+    // Output of each channel per step of its level, 16-bit full scale
+    private static final int PULSE_GAIN = 246;
+    private static final int TRIANGLE_GAIN = 279;
+    private static final int NOISE_GAIN = 162;
+    private static final int DMC_GAIN = 110;
+
+    private static final int[] LENGTHS = {
+        10, 254, 20, 2, 40, 4, 80, 6, 160, 8, 60, 10, 14, 12, 26, 14,
+        12, 16, 24, 18, 48, 20, 96, 22, 192, 24, 72, 26, 16, 28, 32, 30
+    };
+    private static final int[][] DUTIES = {
+        { 0, 1, 0, 0, 0, 0, 0, 0 },
+        { 0, 1, 1, 0, 0, 0, 0, 0 },
+        { 0, 1, 1, 1, 1, 0, 0, 0 },
+        { 1, 0, 0, 1, 1, 1, 1, 1 }
+    };
+    private static final int[] TRIANGLE = {
+        15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0,
+        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15
+    };
+    // In CPU cycles
+    private static final int[] NOISE_PERIODS = {
+        4, 8, 16, 32, 64, 96, 128, 160, 202, 254, 380, 508, 762, 1016, 2034, 4068
+    };
+    private static final int[] DMC_RATES = {
+        428, 380, 340, 320, 286, 254, 226, 214, 190, 160, 142, 128, 106, 84, 72, 54
+    };
+
+    // Frame counter steps, CPU cycles from its start. Every step clocks the
+    // envelopes and the triangle's linear counter, every second one also the
+    // length counters and sweeps. The last step of the four-step sequence
+    // raises the IRQ
+    private static final int[] STEPS_4 = { 7457, 14913, 22371, 29829 };
+    private static final int[] STEPS_5 = { 7457, 14913, 22371, 37281 };
+    private static final int PERIOD_4 = 29830;
+    private static final int PERIOD_5 = 37282;
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    // Samples made so far, for the audio output to take
+    public final SampleRing samples;
+
+    private final Bus bus;
+    private final Scheduler scheduler;
+    private final int id;
+    private final BlipBuffer blip;
+
+    private final Pulse pulse1 = new Pulse(true);
+    private final Pulse pulse2 = new Pulse(false);
+    private final Triangle triangle = new Triangle();
+    private final Noise noise = new Noise();
+    private final Dmc dmc = new Dmc();
+
+    private long cycle = 0; // CPU cycles run
+    private boolean fiveStep = false;
+    private boolean irqInhibit = false;
+    private boolean frameIrq = false;
+    private long frameStart = 0;
+    private int frameStep = 0;
+
+    public APU2A03(Bus bus) {
+        this(bus, DEFAULT_SAMPLE_RATE);
+    }
+
+    public APU2A03(Bus bus, int sampleRate) {
+        this.bus = bus;
+        this.scheduler = bus.scheduler;
+        // Blocks are at most a frame counter step long
+        blip = new BlipBuffer(CPU_RATE, sampleRate, (int) ((long) PERIOD_5 * sampleRate / CPU_RATE) + 1);
+        samples = new SampleRing(Integer.highestOneBit(sampleRate) * 2);
+        id = scheduler.add(this);
+        scheduleNext();
+    }
+
+
+    // Silences every channel, as the reset line does
+    public void reset(){
+        scheduler.catchUp(id);
+        writeStatus(0);
+        frameIrq = false;
+        dmc.irq = false;
+        updateIrq();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // REGISTERS
+    @Override
+    public int read(int addr, boolean bReadOnly){
+        if (addr != 0x4015) return 0;
+        if (!bReadOnly) scheduler.catchUp(id);
+        int data = (pulse1.length > 0 ? 0x01 : 0) | (pulse2.length > 0 ? 0x02 : 0)
+                | (triangle.length > 0 ? 0x04 : 0) | (noise.length > 0 ? 0x08 : 0)
+                | (dmc.remaining > 0 ? 0x10 : 0) | (frameIrq ? 0x40 : 0) | (dmc.irq ? 0x80 : 0);
+        if (!bReadOnly && frameIrq) {
+            frameIrq = false;
+            updateIrq();
+        }
+        return data;
+    }
+
+    @Override
+    public void write(int addr, int data){
+        scheduler.catchUp(id);
+        data &= 0xFF;
+        switch (addr) {
+            case 0x4000: case 0x4001: case 0x4002: case 0x4003:
+                pulse1.write(addr & 3, data);
+                break;
+            case 0x4004: case 0x4005: case 0x4006: case 0x4007:
+                pulse2.write(addr & 3, data);
+                break;
+            case 0x4008: case 0x400A: case 0x400B:
+                triangle.write(addr & 3, data);
+                break;
+            case 0x400C: case 0x400E: case 0x400F:
+                noise.write(addr & 3, data);
+                break;
+            case 0x4010: case 0x4011: case 0x4012: case 0x4013:
+                dmc.write(addr & 3, data);
+                break;
+            case 0x4015:
+                writeStatus(data);
+                break;
+            case 0x4017:
+                fiveStep = (data & 0x80) != 0;
+                irqInhibit = (data & 0x40) != 0;
+                if (irqInhibit) frameIrq = false;
+                updateIrq();
+                frameStart = cycle;
+                frameStep = 0;
+                if (fiveStep) {
+                    quarterFrame();
+                    halfFrame();
+                }
+                break;
+        }
+        scheduleNext();
+    }
+
+    private void writeStatus(int data){
+        pulse1.setEnabled((data & 0x01) != 0);
+        pulse2.setEnabled((data & 0x02) != 0);
+        triangle.setEnabled((data & 0x04) != 0);
+        noise.setEnabled((data & 0x08) != 0);
+        dmc.setEnabled((data & 0x10) != 0);
+        updateIrq();
+    }
+
+    private void updateIrq(){
+        scheduler.setIrq(id, frameIrq || dmc.irq);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // TIMING
+    @Override
+    public void runUntil(long time){
+        long target = time / Scheduler.CPU_DIVIDER;
+        while (cycle < target) {
+            long next = frameStart + (fiveStep ? STEPS_5 : STEPS_4)[frameStep];
+            long end = Math.min(target, next);
+            pulse1.run(end);
+            pulse2.run(end);
+            triangle.run(end);
+            noise.run(end);
+            dmc.run(end);
+            cycle = end;
+            if (cycle == next) frameCounter();
+            blip.end(cycle, samples);
+        }
+        scheduleNext();
+    }
+
+    private void frameCounter(){
+        quarterFrame();
+        if ((frameStep & 1) != 0) halfFrame();
+        if (frameStep == 3) {
+            if (!fiveStep && !irqInhibit) {
+                frameIrq = true;
+                updateIrq();
+            }
+            frameStart += fiveStep ? PERIOD_5 : PERIOD_4;
+            frameStep = 0;
+        } else {
+            frameStep++;
+        }
+    }
+
+    private void quarterFrame(){
+        pulse1.clockEnvelope();
+        pulse2.clockEnvelope();
+        triangle.clockLinear();
+        noise.clockEnvelope();
+        refresh();
+    }
+
+    private void halfFrame(){
+        pulse1.clockLength();
+        pulse1.clockSweep();
+        pulse2.clockLength();
+        pulse2.clockSweep();
+        triangle.clockLength();
+        noise.clockLength();
+        refresh();
+    }
+
+    // Steps the output of channels whose level changed outside their timers
+    private void refresh(){
+        pulse1.refresh();
+        pulse2.refresh();
+        triangle.refresh();
+        noise.refresh();
+    }
+
+    // Wakes up for the next frame counter step, or the DMC IRQ if sooner
+    private void scheduleNext(){
+        long next = frameStart + (fiveStep ? STEPS_5 : STEPS_4)[frameStep];
+        scheduler.schedule(id, Math.min(next, dmc.irqCycle()) * Scheduler.CPU_DIVIDER);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // CHANNELS
+    private abstract class Channel {
+        private final int gain;
+        int level = 0; // Output last handed to the BlipBuffer
+        int length = 0;
+        boolean enabled = false;
+        long next = 0; // Cycle of the next clock of the timer
+
+        Channel(int gain) {
+            this.gain = gain;
+        }
+
+        void output(long at, int value){
+            if (value != level) {
+                blip.addDelta(at, (value - level) * gain);
+                level = value;
+            }
+        }
+
+        void setEnabled(boolean on){
+            enabled = on;
+            if (!on) length = 0;
+            refresh();
+        }
+
+        void loadLength(int data){
+            if (enabled) length = LENGTHS[data >> 3];
+        }
+
+        // Moves the timer past a block in which the output does not change,
+        // and returns how many times it clocked
+        long skip(long end, int period){
+            if (next >= end) return 0;
+            long clocks = (end - next + period - 1) / period;
+            next += clocks * period;
+            return clocks;
+        }
+
+        abstract void run(long end);
+
+        abstract void refresh();
+    }
+
+    // Length counter and envelope, for the pulses and the noise
+    private abstract class Enveloped extends Channel {
+        boolean halt = false; // Also loops the envelope
+        boolean constant = false;
+        int volume = 0; // Constant volume, or period of the envelope
+        boolean envelopeStart = false;
+        int divider = 0;
+        int decay = 0;
+
+        Enveloped(int gain) {
+            super(gain);
+        }
+
+        int volume(){
+            return constant ? volume : decay;
+        }
+
+        void writeControl(int data){
+            halt = (data & 0x20) != 0;
+            constant = (data & 0x10) != 0;
+            volume = data & 0x0F;
+        }
+
+        void clockEnvelope(){
+            if (envelopeStart) {
+                envelopeStart = false;
+                decay = 15;
+                divider = volume;
+            } else if (divider == 0) {
+                divider = volume;
+                if (decay > 0) decay--;
+                else if (halt) decay = 15;
+            } else {
+                divider--;
+            }
+        }
+
+        void clockLength(){
+            if (length > 0 && !halt) length--;
+        }
+    }
+
+    private final class Pulse extends Enveloped {
+        private final boolean first; // Pulse 1 negates its sweep with one's complement
+        int duty = 0;
+        int step = 0;
+        int period = 0;
+        boolean sweepEnabled = false;
+        boolean sweepNegate = false;
+        boolean sweepReload = false;
+        int sweepPeriod = 0;
+        int sweepShift = 0;
+        int sweepDivider = 0;
+
+        Pulse(boolean first) {
+            super(PULSE_GAIN);
+            this.first = first;
+        }
+
+        void write(int register, int data){
+            switch (register) {
+                case 0:
+                    duty = data >> 6;
+                    writeControl(data);
+                    break;
+                case 1:
+                    sweepEnabled = (data & 0x80) != 0;
+                    sweepPeriod = (data >> 4) & 7;
+                    sweepNegate = (data & 0x08) != 0;
+                    sweepShift = data & 7;
+                    sweepReload = true;
+                    break;
+                case 2:
+                    period = (period & 0x700) | data;
+                    break;
+                case 3:
+                    period = (period & 0xFF) | ((data & 7) << 8);
+                    loadLength(data);
+                    envelopeStart = true;
+                    step = 0;
+                    break;
+            }
+            refresh();
+        }
+
+        private int target(){
+            int change = period >> sweepShift;
+            return sweepNegate ? period - change - (first ? 1 : 0) : period + change;
+        }
+
+        // Volume while the sequence is high, 0 when muted
+        private int loudness(){
+            return length == 0 || period < 8 || target() > 0x7FF ? 0 : volume();
+        }
+
+        void clockSweep(){
+            if (sweepDivider == 0 && sweepEnabled && sweepShift > 0 && period >= 8 && target() <= 0x7FF) {
+                period = target();
+            }
+            if (sweepDivider == 0 || sweepReload) {
+                sweepDivider = sweepPeriod;
+                sweepReload = false;
+            } else {
+                sweepDivider--;
+            }
+        }
+
+        @Override
+        void run(long end){
+            int timer = (period + 1) * 2;
+            int loud = loudness();
+            if (loud == 0) {
+                step = (int) ((step + skip(end, timer)) & 7);
+                return;
+            }
+            int[] sequence = DUTIES[duty];
+            while (next < end) {
+                step = (step + 1) & 7;
+                output(next, sequence[step] * loud);
+                next += timer;
+            }
+        }
+
+        @Override
+        void refresh(){
+            output(cycle, DUTIES[duty][step] * loudness());
+        }
+    }
+
+    private final class Triangle extends Channel {
+        int step = 0;
+        int period = 0;
+        boolean control = false; // Also halts the length counter
+        boolean linearReload = false;
+        int linearLoad = 0;
+        int linear = 0;
+
+        Triangle() {
+            super(TRIANGLE_GAIN);
+        }
+
+        void write(int register, int data){
+            switch (register) {
+                case 0:
+                    control = (data & 0x80) != 0;
+                    linearLoad = data & 0x7F;
+                    break;
+                case 2:
+                    period = (period & 0x700) | data;
+                    break;
+                case 3:
+                    period = (period & 0xFF) | ((data & 7) << 8);
+                    loadLength(data);
+                    linearReload = true;
+                    break;
+            }
+        }
+
+        void clockLinear(){
+            if (linearReload) linear = linearLoad;
+            else if (linear > 0) linear--;
+            if (!control) linearReload = false;
+        }
+
+        void clockLength(){
+            if (length > 0 && !control) length--;
+        }
+
+        @Override
+        void run(long end){
+            int timer = period + 1;
+            // The sequence stops where it is when either counter runs out.
+            // Periods below 2 are too high to hear and are held too, as
+            // most emulators do, rather than averaging to a click
+            if (linear == 0 || length == 0 || period < 2) {
+                skip(end, timer);
+                return;
+            }
+            while (next < end) {
+                step = (step + 1) & 31;
+                output(next, TRIANGLE[step]);
+                next += timer;
+            }
+        }
+
+        @Override
+        void refresh(){
+            // Only the timer changes the output
+        }
+    }
+
+    private final class Noise extends Enveloped {
+        int period = NOISE_PERIODS[0];
+        boolean shortMode = false;
+        int shift = 1; // 15-bit feedback shift register
+
+        Noise() {
+            super(NOISE_GAIN);
+        }
+
+        void write(int register, int data){
+            switch (register) {
+                case 0:
+                    writeControl(data);
+                    break;
+                case 2:
+                    shortMode = (data & 0x80) != 0;
+                    period = NOISE_PERIODS[data & 0x0F];
+                    break;
+                case 3:
+                    loadLength(data);
+                    envelopeStart = true;
+                    break;
+            }
+            refresh();
+        }
+
+        @Override
+        void run(long end){
+            int loud = length == 0 ? 0 : volume();
+            if (loud == 0) {
+                // Nobody hears the register while the channel is silent, so
+                // it is left as it is
+                skip(end, period);
+                return;
+            }
+            int tap = shortMode ? 6 : 1;
+            while (next < end) {
+                int feedback = (shift ^ (shift >> tap)) & 1;
+                shift = (shift >> 1) | (feedback << 14);
+                output(next, (shift & 1) == 0 ? loud : 0);
+                next += period;
+            }
+        }
+
+        @Override
+        void refresh(){
+            output(cycle, (shift & 1) == 0 && length > 0 ? volume() : 0);
+        }
+    }
+
+    private final class Dmc extends Channel {
+        boolean irqEnabled = false;
+        boolean loop = false;
+        boolean irq = false;
+        int rate = DMC_RATES[0];
+        int sampleAddress = 0xC000;
+        int sampleLength = 1;
+        int address = 0xC000;
+        int remaining = 0; // Bytes of the sample still to fetch
+        int buffer = -1; // Fetched byte, -1 when empty
+        int shifter = 0;
+        int bits = 8; // Left in the shifter
+        boolean silence = true;
+        int value = 0; // 7-bit output level
+
+        Dmc() {
+            super(DMC_GAIN);
+        }
+
+        void write(int register, int data){
+            switch (register) {
+                case 0:
+                    irqEnabled = (data & 0x80) != 0;
+                    loop = (data & 0x40) != 0;
+                    rate = DMC_RATES[data & 0x0F];
+                    if (!irqEnabled) {
+                        irq = false;
+                        updateIrq();
+                    }
+                    break;
+                case 1:
+                    value = data & 0x7F;
+                    output(cycle, value);
+                    break;
+                case 2:
+                    sampleAddress = 0xC000 | (data << 6);
+                    break;
+                case 3:
+                    sampleLength = (data << 4) + 1;
+                    break;
+            }
+        }
+
+        @Override
+        void setEnabled(boolean on){
+            irq = false;
+            if (!on) {
+                remaining = 0;
+            } else if (remaining == 0) {
+                address = sampleAddress;
+                remaining = sampleLength;
+                fetch();
+            }
+        }
+
+        private void fetch(){
+            if (buffer >= 0 || remaining == 0) return;
+            buffer = bus.read(address, false) & 0xFF;
+            address = address == 0xFFFF ? 0x8000 : address + 1;
+            if (--remaining == 0) {
+                if (loop) {
+                    address = sampleAddress;
+                    remaining = sampleLength;
+                } else if (irqEnabled) {
+                    irq = true;
+                    updateIrq();
+                }
+            }
+        }
+
+        @Override
+        void run(long end){
+            if (silence && buffer < 0) {
+                // Nothing to play until the CPU starts a sample
+                long clocks = skip(end, rate);
+                bits = (int) Math.floorMod(bits - 1 - clocks, 8L) + 1;
+                return;
+            }
+            while (next < end) {
+                if (!silence) {
+                    if ((shifter & 1) != 0) {
+                        if (value <= 125) value += 2;
+                    } else if (value >= 2) {
+                        value -= 2;
+                    }
+                    output(next, value);
+                }
+                shifter >>= 1;
+                if (--bits == 0) {
+                    bits = 8;
+                    silence = buffer < 0;
+                    if (!silence) {
+                        shifter = buffer;
+                        buffer = -1;
+                        fetch();
+                    }
+                }
+                next += rate;
+            }
+        }
+
+        @Override
+        void refresh(){
+            // Only the timer and $4011 change the output
+        }
+
+        // Cycle to run to for the fetch of the last byte of the sample, when
+        // that raises the IRQ. The buffer is full until then, and takes a
+        // byte each time the shifter empties
+        long irqCycle(){
+            if (!irqEnabled || loop || remaining == 0 || buffer < 0) return NEVER;
+            return next + (long) (bits - 1) * rate + (long) (remaining - 1) * 8 * rate + 1;
+        }
+    }
+
+}
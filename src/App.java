@@ -1,24 +1,46 @@
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.swing.*;
+import utils.BreakpointKind;
 import utils.FLAGS6502;
 
+// The machine runs on the Emulator's thread. The UI only sees the states it
+// publishes: each new one is copied into "shown", a Bus of plain RAM that
+// belongs to the event dispatch thread, so the disassembler and the memory
+// views keep tracking what changed through its writes.
 public class App extends JPanel {
+    private static final int REFRESH_MILLIS = 16; // About the display rate
+    private static final String TRACE_FILE = "cpu.trace";
+    private static final String JOURNAL_FILE = "session.journal";
+    // "[read|write] address [if condition]", see addWatchpoint()
+    private static final Pattern WATCH = Pattern.compile("(?i)\\s*(read|write)?\\s*\\$?([0-9a-f]{1,4})\\s*(?:if\\s+(.+))?");
+
     private Bus nes = new Bus();
-    private Map<Integer, String> mapAsm = new HashMap<>();
+    private Emulator emulator = new Emulator(nes);
+    private Bus shown = new Bus();
+    private MachineState state = new MachineState();
+    private Disassembler asm = new Disassembler(shown);
+    private int[] codeLines = new int[0]; // Instructions shown by drawCode, reused between paints
+    private MemoryView ramLow = new MemoryView(shown);
+    private MemoryView ramHigh = new MemoryView(shown);
 
     public App() {
         setPreferredSize(new Dimension(680, 480));
         setFocusable(true);
+        setLayout(null);
+        addMemoryView(ramLow, 12, 0x0000);
+        addMemoryView(ramHigh, 192, 0x8000);
 
         // OnUserCreate
         loadProgram();
-        mapAsm = nes.cpu.disassemble(0x0000, 0xFFFF);
         nes.cpu.reset();
+        emulator.start();
 
         // Key event handlers
         addKeyListener(new KeyAdapter() {
@@ -26,23 +48,136 @@ public class App extends JPanel {
             public void keyPressed(KeyEvent e) {
                 switch (e.getKeyCode()) {
                     case KeyEvent.VK_SPACE:
-                        do {
-                            nes.cpu.clock();
-                        } while (!nes.cpu.complete());
+                        emulator.send(Emulator.Command.STEP);
+                        break;
+                    case KeyEvent.VK_C:
+                        emulator.send(Emulator.Command.RUN);
+                        break;
+                    case KeyEvent.VK_P:
+                        emulator.send(Emulator.Command.PAUSE);
                         break;
                     case KeyEvent.VK_R:
-                        nes.cpu.reset();
+                        emulator.send(Emulator.Command.RESET);
                         break;
                     case KeyEvent.VK_I:
-                        nes.cpu.irq();
+                        emulator.send(Emulator.Command.IRQ);
                         break;
                     case KeyEvent.VK_N:
-                        nes.cpu.nmi();
+                        emulator.send(Emulator.Command.NMI);
+                        break;
+                    case KeyEvent.VK_B:
+                        int pc = state.pc();
+                        emulator.submit(bus -> bus.breakpoints.toggle(pc));
+                        break;
+                    case KeyEvent.VK_W:
+                        addWatchpoint();
+                        break;
+                    case KeyEvent.VK_X:
+                        emulator.submit(bus -> bus.breakpoints.clear());
+                        break;
+                    case KeyEvent.VK_F:
+                        emulator.submit(App::toggleProfiler);
+                        break;
+                    case KeyEvent.VK_T:
+                        emulator.submit(App::toggleRecorder);
+                        break;
+                    case KeyEvent.VK_J:
+                        Journal journal = emulator.journal();
+                        emulator.submit(bus -> toggleJournal(journal));
                         break;
                 }
-                repaint();
             }
         });
+        new Timer(REFRESH_MILLIS, e -> refresh()).start();
+    }
+
+    // Takes the newest state of the machine, if there is one
+    private void refresh() {
+        MachineState latest = emulator.latest();
+        if (latest.sequence() == state.sequence()) return;
+        state = latest;
+        for (int addr = 0; addr < 0x10000; addr++) {
+            int data = state.read(addr);
+            if (shown.ram[addr] != data) shown.write(addr, data);
+        }
+        // The memory views only repaint the rows that changed
+        ramLow.refresh();
+        ramHigh.refresh();
+        repaint(440, 0, getWidth() - 440, 360);
+    }
+
+    // Starts a new profile, or stops the one running and prints its report.
+    // Runs on the emulation thread
+    private static void toggleProfiler(Bus bus) {
+        Profiler profiler = bus.cpu.profiler;
+        if (profiler.enabled()) {
+            profiler.disable();
+            System.out.print(profiler.report(20));
+        } else {
+            profiler.reset();
+            profiler.enable();
+        }
+    }
+
+    // Starts recording every instruction into TRACE_FILE, or stops. Decode it
+    // with TraceDecoder. Runs on the emulation thread
+    private static void toggleRecorder(Bus bus) {
+        TraceRecorder recorder = bus.cpu.recorder;
+        try {
+            if (recorder.recording()) {
+                recorder.stop();
+                System.out.println(recorder.records() + " instructions recorded in " + TRACE_FILE);
+            } else {
+                recorder.start(Paths.get(TRACE_FILE));
+            }
+        } catch (IOException e) {
+            System.err.println("Trace failed: " + e.getMessage());
+        }
+    }
+
+    // Starts recording a journal of the session, or stops and saves it in
+    // JOURNAL_FILE. Replay it with "java Journal". Runs on the emulation thread
+    private static void toggleJournal(Journal journal) {
+        if (!journal.recording()) {
+            journal.start();
+            return;
+        }
+        journal.stop();
+        try {
+            journal.save(Paths.get(JOURNAL_FILE));
+            System.out.println(journal.events() + " events saved in " + JOURNAL_FILE);
+        } catch (IOException e) {
+            System.err.println("Journal failed: " + e.getMessage());
+        }
+    }
+
+    // Asks for a watchpoint, e.g. "write $0002 if [$0002] > 5". Writes are
+    // watched when the kind is left out
+    private void addWatchpoint() {
+        String spec = JOptionPane.showInputDialog(this, "Watch [read|write] address [if condition]", "write $0002");
+        if (spec == null) return;
+        Matcher matcher = WATCH.matcher(spec.trim());
+        try {
+            if (!matcher.matches()) throw new IllegalArgumentException("Not a watchpoint: " + spec);
+            BreakpointKind kind = "read".equalsIgnoreCase(matcher.group(1)) ? BreakpointKind.READ : BreakpointKind.WRITE;
+            int addr = Integer.parseInt(matcher.group(2), 16);
+            String condition = matcher.group(3);
+            // Compiled here as well, to tell about mistakes on this thread
+            if (condition != null) Condition.compile(condition);
+            emulator.submit(bus -> bus.breakpoints.add(kind, addr, condition));
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Watchpoint", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void addMemoryView(MemoryView view, int y, int addr) {
+        JScrollPane scroll = new JScrollPane(view, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        scroll.setBorder(BorderFactory.createEmptyBorder());
+        scroll.setBounds(0, y, 440, 16 * MemoryView.ROW_HEIGHT + 2);
+        add(scroll);
+        scroll.getViewport().doLayout();
+        view.scrollTo(addr);
     }
 
     private void loadProgram() {
@@ -81,102 +216,49 @@ public class App extends JPanel {
         return String.format("%0" + d + "X", n);
     }
 
-    private void drawRam(Graphics g, int x, int y, int nAddr, int nRows, int nColumns) {
-        int nRamX = x, nRamY = y;
-        g.setColor(Color.white);
-        for (int row = 0; row < nRows; row++) {
-            StringBuilder sOffset = new StringBuilder("$" + hex(nAddr, 4) + ":");
-            for (int col = 0; col < nColumns; col++) {
-                sOffset.append(" ").append(hex(nes.read(nAddr, true), 2));
-                nAddr += 1;
-            }
-            g.drawString(sOffset.toString(), nRamX, nRamY);
-            nRamY += 10;
-        }
-    }
-
     private void drawCpu(Graphics g, int x, int y) {
         g.setColor(Color.WHITE);
         g.drawString("STATUS:", x, y);
-        g.setColor((nes.cpu.status & FLAGS6502.N.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.N.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("N", x + 64, y);
-        g.setColor((nes.cpu.status & FLAGS6502.V.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.V.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("V", x + 80, y);
-        g.setColor((nes.cpu.status & FLAGS6502.U.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.U.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("-", x + 96, y);
-        g.setColor((nes.cpu.status & FLAGS6502.B.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.B.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("B", x + 112, y);
-        g.setColor((nes.cpu.status & FLAGS6502.D.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.D.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("D", x + 128, y);
-        g.setColor((nes.cpu.status & FLAGS6502.I.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.I.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("I", x + 144, y);
-        g.setColor((nes.cpu.status & FLAGS6502.Z.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.Z.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("Z", x + 160, y);
-        g.setColor((nes.cpu.status & FLAGS6502.C.getValue()) != 0 ? Color.GREEN : Color.RED);
+        g.setColor((state.status() & FLAGS6502.C.getValue()) != 0 ? Color.GREEN : Color.RED);
         g.drawString("C", x + 178, y);
         g.setColor(Color.WHITE);
-        g.drawString("PC: $" + hex(nes.cpu.pc, 4), x, y + 10);
-        g.drawString("A: $" + hex(nes.cpu.a, 2) + "  [" + nes.cpu.a + "]", x, y + 20);
-        g.drawString("X: $" + hex(nes.cpu.x, 2) + "  [" + nes.cpu.x + "]", x, y + 30);
-        g.drawString("Y: $" + hex(nes.cpu.y, 2) + "  [" + nes.cpu.y + "]", x, y + 40);
-        g.drawString("Stack P: $" + hex(nes.cpu.stkp, 4), x, y + 50);
-    }
-
-    private void drawCode(Graphics g, int x, int y, int nLines) {
-        Map.Entry<Integer, String> it_a = mapAsm.entrySet().stream()
-                .filter(e -> e.getKey() == nes.cpu.pc)
-                .findFirst()
-                .orElse(null);
-        int nLineY = (nLines >> 1) * 10 + y;
-        if (it_a != null) {
-            g.setColor(Color.CYAN);
-            g.drawString(it_a.getValue(), x, nLineY);
-            g.setColor(Color.WHITE);
-            while (nLineY < (nLines * 10) + y) {
-                nLineY += 10;
-                if ((it_a = getNextEntry(it_a)) != null) {
-                    g.drawString(it_a.getValue(), x, nLineY);
-                }
-            }
-        }
-
-        it_a = mapAsm.entrySet().stream()
-                .filter(e -> e.getKey() == nes.cpu.pc)
-                .findFirst()
-                .orElse(null);
-        nLineY = (nLines >> 1) * 10 + y;
-        if (it_a != null) {
-            while (nLineY > y) {
-                nLineY -= 10;
-                if ((it_a = getPreviousEntry(it_a)) != null) {
-                    g.drawString(it_a.getValue(), x, nLineY);
-                }
-            }
-        }
-    }
-
-    private Map.Entry<Integer, String> getNextEntry(Map.Entry<Integer, String> currentEntry) {
-        boolean foundCurrent = false;
-        for (Map.Entry<Integer, String> entry : mapAsm.entrySet()) {
-            if (foundCurrent) {
-                return entry;
-            }
-            if (entry.equals(currentEntry)) {
-                foundCurrent = true;
-            }
+        g.drawString("PC: $" + hex(state.pc(), 4), x, y + 10);
+        g.drawString("A: $" + hex(state.a(), 2) + "  [" + state.a() + "]", x, y + 20);
+        g.drawString("X: $" + hex(state.x(), 2) + "  [" + state.x() + "]", x, y + 30);
+        g.drawString("Y: $" + hex(state.y(), 2) + "  [" + state.y() + "]", x, y + 40);
+        g.drawString("Stack P: $" + hex(state.stkp(), 4), x, y + 50);
+        g.drawString((state.running() ? "RUNNING" : "PAUSED") + "  CYC: " + state.clockCount(), x, y + 60);
+        if (state.stoppedBy() != null) {
+            g.setColor(Color.YELLOW);
+            g.drawString("BREAK " + state.stoppedBy(), x, y + 70);
         }
-        return null;
     }
 
-    private Map.Entry<Integer, String> getPreviousEntry(Map.Entry<Integer, String> currentEntry) {
-        Map.Entry<Integer, String> previousEntry = null;
-        for (Map.Entry<Integer, String> entry : mapAsm.entrySet()) {
-            if (entry.equals(currentEntry)) {
-                return previousEntry;
-            }
-            previousEntry = entry;
+    // Shows the instruction at pc in the middle of the view, with the ones
+    // around it in address order
+    private void drawCode(Graphics g, int x, int y, int nLines) {
+        if (codeLines.length != nLines + 1) codeLines = new int[nLines + 1];
+        int centre = nLines >> 1;
+        asm.window(state.pc(), centre, codeLines);
+        for (int row = 0; row < codeLines.length; row++) {
+            if (codeLines[row] < 0) continue;
+            g.setColor(row == centre ? Color.CYAN : Color.WHITE);
+            g.drawString(asm.text(codeLines[row]), x, y + row * 10);
         }
-        return null;
     }
 
     @Override
@@ -185,13 +267,12 @@ public class App extends JPanel {
         g.setColor(Color.DARK_GRAY);
         g.fillRect(0, 0, getWidth(), getHeight());
 
-        drawRam(g, 2, 22, 0x0000, 16, 16);
-        drawRam(g, 2, 202, 0x8000, 16, 16);
         drawCpu(g, 448, 20);
-        drawCode(g, 448, 92, 26);
+        drawCode(g, 448, 102, 25);
 
         g.setColor(Color.WHITE);
-        g.drawString("SPACE = Step Instruction    R = RESET    I = IRQ    N = NMI", 10, 370);
+        g.drawString("SPACE = Step Instruction    C = Run    P = Pause    R = RESET    I = IRQ    N = NMI", 10, 370);
+        g.drawString("B = Break at PC    W = Watch    X = Clear Breaks    F = Profile    T = Trace    J = Journal", 10, 384);
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,63 @@
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+
+// Plays the samples of a SampleRing on the default sound device, from a
+// thread of its own so the emulation never waits for the device. The thread
+// takes whatever the ring holds and blocks in the line's write() while the
+// device buffer is full, which paces it to the sample rate.
+public class AudioOutput {
+
+    private static final int CHUNK = 512; // Samples taken from the ring at a time
+    private static final long IDLE_NANOS = 1_000_000L; // Wait when the ring is empty
+
+    private final SampleRing ring;
+    private final SourceDataLine line;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public AudioOutput(SampleRing ring, int sampleRate) throws LineUnavailableException {
+        this.ring = ring;
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        line = AudioSystem.getSourceDataLine(format);
+        // About 50 ms of buffer: little latency, and room for a late frame
+        line.open(format, sampleRate / 20 * 2);
+        line.start();
+        thread = new Thread(this::play, "Audio output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    private void play(){
+        short[] samples = new short[CHUNK];
+        byte[] bytes = new byte[CHUNK * 2];
+        while (running) {
+            int count = ring.read(samples, 0, CHUNK);
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                bytes[i * 2] = (byte) samples[i];
+                bytes[i * 2 + 1] = (byte) (samples[i] >> 8);
+            }
+            line.write(bytes, 0, count * 2);
+        }
+    }
+
+    public void close(){
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.stop();
+        line.close();
+    }
+
+}
@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import utils.CpuEngine;
+
+
+// Runs many independent programs without the UI, one Bus/CPU6502 pair per
+// program, spread over a work-stealing pool with one worker per core.
+// Machines share nothing, so throughput grows with the number of cores.
+// Results are handed back as each program finishes.
+//
+// Usage: java BatchRunner [options] program...
+//   --threads=N   workers, defaults to the number of cores
+//   --engine=E    TABLE, SWITCH, PREDECODE or JIT, defaults to SWITCH
+//   --cycles=N    cycle limit for each program, defaults to 10000000
+//   --stop=XXXX   also stop when pc reaches this address (hex)
+//   --org=XXXX    load address (hex), defaults to 8000
+//   --profile=N   profile each program and print its N hottest addresses,
+//                 see Profiler
+//   --trace=DIR   record every instruction of each program into DIR, in
+//                 a file named after it with ".trace" added, see TraceRecorder
+// A program file ending in .hex holds hex bytes separated by blanks, like
+// the program in App, anything else is loaded as raw bytes. The reset vector
+// points at the load address unless the image covers it.
+// With --engine=JIT the programs run as compiled blocks, and the stop address
+// and traps are checked where blocks start (see CPU6502.runUntil()). Both
+// always start a block, so every engine stops on the same instruction with
+// the same cycles. Profiling or tracing makes the JIT interpret.
+public class BatchRunner {
+
+    // Why a program stopped
+    public enum Stop {
+        CYCLES, // Ran out of cycles
+        PC,     // Reached the stop address
+        TRAP    // Jumped or branched to itself, the usual end of a test program
+    }
+
+    public static class Task {
+        final String name;
+        final byte[] image;
+        final int origin;
+        final long maxCycles;
+        final int stopPc; // -1 for none
+
+        public Task(String name, byte[] image, int origin, long maxCycles, int stopPc) {
+            if (origin < 0 || origin + image.length > 0x10000) {
+                throw new IllegalArgumentException(name + " does not fit in memory at " + Integer.toHexString(origin));
+            }
+            this.name = name;
+            this.image = image;
+            this.origin = origin;
+            this.maxCycles = maxCycles;
+            this.stopPc = stopPc;
+        }
+    }
+
+    public static class Result {
+        public final String name;
+        public final int a, x, y, stkp, pc, status;
+        public final long cycles;
+        public final long memoryCrc; // CRC-32 of the 64 KB of RAM
+        public final Stop stop;
+        public final String profile; // Profiler report, null when not profiling
+
+        Result(String name, CPU6502 cpu, long cycles, long memoryCrc, Stop stop, String profile) {
+            this.name = name;
+            this.a = cpu.a;
+            this.x = cpu.x;
+            this.y = cpu.y;
+            this.stkp = cpu.stkp;
+            this.pc = cpu.pc;
+            this.status = cpu.status;
+            this.cycles = cycles;
+            this.memoryCrc = memoryCrc;
+            this.stop = stop;
+            this.profile = profile;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s cycles=%d pc=%04X a=%02X x=%02X y=%02X sp=%02X p=%02X crc=%08X stop=%s",
+                    name, cycles, pc, a, x, y, stkp, status, memoryCrc, stop);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final CpuEngine engine;
+    private final int profileLines; // 0 for no profiling
+    private final Path traceDirectory; // Null for no traces
+
+    public BatchRunner(int threads, CpuEngine engine) {
+        this(threads, engine, 0, null);
+    }
+
+    // Profiles every program, see Result.profile, and records a trace of
+    // each into traceDirectory unless it is null
+    public BatchRunner(int threads, CpuEngine engine, int profileLines, Path traceDirectory) {
+        this.pool = new ForkJoinPool(threads);
+        this.engine = engine;
+        this.profileLines = profileLines;
+        this.traceDirectory = traceDirectory;
+    }
+
+
+    // Runs all tasks and passes each result to "results" on the calling
+    // thread, in the order they finish. Returns when every task is done
+    public void run(List<Task> tasks, Consumer<Result> results) throws InterruptedException {
+        CompletionService<Result> done = new ExecutorCompletionService<>(pool);
+        for (Task task : tasks) {
+            done.submit(() -> run(task));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                results.accept(done.take().get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Program failed", e.getCause());
+            }
+        }
+    }
+
+    public void shutdown(){
+        pool.shutdown();
+    }
+
+    private Result run(Task task) throws IOException {
+        // One byte per cell keeps thousands of machines small
+        byte[] ram = new byte[0x10000];
+        System.arraycopy(task.image, 0, ram, task.origin, task.image.length);
+        if (task.origin + task.image.length <= 0xFFFC) {
+            ram[0xFFFC] = (byte) task.origin;
+            ram[0xFFFD] = (byte) (task.origin >> 8);
+        }
+
+        Bus bus = new Bus(engine, ram);
+        CPU6502 cpu = bus.cpu;
+        cpu.reset();
+        cpu.runInstructions(0);
+        if (profileLines > 0) cpu.profiler.enable();
+        if (traceDirectory != null) {
+            cpu.recorder.start(traceDirectory.resolve(Paths.get(task.name).getFileName() + ".trace"));
+        }
+
+        if (task.stopPc >= 0 && cpu.recompiler != null) cpu.recompiler.splitAt(task.stopPc);
+        StopCondition condition = new StopCondition(task.stopPc);
+        long cycles = cpu.runUntil(condition, task.maxCycles);
+        cpu.recorder.stop();
+
+        CRC32 crc = new CRC32();
+        crc.update(ram);
+        String profile = profileLines > 0 ? cpu.profiler.report(profileLines) : null;
+        return new Result(task.name, cpu, cycles, crc.getValue(), condition.reason, profile);
+    }
+
+    // Stops at the stop address or when an instruction that jumps to itself
+    // leaves pc unchanged. Checked only before each block on the JIT, where
+    // a loop of one block also comes back to the same pc; a trap is a block
+    // of its own there, so it still runs once before being seen
+    private static class StopCondition implements Predicate<CPU6502> {
+        final int stopPc;
+        int lastPc = -1;
+        Stop reason = Stop.CYCLES;
+
+        StopCondition(int stopPc) {
+            this.stopPc = stopPc;
+        }
+
+        @Override
+        public boolean test(CPU6502 cpu){
+            int pc = cpu.pc;
+            if (pc == stopPc) {
+                reason = Stop.PC;
+                return true;
+            }
+            if (pc == lastPc && jumpsToItself(cpu, pc)) {
+                reason = Stop.TRAP;
+                return true;
+            }
+            lastPc = pc;
+            return false;
+        }
+
+        // A JMP, JSR or JMP indirect to its own address, or a branch back
+        // onto itself
+        private static boolean jumpsToItself(CPU6502 cpu, int pc){
+            Bus bus = cpu.bus;
+            int op = bus.read(pc, true) & 0xFF;
+            int operand = (bus.read((pc + 1) & 0xFFFF, true) & 0xFF) | (bus.read((pc + 2) & 0xFFFF, true) & 0xFF) << 8;
+            switch (op) {
+                case 0x4C: case 0x20:
+                    return operand == pc;
+                case 0x6C: {
+                    // The pointer does not cross a page, as on the 6502
+                    int high = (operand & 0xFF00) | ((operand + 1) & 0x00FF);
+                    return ((bus.read(operand, true) & 0xFF) | (bus.read(high, true) & 0xFF) << 8) == pc;
+                }
+                default:
+                    // Bxx $FE
+                    return (op & 0x1F) == 0x10 && (operand & 0xFF) == 0xFE;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        CpuEngine engine = CpuEngine.SWITCH;
+        long cycles = 10_000_000;
+        int stopPc = -1;
+        int origin = 0x8000;
+        int profileLines = 0;
+        Path traceDirectory = null;
+        List<Task> tasks = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring(10));
+            else if (arg.startsWith("--engine=")) engine = CpuEngine.valueOf(arg.substring(9));
+            else if (arg.startsWith("--cycles=")) cycles = Long.parseLong(arg.substring(9));
+            else if (arg.startsWith("--stop=")) stopPc = Integer.parseInt(arg.substring(7), 16);
+            else if (arg.startsWith("--org=")) origin = Integer.parseInt(arg.substring(6), 16);
+            else if (arg.startsWith("--profile=")) profileLines = Integer.parseInt(arg.substring(10));
+            else if (arg.startsWith("--trace=")) traceDirectory = Paths.get(arg.substring(8));
+            else tasks.add(new Task(arg, load(Paths.get(arg)), origin, cycles, stopPc));
+        }
+        if (tasks.isEmpty()) {
+            System.err.println("Usage: java BatchRunner [--threads=N] [--engine=E] [--cycles=N] [--stop=XXXX] [--org=XXXX] [--profile=N] [--trace=DIR] program...");
+            System.exit(2);
+        }
+
+        BatchRunner runner = new BatchRunner(threads, engine, profileLines, traceDirectory);
+        long[] total = new long[1];
+        long start = System.nanoTime();
+        runner.run(tasks, result -> {
+            System.out.println(result);
+            if (result.profile != null) System.out.println(result.profile);
+            total[0] += result.cycles;
+        });
+        long elapsed = System.nanoTime() - start;
+        runner.shutdown();
+
+        System.out.printf("%d programs, %d cycles in %.3f s, %.1f MHz aggregate on %d threads%n",
+                tasks.size(), total[0], elapsed / 1e9, total[0] * 1000.0 / elapsed, threads);
+    }
+
+    private static byte[] load(Path file) throws IOException {
+        if (!file.toString().endsWith(".hex")) return Files.readAllBytes(file);
+
+        StringTokenizer tokenizer = new StringTokenizer(Files.readString(file));
+        byte[] image = new byte[tokenizer.countTokens()];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) Integer.parseInt(tokenizer.nextToken(), 16);
+        }
+        return image;
+    }
+
+}
@@ -0,0 +1,465 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import utils.BreakpointKind;
+import utils.CpuEngine;
+
+
+// Benchmark suite for the CPU core, the bus and the disassembler, run the way
+// JMH runs benchmarks: warmup iterations, then measured iterations of fixed
+// length, and, like JMH's "-prof gc", the bytes allocated per operation and
+// the collections that happened while measuring.
+//
+// CPU benchmarks run the bundled programs below and report instructions per
+// second and emulated MHz, both driven by clock() and by the bulk run methods
+// of every engine. The opcode class programs each loop over one kind of
+// instruction. Bulk runs on the JIT engine can not count instructions, their
+// operations are emulated cycles.
+// Usage: java Benchmarks [name filter] [--quick]
+public class Benchmarks {
+
+    // CPU-bound programs, all assembled at $8000 and looping forever
+    private enum Program {
+        // Nested multiply loop, see RecompilerBenchmark
+        MULTIPLY("18 A9 00 A2 00 A0 00 6D 01 00 88 D0 FA CA D0 F5 8D 02 00 4C 00 80"),
+        /*
+            start   LDX #0              ; Clear 256 flags at $0200
+                    LDA #0
+            clear   STA $0200,X
+                    INX
+                    BNE clear
+                    LDX #2
+            outer   LDA $0200,X         ; Composite, try the next one
+                    BNE next
+                    TXA                 ; Mark every multiple of X
+                    STX $00
+            mark    CLC
+                    ADC $00
+                    BCS next
+                    TAY
+                    LDA #1
+                    STA $0200,Y
+                    TYA
+                    JMP mark
+            next    INX
+                    BNE outer
+                    JMP start
+        */
+        SIEVE("A2 00 A9 00 9D 00 02 E8 D0 FA A2 02 BD 00 02 D0 12 8A 86 00 18 65 00 B0 0A A8 A9 01 99 00 02 98 4C 14 80 E8 D0 E6 4C 00 80"),
+        /*
+            start   LDA #$FF            ; CRC-16/CCITT of the 256 bytes at $8000
+                    STA $10
+                    STA $11
+                    LDY #0
+            byte    LDA $8000,Y
+                    EOR $11
+                    STA $11
+                    LDX #8
+            bit     ASL $10
+                    ROL $11
+                    BCC nox
+                    LDA $11
+                    EOR #$10
+                    STA $11
+                    LDA $10
+                    EOR #$21
+                    STA $10
+            nox     DEX
+                    BNE bit
+                    INY
+                    BNE byte
+                    LDA $10             ; Result in $12/$13
+                    STA $12
+                    LDA $11
+                    STA $13
+                    JMP start
+        */
+        CRC("A9 FF 85 10 85 11 A0 00 B9 00 80 45 11 85 11 A2 08 06 10 26 11 90 0C A5 11 49 10 85 11 A5 10 49 21 85 10 CA D0 EB C8 D0 DF A5 10 85 12 A5 11 85 13 4C 00 80"),
+
+        // Opcode classes
+        // LDA #0, loop: CLC, ADC #1, AND #$FF, EOR #$55, ORA #$0F, CMP #$80, SBC #1, ADC $20, JMP loop
+        ALU("A9 00 18 69 01 29 FF 49 55 09 0F C9 80 E9 01 65 20 4C 02 80"),
+        // LDX #0, loop: DEX, BNE loop, BEQ, BMI, BPL, BCS, BCC (all +0), JMP loop
+        BRANCH("A2 00 CA D0 FD F0 00 30 00 10 00 B0 00 90 00 4C 02 80"),
+        // INC $20, DEC $21, ASL $22, ROR $23, INC $0300, LSR $0300,X, ROL $0301, JMP $8000
+        RMW("E6 20 C6 21 06 22 66 23 EE 00 03 5E 00 03 2E 01 03 4C 00 80"),
+        // LDA #$42, loop: PHA, PHP, JSR sub, PLP, PLA, JMP loop; sub: PHA, PLA, RTS
+        STACK("A9 42 48 08 20 0C 80 28 68 4C 02 80 48 68 60");
+
+        final String code;
+
+        Program(String code) {
+            this.code = code;
+        }
+
+        Bus load(Bus bus){
+            StringTokenizer tokenizer = new StringTokenizer(code);
+            int offset = 0x8000;
+            while (tokenizer.hasMoreTokens()) {
+                bus.poke(offset++, Integer.parseInt(tokenizer.nextToken(), 16));
+            }
+            bus.poke(0x0001, 0x03); // Multiplier
+            bus.poke(0xFFFC, 0x00);
+            bus.poke(0xFFFD, 0x80);
+            bus.cpu.reset();
+            bus.cpu.runInstructions(0);
+            return bus;
+        }
+    }
+
+    private abstract static class Benchmark {
+        final String name;
+        final String param;
+        long cycles = 0; // Emulated cycles, for the CPU benchmarks
+
+        Benchmark(String name, String param) {
+            this.name = name;
+            this.param = param;
+        }
+
+        // One invocation, returns the operations it did
+        abstract long run();
+    }
+
+    private static final int INSTRUCTIONS = 100_000; // Per invocation of the CPU benchmarks
+
+    // Keeps results alive so the JIT can not drop the work
+    static volatile long sink;
+
+    private static int warmupIterations = 3;
+    private static int measuredIterations = 5;
+    private static long iterationNanos = 1_000_000_000L;
+
+    public static void main(String[] args) {
+        String filter = "";
+        for (String arg : args) {
+            if (arg.equals("--quick")) {
+                warmupIterations = 1;
+                measuredIterations = 2;
+                iterationNanos = 200_000_000L;
+            } else {
+                filter = arg;
+            }
+        }
+
+        System.out.printf("%-14s %-18s %12s %10s %10s %12s %5s%n",
+                "Benchmark", "Param", "ns/op", "Mops/s", "MHz", "alloc B/op", "GCs");
+        for (Benchmark benchmark : benchmarks()) {
+            if (benchmark.name.contains(filter)) measure(benchmark);
+        }
+    }
+
+    private static List<Benchmark> benchmarks(){
+        List<Benchmark> list = new ArrayList<>();
+
+        // clock() driven, one operation per instruction
+        for (Program program : new Program[] { Program.MULTIPLY, Program.SIEVE, Program.CRC }) {
+            for (CpuEngine engine : new CpuEngine[] { CpuEngine.TABLE, CpuEngine.SWITCH }) {
+                Bus bus = program.load(new Bus(engine));
+                list.add(new Benchmark("clock", program + "/" + engine) {
+                    long run(){
+                        CPU6502 cpu = bus.cpu;
+                        for (int n = 0; n < INSTRUCTIONS; n++) {
+                            do {
+                                cpu.clock();
+                                cycles++;
+                            } while (!cpu.complete());
+                        }
+                        return INSTRUCTIONS;
+                    }
+                });
+            }
+        }
+
+        // Bulk execution on every engine
+        for (Program program : new Program[] { Program.MULTIPLY, Program.SIEVE, Program.CRC }) {
+            for (CpuEngine engine : CpuEngine.values()) {
+                Bus bus = program.load(new Bus(engine));
+                list.add(new Benchmark("bulk", program + "/" + engine) {
+                    long run(){
+                        if (engine == CpuEngine.JIT) {
+                            // Compiled blocks only run under runCycles(), which
+                            // does not count instructions
+                            cycles += bus.cpu.runCycles(INSTRUCTIONS * 3L);
+                            return 0;
+                        }
+                        cycles += bus.cpu.runInstructions(INSTRUCTIONS);
+                        return INSTRUCTIONS;
+                    }
+                });
+            }
+        }
+
+        // Through the Scheduler, with a device that wants to run every
+        // scanline (1364 master cycles), as the PPU does
+        for (CpuEngine engine : new CpuEngine[] { CpuEngine.SWITCH, CpuEngine.JIT }) {
+            Bus bus = Program.MULTIPLY.load(new Bus(engine));
+            Scheduler scheduler = bus.scheduler;
+            int[] id = new int[1];
+            id[0] = scheduler.add(time -> {
+                sink = time;
+                scheduler.schedule(id[0], time - time % 1364 + 1364);
+            });
+            scheduler.schedule(id[0], 1364);
+            list.add(new Benchmark("scheduler", "MULTIPLY/" + engine) {
+                long run(){
+                    cycles += scheduler.runCycles(INSTRUCTIONS * 3L);
+                    return 0;
+                }
+            });
+        }
+
+        // Armed breakpoints, against "bulk": one that never hits, so every
+        // instruction is checked, and a watchpoint with a condition on the
+        // multiplier the loop reads every time round
+        for (CpuEngine engine : new CpuEngine[] { CpuEngine.SWITCH, CpuEngine.JIT }) {
+            Bus bus = Program.MULTIPLY.load(new Bus(engine));
+            bus.breakpoints.add(BreakpointKind.EXECUTE, 0x1234, null);
+            bus.breakpoints.add(BreakpointKind.READ, 0x0001, "A == $FF && [$0002] > 200");
+            list.add(new Benchmark("breakpoints", "MULTIPLY/" + engine) {
+                long run(){
+                    cycles += bus.cpu.runCycles(INSTRUCTIONS * 3L);
+                    return 0;
+                }
+            });
+        }
+
+        // Profiling, against "bulk"
+        for (CpuEngine engine : new CpuEngine[] { CpuEngine.SWITCH, CpuEngine.JIT }) {
+            Bus bus = Program.MULTIPLY.load(new Bus(engine));
+            bus.cpu.profiler.enable();
+            list.add(new Benchmark("profiler", "MULTIPLY/" + engine) {
+                long run(){
+                    cycles += bus.cpu.runCycles(INSTRUCTIONS * 3L);
+                    return 0;
+                }
+            });
+        }
+
+        // Opcode classes
+        for (Program program : new Program[] { Program.ALU, Program.BRANCH, Program.RMW, Program.STACK }) {
+            for (CpuEngine engine : new CpuEngine[] { CpuEngine.TABLE, CpuEngine.SWITCH }) {
+                Bus bus = program.load(new Bus(engine));
+                list.add(new Benchmark("opcodes", program + "/" + engine) {
+                    long run(){
+                        cycles += bus.cpu.runInstructions(INSTRUCTIONS);
+                        return INSTRUCTIONS;
+                    }
+                });
+            }
+        }
+
+        // Whole frames with random tiles on screen and 64 sprites, the CPU
+        // idling in a loop. One operation per frame
+        for (CpuEngine engine : new CpuEngine[] { CpuEngine.SWITCH }) {
+            Nes nes = new Nes(engine);
+            Bus bus = nes.bus;
+            bus.poke(0x8000, 0x4C); // JMP $8000
+            bus.poke(0x8001, 0x00);
+            bus.poke(0x8002, 0x80);
+            bus.poke(0xFFFC, 0x00);
+            bus.poke(0xFFFD, 0x80);
+            nes.reset();
+            java.util.Random random = new java.util.Random(1);
+            bus.write(0x2006, 0x00);
+            bus.write(0x2006, 0x00);
+            for (int i = 0; i < 0x3000; i++) bus.write(0x2007, random.nextInt(256));
+            for (int i = 0; i < 32; i++) bus.write(0x2007, random.nextInt(64));
+            for (int i = 0; i < 256; i++) bus.write(0x2004, random.nextInt(256));
+            bus.write(0x2001, 0x1E);
+            list.add(new Benchmark("ppu.frame", "bg+sprites/" + engine) {
+                long run(){
+                    cycles += nes.runFrame();
+                    return 1;
+                }
+            });
+        }
+
+        // Whole frames with both pulses, the triangle and the noise playing
+        // and the samples taken each frame, the CPU idling in a loop and the
+        // PPU off. One operation per frame
+        for (CpuEngine engine : new CpuEngine[] { CpuEngine.SWITCH }) {
+            Nes nes = new Nes(engine);
+            Bus bus = nes.bus;
+            bus.poke(0x8000, 0x4C); // JMP $8000
+            bus.poke(0x8001, 0x00);
+            bus.poke(0x8002, 0x80);
+            bus.poke(0xFFFC, 0x00);
+            bus.poke(0xFFFD, 0x80);
+            nes.reset();
+            int[] registers = {
+                0x4017, 0x40, 0x4015, 0x0F,
+                0x4000, 0xBF, 0x4002, 0xFD, 0x4003, 0x00, // 440 Hz
+                0x4004, 0x7F, 0x4006, 0x7E, 0x4007, 0x00, // 880 Hz
+                0x4008, 0xFF, 0x400A, 0x7E, 0x400B, 0x00,
+                0x400C, 0x3F, 0x400E, 0x04, 0x400F, 0x00
+            };
+            for (int i = 0; i < registers.length; i += 2) bus.write(registers[i], registers[i + 1]);
+            short[] samples = new short[4096];
+            list.add(new Benchmark("apu.frame", "4 channels/" + engine) {
+                long run(){
+                    cycles += nes.runFrame();
+                    sink = nes.apu.samples.read(samples, 0, samples.length);
+                    return 1;
+                }
+            });
+        }
+
+        // Bank switches through the registers of an MMC3 with 512 KB of PRG
+        // and 256 KB of CHR, alternating between two banks so every one
+        // remaps. One operation per switch of an 8 KB PRG and a 1 KB CHR bank
+        for (CpuEngine engine : new CpuEngine[] { CpuEngine.SWITCH }) {
+            byte[] image = new byte[16 + 512 * 1024 + 256 * 1024];
+            image[0] = 'N';
+            image[1] = 'E';
+            image[2] = 'S';
+            image[3] = 0x1A;
+            image[4] = 32;
+            image[5] = 32;
+            image[6] = 0x40;
+            Nes nes = new Nes(engine);
+            nes.insert(new Cartridge(java.nio.ByteBuffer.wrap(image), java.nio.ByteBuffer.wrap(new byte[0x2000])));
+            Bus bus = nes.bus;
+            list.add(new Benchmark("mapper.switch", "MMC3/" + engine) {
+                int bank = 0;
+                long run(){
+                    bank ^= 1;
+                    bus.write(0x8000, 6);
+                    bus.write(0x8001, bank);
+                    bus.write(0x8000, 2);
+                    bus.write(0x8001, bank);
+                    sink = bus.read(0x8000, false);
+                    return 1;
+                }
+            });
+        }
+
+        // Bus accesses, one operation per access
+        for (String kind : new String[] { "int[]", "byte[]", "off-heap" }) {
+            Bus bus;
+            if (kind.equals("int[]")) bus = new Bus(CpuEngine.TABLE);
+            else if (kind.equals("byte[]")) bus = new Bus(CpuEngine.TABLE, new byte[0x10000]);
+            else bus = new Bus(CpuEngine.TABLE, Bus.offHeapRam());
+            list.add(new Benchmark("bus.read", kind) {
+                long run(){
+                    long sum = 0;
+                    for (int addr = 0; addr < 0x10000; addr++) {
+                        sum += bus.read(addr, false);
+                    }
+                    sink = sum;
+                    return 0x10000;
+                }
+            });
+            list.add(new Benchmark("bus.write", kind) {
+                long run(){
+                    for (int addr = 0; addr < 0x10000; addr++) {
+                        bus.write(addr, addr & 0xFF);
+                    }
+                    return 0x10000;
+                }
+            });
+        }
+
+        // Whole address space, one operation per call
+        for (Program program : new Program[] { Program.MULTIPLY }) {
+            Bus bus = program.load(new Bus());
+            list.add(new Benchmark("disassemble", "0000-FFFF") {
+                long run(){
+                    sink = bus.cpu.disassemble(0x0000, 0xFFFF).size();
+                    return 1;
+                }
+            });
+
+            // The debugger's disassembler, decoding everything from scratch,
+            // and again after a write to the program
+            Disassembler asm = new Disassembler(bus);
+            list.add(new Benchmark("disassembler", "decode 0000-FFFF") {
+                long run(){
+                    asm.clear();
+                    sink = asm.instructionAt(0xFFFF);
+                    return 1;
+                }
+            });
+            list.add(new Benchmark("disassembler", "write+32 lines") {
+                long run(){
+                    bus.write(0x8000, bus.read(0x8000, true));
+                    long length = 0;
+                    for (int addr = 0x8000, n = 0; n < 32; n++, addr = asm.next(addr)) {
+                        length += asm.text(addr).length();
+                    }
+                    sink = length;
+                    return 1;
+                }
+            });
+            // The code view of the debugger, stepping through the program
+            int[] lines = new int[27];
+            list.add(new Benchmark("disassembler", "window 27 lines") {
+                long run(){
+                    bus.cpu.runInstructions(1);
+                    asm.window(bus.cpu.pc, 13, lines);
+                    long length = 0;
+                    for (int addr : lines) {
+                        if (addr >= 0) length += asm.text(addr).length();
+                    }
+                    sink = length;
+                    return 1;
+                }
+            });
+        }
+        return list;
+    }
+
+    private static void measure(Benchmark benchmark){
+        for (int i = 0; i < warmupIterations; i++) {
+            iterate(benchmark);
+        }
+
+        benchmark.cycles = 0;
+        long gcs = collections();
+        long allocated = allocatedBytes();
+        long ops = 0;
+        long nanos = 0;
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            ops += iterate(benchmark);
+            nanos += System.nanoTime() - start;
+        }
+        allocated = allocatedBytes() - allocated;
+        gcs = collections() - gcs;
+
+        // Benchmarks that count no operations of their own are measured in cycles
+        long units = ops > 0 ? ops : benchmark.cycles;
+        System.out.printf("%-14s %-18s %12.2f %10.2f %10s %12.2f %5d%n",
+                benchmark.name, benchmark.param,
+                (double) nanos / units,
+                units * 1000.0 / nanos,
+                benchmark.cycles > 0 ? String.format("%.1f", benchmark.cycles * 1000.0 / nanos) : "-",
+                (double) allocated / units,
+                gcs);
+    }
+
+    // Runs invocations for one iteration and returns the operations done
+    private static long iterate(Benchmark benchmark){
+        long ops = 0;
+        long end = System.nanoTime() + iterationNanos;
+        do {
+            ops += benchmark.run();
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    private static long allocatedBytes(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static long collections(){
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+}
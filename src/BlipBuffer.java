@@ -0,0 +1,103 @@
+import java.util.Arrays;
+
+
+// Turns a signal made of steps at CPU cycles into samples at an audio rate,
+// without the aliasing of sampling it directly. A step is not added as a
+// sharp edge but as a band-limited one: its derivative, a windowed sinc
+// impulse, goes into an accumulator around the sample the step falls on,
+// taken from one of PHASES precomputed kernels for where the step falls
+// between two samples. The samples are the running sum of the accumulator.
+// The cost is per step rather than per cycle, so a channel costs in
+// proportion to how often its output changes.
+//
+// Steps are added with addDelta() in any order up to a cycle, then end()
+// turns everything before that cycle into samples. Samples come out
+// TAPS / 2 samples late.
+final class BlipBuffer {
+
+    private static final int PHASES = 32;
+    private static final int PHASE_BITS = 5;
+    private static final int TAPS = 16;
+    private static final int KERNEL_BITS = 15; // Each kernel sums to 1 << KERNEL_BITS
+    private static final int FRACTION_BITS = 32;
+    private static final double CUTOFF = 0.9; // Of the Nyquist frequency
+
+    private static final int[][] KERNELS = new int[PHASES][TAPS];
+    static {
+        for (int phase = 0; phase < PHASES; phase++) {
+            double[] impulse = new double[TAPS];
+            double total = 0;
+            for (int i = 0; i < TAPS; i++) {
+                double x = i - (TAPS / 2 - 1) - (double) phase / PHASES;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * CUTOFF * x) / (Math.PI * CUTOFF * x);
+                double window = 0.42 + 0.5 * Math.cos(2 * Math.PI * x / TAPS) + 0.08 * Math.cos(4 * Math.PI * x / TAPS);
+                impulse[i] = sinc * window;
+                total += impulse[i];
+            }
+            // Rounding error goes into the largest tap, so a step settles at
+            // exactly its height and no DC creeps in
+            int sum = 0;
+            for (int i = 0; i < TAPS; i++) {
+                KERNELS[phase][i] = (int) Math.round(impulse[i] / total * (1 << KERNEL_BITS));
+                sum += KERNELS[phase][i];
+            }
+            KERNELS[phase][TAPS / 2 - 1] += (1 << KERNEL_BITS) - sum;
+        }
+    }
+
+    private final long factor; // Samples per cycle, FRACTION_BITS fixed point
+    private final int[] accumulator;
+    private final short[] samples;
+
+    private long baseCycle = 0; // Cycle that sample 0 of the accumulator starts before, by baseFraction
+    private long baseFraction = 0;
+    private int sum = 0; // Running sum of the accumulator
+    private int lastLevel = 0; // Input of the DC blocker, for the next sample
+    private int highPass = 0;
+
+    // capacity is the most samples between two calls to end()
+    BlipBuffer(double clockRate, int sampleRate, int capacity) {
+        if (sampleRate <= 0 || sampleRate >= clockRate) throw new IllegalArgumentException("Sample rate out of range");
+        factor = (long) (sampleRate / clockRate * (1L << FRACTION_BITS));
+        accumulator = new int[capacity + TAPS];
+        samples = new short[capacity];
+    }
+
+
+    // Adds a step of delta at cycle, which must not be before the cycle of
+    // the last end()
+    void addDelta(long cycle, int delta){
+        long position = (cycle - baseCycle) * factor + baseFraction;
+        int index = (int) (position >>> FRACTION_BITS);
+        if (index > samples.length) throw new IllegalStateException("Too many cycles since the samples were last taken");
+        int[] kernel = KERNELS[(int) (position >>> (FRACTION_BITS - PHASE_BITS)) & (PHASES - 1)];
+        for (int i = 0; i < TAPS; i++) {
+            accumulator[index + i] += delta * kernel[i];
+        }
+    }
+
+    // Writes the samples up to cycle to the ring and returns how many there
+    // were. A high-pass filter takes out the DC level, as the console's
+    // output stage does
+    int end(long cycle, SampleRing ring){
+        long position = (cycle - baseCycle) * factor + baseFraction;
+        int count = (int) (position >>> FRACTION_BITS);
+        if (count > samples.length) throw new IllegalStateException("Too many cycles since the samples were last taken");
+        for (int i = 0; i < count; i++) {
+            sum += accumulator[i];
+            int level = sum >> KERNEL_BITS;
+            highPass += level - lastLevel - (highPass >> 10);
+            lastLevel = level;
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, highPass));
+        }
+        ring.write(samples, 0, count);
+
+        // The tails of the last steps move to the front
+        System.arraycopy(accumulator, count, accumulator, 0, TAPS);
+        Arrays.fill(accumulator, TAPS, count + TAPS, 0);
+        baseCycle = cycle;
+        baseFraction = position & ((1L << FRACTION_BITS) - 1);
+        return count;
+    }
+
+}
@@ -0,0 +1,519 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import utils.FLAGS6502;
+
+
+// Translates a 6502 basic block into a hidden JVM class implementing
+// CompiledBlock. Every instruction becomes a short sequence of calls to the
+// SwitchInterpreter kernels with its operand already decoded and pushed as a
+// constant, so fetch, decode and dispatch disappear and the JIT is free to
+// inline the kernels and fold the addresses.
+//
+// Blocks end after a branch, jump, subroutine call/return, BRK or RTI, or
+// after MAX_INSTRUCTIONS. Branches and JMP abs are compiled directly; the
+// other terminators and the unofficial opcodes are handed to the interpreter.
+// They also end before an address that must start a block, see startsBlock().
+//
+// clockCount is only advanced when a block returns, so before an access that
+// may reach a device (anything but an immediate, the zero page or the stack)
+// the block hands the cycles used so far to sync(). Devices then see the
+// time of the instruction, as with the interpreters.
+//
+// The class files are written by hand with version 49, which does not need
+// StackMapTable frames for the (forward only) branches the abort checks use.
+public class BlockCompiler {
+
+    static final int MAX_INSTRUCTIONS = 64;
+
+    private static final String KERNEL = "SwitchInterpreter";
+
+    private final CPU6502 cpu;
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final boolean[] splits = new boolean[0x10000]; // Set by splitAt()
+
+    public BlockCompiler(CPU6502 cpu) {
+        this.cpu = cpu;
+    }
+
+
+    // Returns the address just past the block starting at "start", or "start"
+    // itself if nothing there can be compiled
+    int scan(int start){
+        int addr = start;
+        for (int n = 0; n < MAX_INSTRUCTIONS; n++) {
+            if (addr != start && startsBlock(addr & 0xFFFF)) break;
+            Instruction instr = cpu.lookup[peek(addr)];
+            int next = addr + length(instr.addrmodeName);
+            if (next > 0x10000) break; // Never wrap an operand around the address space
+            addr = next;
+            if (isTerminator(instr)) break;
+        }
+        return addr;
+    }
+
+    // Makes every block that reaches addr end before it
+    void splitAt(int addr){
+        splits[addr] = true;
+    }
+
+    // True if no block may run into addr: it was split at, or the instruction
+    // there jumps to itself (JMP indirect may, depending on its pointer). A
+    // trap is then entered on its own, so runUntil() predicates find it after
+    // one turn as with the interpreters, see BatchRunner
+    boolean startsBlock(int addr){
+        if (splits[addr]) return true;
+        int op = peek(addr);
+        switch (op) {
+            case 0x4C: case 0x20: return ((peek(addr + 2) << 8) | peek(addr + 1)) == addr;
+            case 0x6C: return true;
+            default: return (op & 0x1F) == 0x10 && peek(addr + 1) == 0xFE; // Bxx $FE
+        }
+    }
+
+    // Most cycles the block in [start, end) can take: each instruction may pay
+    // one cycle for a page cross, a branch two when taken across a page
+    int maxCycles(int start, int end){
+        int cycles = 0;
+        for (int addr = start; addr < end; ) {
+            Instruction instr = cpu.lookup[peek(addr)];
+            cycles += instr.cycles + ("REL".equals(instr.addrmodeName) ? 2 : 1);
+            addr += length(instr.addrmodeName);
+        }
+        return cycles;
+    }
+
+    // Compiles the instructions in [start, end) as found by scan()
+    CompiledBlock compile(int start, int end) throws ReflectiveOperationException {
+        byte[] classFile = new ClassFile(start, end).build();
+        Class<?> block = lookup.defineHiddenClass(classFile, true).lookupClass();
+        return (CompiledBlock) block.getDeclaredConstructor().newInstance();
+    }
+
+    private int peek(int addr){
+        return cpu.bus.read(addr & 0xFFFF, true) & 0x00FF;
+    }
+
+    static int length(String addrmodeName){
+        switch (addrmodeName) {
+            case "IMP": return 1;
+            case "ABS": case "ABX": case "ABY": case "IND": return 3;
+            default: return 2;
+        }
+    }
+
+    static boolean isTerminator(Instruction instr){
+        switch (instr.name) {
+            case "JMP": case "JSR": case "RTS": case "RTI": case "BRK": return true;
+            default: return "REL".equals(instr.addrmodeName);
+        }
+    }
+
+
+    // Builds the class file for one block
+    private class ClassFile {
+        private final int start;
+        private final int end;
+
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        ClassFile(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        byte[] build(){
+            int thisClass = classRef("JitBlock");
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef("CompiledBlock");
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int initName = utf8("<init>");
+            int initDesc = utf8("()V");
+            int runName = utf8("run");
+            int runDesc = utf8("(L" + KERNEL + ";)I");
+            int codeAttr = utf8("Code");
+
+            emitBlock();
+            byte[] body = code.toByteArray();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            u4(out, 0xCAFEBABE);
+            u2(out, 0);
+            u2(out, 49);
+            u2(out, poolCount);
+            out.writeBytes(pool.toByteArray());
+            u2(out, 0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            u2(out, thisClass);
+            u2(out, superClass);
+            u2(out, 1);
+            u2(out, iface);
+            u2(out, 0); // Fields
+            u2(out, 2); // Methods
+
+            // public <init>() { super(); }
+            byte[] init = { 0x2A, (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xB1 };
+            method(out, initName, initDesc, codeAttr, 1, 1, init);
+            // public int run(SwitchInterpreter k)
+            method(out, runName, runDesc, codeAttr, 8, 2, body);
+
+            u2(out, 0); // Attributes
+            return out.toByteArray();
+        }
+
+        private void method(ByteArrayOutputStream out, int name, int desc, int codeAttr,
+                int maxStack, int maxLocals, byte[] body){
+            u2(out, 0x0001); // ACC_PUBLIC
+            u2(out, name);
+            u2(out, desc);
+            u2(out, 1);
+            u2(out, codeAttr);
+            u4(out, 12 + body.length);
+            u2(out, maxStack);
+            u2(out, maxLocals);
+            u4(out, body.length);
+            out.writeBytes(body);
+            u2(out, 0); // Exception table
+            u2(out, 0); // Attributes
+        }
+
+
+        ///////////////////////////////////////////////////////////////////////
+        // TRANSLATION
+        // The running cycle count stays on the operand stack for the whole
+        // method; each instruction adds its base cycles (and penalties) to it.
+        private void emitBlock(){
+            iconst(0);
+            aload1();
+            call("setU", "()V");
+
+            int addr = start;
+            boolean terminated = false;
+            while (addr < end) {
+                Instruction instr = cpu.lookup[peek(addr)];
+                int next = addr + length(instr.addrmodeName);
+                int operand = next - addr == 3 ? (peek(addr + 2) << 8) | peek(addr + 1)
+                        : next - addr == 2 ? peek(addr + 1) : 0;
+
+                if (isTerminator(instr)) {
+                    emitTerminator(instr, addr, next, operand);
+                    terminated = true;
+                } else {
+                    boolean check = emitInstruction(instr, addr, operand);
+                    if (check && next < end) emitAbortCheck(next);
+                }
+                addr = next;
+            }
+
+            // A block ending at the top of memory falls through to $0000
+            if (!terminated) setPc(end & 0xFFFF);
+            code.write(0xAC); // ireturn
+        }
+
+        // Emits one non-terminating instruction and returns whether the block
+        // must check for an abort after it: it may write to memory or unmask
+        // an interrupt
+        private boolean emitInstruction(Instruction instr, int addr, int operand){
+            String mode = instr.addrmodeName;
+            if (mayReachDevice(mode)) sync();
+            switch (instr.name) {
+                case "ORA": case "AND": case "EOR": case "ADC": case "SBC":
+                case "CMP": case "CPX": case "CPY": case "BIT":
+                case "LDA": case "LDX": case "LDY":
+                    if ("IMP".equals(mode)) return interpret(addr);
+                    aload1();
+                    emitValue(mode, operand);
+                    call(readKernel(instr.name), "(I)V");
+                    addCycles(instr.cycles);
+                    if (hasPenalty(instr.name, mode)) {
+                        aload1();
+                        call("penalty", "()I");
+                        code.write(0x60); // iadd
+                    }
+                    return false;
+                case "STA": case "STX": case "STY":
+                    aload1();
+                    emitAddress(mode, operand);
+                    call(instr.name.toLowerCase(), "(I)V");
+                    addCycles(instr.cycles);
+                    return true;
+                case "ASL": case "ROL": case "LSR": case "ROR":
+                    aload1();
+                    if ("IMP".equals(mode)) {
+                        call(instr.name.toLowerCase() + "A", "()V");
+                        addCycles(instr.cycles);
+                        return false;
+                    }
+                    emitAddress(mode, operand);
+                    call(instr.name.toLowerCase() + "At", "(I)V");
+                    addCycles(instr.cycles);
+                    return true;
+                case "DEC": case "INC":
+                    aload1();
+                    emitAddress(mode, operand);
+                    call(instr.name.toLowerCase(), "(I)V");
+                    addCycles(instr.cycles);
+                    return true;
+                case "INX": case "INY": case "DEX": case "DEY":
+                case "TAX": case "TAY": case "TSX": case "TXA": case "TYA": case "TXS":
+                case "PLA":
+                case "CLC": case "SEC": case "SEI": case "CLV": case "CLD": case "SED":
+                    aload1();
+                    call(instr.name.toLowerCase(), "()V");
+                    addCycles(instr.cycles);
+                    return false;
+                case "CLI": case "PLP":
+                    // Can unmask a waiting IRQ, so checked like a write
+                    aload1();
+                    call(instr.name.toLowerCase(), "()V");
+                    addCycles(instr.cycles);
+                    return true;
+                case "PHA":
+                    aload1();
+                    call("pha", "()V");
+                    addCycles(instr.cycles);
+                    return true;
+                case "PHP":
+                    aload1();
+                    call("php", "()V");
+                    aload1();
+                    call("setU", "()V");
+                    addCycles(instr.cycles);
+                    return true;
+                case "NOP":
+                    addCycles(instr.cycles);
+                    return false;
+                default:
+                    // Unofficial opcodes are rare enough to just interpret
+                    return interpret(addr);
+            }
+        }
+
+        private void emitTerminator(Instruction instr, int addr, int next, int operand){
+            if ("REL".equals(instr.addrmodeName)) {
+                int rel = (operand & 0x80) == 0x80 ? operand | 0xFF00 : operand;
+                int target = (next + rel) & 0xFFFF;
+                int mask, expect;
+                switch (instr.name) {
+                    case "BPL": mask = FLAGS6502.N.getValue(); expect = 0; break;
+                    case "BMI": mask = FLAGS6502.N.getValue(); expect = mask; break;
+                    case "BVC": mask = FLAGS6502.V.getValue(); expect = 0; break;
+                    case "BVS": mask = FLAGS6502.V.getValue(); expect = mask; break;
+                    case "BCC": mask = FLAGS6502.C.getValue(); expect = 0; break;
+                    case "BCS": mask = FLAGS6502.C.getValue(); expect = mask; break;
+                    case "BNE": mask = FLAGS6502.Z.getValue(); expect = 0; break;
+                    default:    mask = FLAGS6502.Z.getValue(); expect = mask; break; // BEQ
+                }
+                setPc(next & 0xFFFF);
+                aload1();
+                iconst(mask);
+                iconst(expect);
+                iconst(target);
+                call("branchIf", "(III)I");
+                code.write(0x60); // iadd
+                addCycles(instr.cycles);
+            } else if ("JMP".equals(instr.name) && "ABS".equals(instr.addrmodeName)) {
+                setPc(operand);
+                addCycles(instr.cycles);
+            } else {
+                interpret(addr);
+            }
+        }
+
+        // Hands the instruction at "addr" to the interpreter
+        private boolean interpret(int addr){
+            sync();
+            setPc(addr);
+            aload1();
+            call("execute", "()I");
+            code.write(0x60); // iadd
+            return true;
+        }
+
+        // Leaves the block at "next" if a write invalidated compiled code or an
+        // interrupt is waiting
+        private void emitAbortCheck(int next){
+            aload1();
+            call("aborted", "()Z");
+            // ifeq over: aload_1, push next, invokevirtual setPc, ireturn
+            int skip = 3 + 1 + iconstLength(next) + 3 + 1;
+            code.write(0x99); // ifeq
+            code.write(skip >> 8);
+            code.write(skip);
+            setPc(next);
+            code.write(0xAC); // ireturn
+        }
+
+        // Pushes the operand value of a reading instruction
+        private void emitValue(String mode, int operand){
+            if ("IMM".equals(mode)) {
+                iconst(operand);
+                return;
+            }
+            aload1();
+            emitAddress(mode, operand);
+            call("rd", "(I)I");
+        }
+
+        // Pushes the effective address
+        private void emitAddress(String mode, int operand){
+            switch (mode) {
+                case "ZP0": case "ABS":
+                    iconst(operand);
+                    return;
+                case "ZPX": indexedAddress("zpxAt", operand); return;
+                case "ZPY": indexedAddress("zpyAt", operand); return;
+                case "ABX": indexedAddress("abxAt", operand); return;
+                case "ABY": indexedAddress("abyAt", operand); return;
+                case "IZX": indexedAddress("izxAt", operand); return;
+                case "IZY": indexedAddress("izyAt", operand); return;
+                default: indexedAddress("indAt", operand); return;
+            }
+        }
+
+        private void indexedAddress(String kernel, int operand){
+            aload1();
+            iconst(operand);
+            call(kernel, "(I)I");
+        }
+
+        private String readKernel(String name){
+            switch (name) {
+                case "CMP": return "cmpA";
+                case "CPX": return "cmpX";
+                case "CPY": return "cmpY";
+                default: return name.toLowerCase();
+            }
+        }
+
+        // Same rule as the table engine: only operations that can take an extra
+        // cycle pay for an indexed page cross
+        private boolean hasPenalty(String name, String mode){
+            if (!"ABX".equals(mode) && !"ABY".equals(mode) && !"IZY".equals(mode)) return false;
+            switch (name) {
+                case "ORA": case "AND": case "EOR": case "ADC": case "SBC":
+                case "CMP": case "LDA": case "LDX": case "LDY":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+
+        // Passes the cycle count on top of the stack to sync(), leaving it there
+        private void sync(){
+            code.write(0x59); // dup
+            aload1();
+            code.write(0x5F); // swap
+            call("sync", "(I)V");
+        }
+
+        private boolean mayReachDevice(String mode){
+            switch (mode) {
+                case "IMP": case "IMM": case "ZP0": case "ZPX": case "ZPY": return false;
+                default: return true;
+            }
+        }
+
+
+        ///////////////////////////////////////////////////////////////////////
+        // BYTECODE
+        private void setPc(int pc){
+            aload1();
+            iconst(pc);
+            call("setPc", "(I)V");
+        }
+
+        private void addCycles(int n){
+            iconst(n);
+            code.write(0x60); // iadd
+        }
+
+        private void aload1(){
+            code.write(0x2B);
+        }
+
+        private void call(String name, String desc){
+            int ref = methodRef(KERNEL, name, desc);
+            code.write(0xB6); // invokevirtual
+            code.write(ref >> 8);
+            code.write(ref);
+        }
+
+        private int iconstLength(int v){
+            if (v >= -1 && v <= 5) return 1;
+            if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) return 2;
+            return 3; // sipush or ldc_w
+        }
+
+        private void iconst(int v){
+            if (v >= -1 && v <= 5) {
+                code.write(0x03 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                code.write(0x10); // bipush
+                code.write(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                code.write(0x11); // sipush
+                code.write(v >> 8);
+                code.write(v);
+            } else {
+                int index = integer(v);
+                code.write(0x13); // ldc_w
+                code.write(index >> 8);
+                code.write(index);
+            }
+        }
+
+
+        ///////////////////////////////////////////////////////////////////////
+        // CONSTANT POOL
+        private int utf8(String s){
+            return constant("U" + s, 1, () -> {
+                byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                u2(pool, bytes.length);
+                pool.writeBytes(bytes);
+            });
+        }
+
+        private int integer(int v){
+            return constant("I" + v, 3, () -> u4(pool, v));
+        }
+
+        private int classRef(String name){
+            int n = utf8(name);
+            return constant("C" + name, 7, () -> u2(pool, n));
+        }
+
+        private int methodRef(String owner, String name, String desc){
+            int c = classRef(owner);
+            int n = utf8(name);
+            int d = utf8(desc);
+            int nt = constant("T" + name + desc, 12, () -> { u2(pool, n); u2(pool, d); });
+            return constant("M" + owner + "." + name + desc, 10, () -> { u2(pool, c); u2(pool, nt); });
+        }
+
+        private int constant(String key, int tag, Runnable body){
+            Integer index = poolIndex.get(key);
+            if (index != null) return index;
+            pool.write(tag);
+            body.run();
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
+    }
+
+    private static void u2(ByteArrayOutputStream out, int v){
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private static void u4(ByteArrayOutputStream out, int v){
+        u2(out, v >>> 16);
+        u2(out, v);
+    }
+
+}
@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import utils.BreakpointKind;
+
+
+// Execution breakpoints and memory watchpoints, for the debugger. Each kind
+// has a bitmap of the 64K addresses, so checking an address is one load and
+// a mask, and the breakpoints of an address are only looked at when its bit
+// is set.
+//
+// None of it costs anything while nothing is set:
+//   - CPU6502 looks at "armed" once per bulk run. Only while it is set does
+//     it run a loop that checks the bitmap before every instruction, a
+//     single instruction at a time (the JIT falls back to its interpreter)
+//   - Bus only sends the pages holding a watched address through its trap
+//     device, every other page keeps its direct entries
+// A condition is compiled by Condition when the breakpoint is set, and tested
+// when the address is hit. A hit stops the run, before the instruction for
+// EXECUTE and after it for READ and WRITE, and the machine stays stopped
+// until resume(). Reads made with bReadOnly, e.g. by the debugger's own
+// views, do not hit.
+//
+// Only the thread running the machine may touch this, see Emulator.submit().
+public class Breakpoints {
+
+    public static final class Breakpoint {
+        public final int id;
+        public final BreakpointKind kind;
+        public final int addr;
+        public final String condition; // Null for none
+        private final Predicate<CPU6502> test;
+        private long hits = 0;
+        private Breakpoint next = null; // Other breakpoint of the same kind and address
+
+        private Breakpoint(int id, BreakpointKind kind, int addr, String condition) {
+            this.id = id;
+            this.kind = kind;
+            this.addr = addr;
+            this.condition = condition;
+            test = condition == null ? null : Condition.compile(condition);
+        }
+
+        // Times it stopped the machine
+        public long hits(){
+            return hits;
+        }
+
+        @Override
+        public String toString(){
+            String text = String.format("#%d %s $%04X", id, kind, addr);
+            return condition == null ? text : text + " if " + condition;
+        }
+    }
+
+    private static final int KINDS = BreakpointKind.values().length;
+    private static final int EXECUTE = BreakpointKind.EXECUTE.ordinal();
+    private static final int READ = BreakpointKind.READ.ordinal();
+    private static final int WRITE = BreakpointKind.WRITE.ordinal();
+
+    // Set while any breakpoint is, for the checks in CPU6502
+    boolean armed = false;
+    // Set by a hit, until resume()
+    boolean hit = false;
+
+    private final Bus bus;
+    private final long[][] bitmaps = new long[KINDS][0x10000 / 64];
+    private final Breakpoint[][] chains = new Breakpoint[KINDS][]; // Per address, allocated when first used
+    private final int[][] pageCounts = new int[KINDS][256]; // Breakpoints in each page, the pages Bus traps
+    private final List<Breakpoint> all = new ArrayList<>();
+    private int nextId = 1;
+    private Breakpoint stoppedBy = null;
+    private int skip = -1; // Address resume() lets the next instruction run from
+
+    Breakpoints(Bus bus) {
+        this.bus = bus;
+    }
+
+
+    // Sets a breakpoint and returns its id. The condition may be null. Throws
+    // IllegalArgumentException if it does not compile
+    public int add(BreakpointKind kind, int addr, String condition){
+        if ((addr >>> 16) != 0) throw new IllegalArgumentException("Address out of range: " + addr);
+        Breakpoint breakpoint = new Breakpoint(nextId, kind, addr, condition);
+        nextId++;
+        int k = kind.ordinal();
+        if (chains[k] == null) chains[k] = new Breakpoint[0x10000];
+        breakpoint.next = chains[k][addr];
+        chains[k][addr] = breakpoint;
+        bitmaps[k][addr >> 6] |= 1L << addr;
+        if (pageCounts[k][addr >> 8]++ == 0) trap(kind, addr >> 8, true);
+        all.add(breakpoint);
+        armed = true;
+        return breakpoint.id;
+    }
+
+    // Returns false if there is no breakpoint with that id
+    public boolean remove(int id){
+        for (Breakpoint breakpoint : all) {
+            if (breakpoint.id == id) {
+                unlink(breakpoint);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Removes the execution breakpoints at addr, or sets one if there are
+    // none. Returns true if it set one
+    public boolean toggle(int addr){
+        boolean removed = false;
+        for (Breakpoint breakpoint : list()) {
+            if (breakpoint.kind == BreakpointKind.EXECUTE && breakpoint.addr == addr) {
+                unlink(breakpoint);
+                removed = true;
+            }
+        }
+        if (!removed) add(BreakpointKind.EXECUTE, addr, null);
+        return !removed;
+    }
+
+    public void clear(){
+        for (Breakpoint breakpoint : list()) unlink(breakpoint);
+    }
+
+    // The breakpoints set, in the order they were
+    public List<Breakpoint> list(){
+        return new ArrayList<>(all);
+    }
+
+    // True while a hit holds the machine
+    public boolean hit(){
+        return hit;
+    }
+
+    // What the machine stopped on, null if it is not stopped
+    public Breakpoint stoppedBy(){
+        return hit ? stoppedBy : null;
+    }
+
+    // Lets the machine run again. The instruction at pc runs even if it has a
+    // breakpoint, so continuing from one does not stop on it straight away
+    public void resume(){
+        hit = false;
+        skip = bus.cpu.pc;
+    }
+
+    private void unlink(Breakpoint breakpoint){
+        int k = breakpoint.kind.ordinal();
+        int addr = breakpoint.addr;
+        Breakpoint previous = null;
+        for (Breakpoint b = chains[k][addr]; b != breakpoint; b = b.next) previous = b;
+        if (previous == null) chains[k][addr] = breakpoint.next;
+        else previous.next = breakpoint.next;
+        if (chains[k][addr] == null) bitmaps[k][addr >> 6] &= ~(1L << addr);
+        if (--pageCounts[k][addr >> 8] == 0) trap(breakpoint.kind, addr >> 8, false);
+        all.remove(breakpoint);
+        armed = !all.isEmpty();
+    }
+
+    private void trap(BreakpointKind kind, int page, boolean trapped){
+        if (kind == BreakpointKind.READ) bus.trapReads(page, trapped);
+        else if (kind == BreakpointKind.WRITE) bus.trapWrites(page, trapped);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // CHECKS
+    boolean executes(int addr){
+        return (bitmaps[EXECUTE][addr >> 6] & (1L << addr)) != 0;
+    }
+
+    // Before the instruction at the CPU's pc, while armed. True if the CPU
+    // must not run it
+    boolean stopAt(CPU6502 cpu){
+        int skipped = skip;
+        skip = -1;
+        if (hit) return true;
+        int pc = cpu.pc;
+        if (pc == skipped || !executes(pc)) return false;
+        return test(chains[EXECUTE][pc], cpu);
+    }
+
+    // From the trap device of Bus, for pages with watched addresses
+    void read(int addr){
+        if ((bitmaps[READ][addr >> 6] & (1L << addr)) != 0) test(chains[READ][addr], bus.cpu);
+    }
+
+    void written(int addr){
+        if ((bitmaps[WRITE][addr >> 6] & (1L << addr)) != 0) test(chains[WRITE][addr], bus.cpu);
+    }
+
+    // Stops on the first breakpoint of the chain whose condition holds
+    private boolean test(Breakpoint chain, CPU6502 cpu){
+        for (Breakpoint b = chain; b != null; b = b.next) {
+            if (b.test == null || b.test.test(cpu)) {
+                b.hits++;
+                if (!hit) {
+                    hit = true;
+                    stoppedBy = b;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -1,43 +1,706 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import utils.BusDevice;
+import utils.CpuEngine;
+import utils.StatefulDevice;
+import utils.WriteListener;
 
 
 
 public class Bus {
 
+    private static final int[] NO_PAGES = new int[0];
+    private static final int RAM_SIZE = 64*1024;
+
     // Dispositivos no barramento
     public CPU6502 cpu;
-    // RAM fake
-    public int[] ram = new int[64*1024];
+    // RAM fake. Null when the Bus was built on byte sized or off-heap RAM
+    public int[] ram;
+    // Event recording, disabled until enabled
+    public final Tracer tracer;
+    // Master clock, runs the CPU and the clocked devices together
+    public final Scheduler scheduler;
+    // Breakpoints and watchpoints, none set until added
+    public final Breakpoints breakpoints;
+
+    // Page table, one entry per 256 byte page of the address space. A page is
+    // backed by memory, accessed as memory[offset + addr], or handled by a
+    // device. Reads and writes are mapped separately, so ROM can be read
+    // straight from its array while writes to it go to a mapper. A page with
+    // neither reads as 0 and ignores writes.
+    // Memory is an int[], a byte[] or a ByteBuffer (off-heap or a mapped
+    // file). Only one of the typed entries of a page is set, int[] is checked
+    // first. readBacking/writeBacking hold whichever it is.
+    // Mirroring and bank switching only change these entries, see mapMemory()
+    private final Object[] readBacking = new Object[256];
+    private final int[][] readMemory = new int[256][];
+    private final byte[][] readBytes = new byte[256][];
+    private final ByteBuffer[] readBuffers = new ByteBuffer[256];
+    private final BusDevice[] readDevices = new BusDevice[256];
+    private final int[] readOffset = new int[256];
+    private final Object[] writeBacking = new Object[256];
+    private final int[][] writeMemory = new int[256][];
+    private final byte[][] writeBytes = new byte[256][];
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[256];
+    private final BusDevice[] writeDevices = new BusDevice[256];
+    private final int[] writeOffset = new int[256];
+
+    // Pages whose reads show what is written through each page (more than one
+    // when the memory is mirrored), and the reverse
+    private final int[][] aliases = new int[256][];
+    private final int[][] writers = new int[256][];
+
+    // Pages (256 bytes each) that someone keeps derived data for, e.g. compiled
+    // code. Each entry is a bitmask of the listeners watching that page.
+    // watchedPages also includes the watches on its aliases, so an unwatched
+    // write only costs one array load
+    private final int[] watches = new int[256];
+    private final int[] watchedPages = new int[256];
+    private WriteListener[] listeners = new WriteListener[0];
+
+    // Pages with watched addresses. Their typed entries are cleared and the
+    // device entry points at "trap", so only their accesses reach the
+    // Breakpoints; the backing entries stay as mapped
+    private final boolean[] readTrapped = new boolean[256];
+    private final boolean[] writeTrapped = new boolean[256];
+    private final BusDevice trap = new BusDevice() {
+        @Override
+        public int read(int addr, boolean bReadOnly){
+            int data = readBacked(addr >> 8, addr, bReadOnly);
+            if (!bReadOnly) breakpoints.read(addr);
+            return data;
+        }
 
+        @Override
+        public void write(int addr, int data){
+            int page = addr >> 8;
+            if (writeBacked(page, addr, data) && watchedPages[page] != 0) notifyWrite(page, addr);
+            breakpoints.written(addr);
+        }
+    };
 
     
 
     public Bus(){
+        this(CpuEngine.TABLE);
+    }
+
+    public Bus(CpuEngine engine){
+        this(engine, (Object) new int[RAM_SIZE]);
+    }
+
+    // RAM with one byte per cell, a quarter of the heap of the int[] RAM
+    public Bus(CpuEngine engine, byte[] memory){
+        this(engine, (Object) memory);
+    }
+
+    // RAM outside the heap, see offHeapRam() and mappedRam()
+    public Bus(CpuEngine engine, ByteBuffer memory){
+        this(engine, (Object) memory);
+    }
+
+    private Bus(CpuEngine engine, Object memory){
         // Conectar CPU ao barramento de comunicação
-        cpu = new CPU6502();
+        cpu = new CPU6502(engine);
+        tracer = new Tracer(cpu);
+        scheduler = new Scheduler(cpu);
+        breakpoints = new Breakpoints(this);
         cpu.ConnectBus(this);
 
         //Limpar o conteudo da Ram
-        Arrays.fill(ram,0);
+        if (memory instanceof int[]) {
+            ram = (int[]) memory;
+            Arrays.fill(ram,0);
+        }
+
+        // Whole address space is RAM until something else is mapped
+        map(0x00, 256, memory, 0, true);
+    }
+
+    // 64 KB of RAM in native memory, for Bus(CpuEngine, ByteBuffer)
+    public static ByteBuffer offHeapRam(){
+        return ByteBuffer.allocateDirect(RAM_SIZE);
+    }
 
+    // 64 KB of RAM kept in file, so other processes can map it and watch the
+    // memory change live. The file is created or extended as needed and keeps
+    // its content
+    public static ByteBuffer mappedRam(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, RAM_SIZE);
+        }
     }
 
     public void write(int addr,int data){
-        if (addr >=0x0000 && addr <= 0xFFFF){
-            System.out.println("write in "+addr+" data:"+data);
-            this.ram[addr]=data;
+        if ((addr >>> 16) == 0){
+            if ((tracer.categories & Tracer.WRITES) != 0) tracer.record(Tracer.WRITE, addr, data);
+            int page = addr >> 8;
+            int[] memory = writeMemory[page];
+            if (memory != null) {
+                memory[writeOffset[page] + addr] = data;
+            } else if (!writeOther(page, addr, data)) {
+                return;
+            }
+            if (watchedPages[page] != 0) notifyWrite(page, addr);
         }
 
     }
 
+    // Writes to pages not backed by an int[], returns false if no memory changed
+    private boolean writeOther(int page, int addr, int data){
+        byte[] bytes = writeBytes[page];
+        if (bytes != null) {
+            bytes[writeOffset[page] + addr] = (byte) data;
+            return true;
+        }
+        ByteBuffer buffer = writeBuffers[page];
+        if (buffer != null) {
+            buffer.put(writeOffset[page] + addr, (byte) data);
+            return true;
+        }
+        if (writeDevices[page] != null) writeDevices[page].write(addr, data);
+        return false;
+    }
+
     public int read(int addr, boolean bReadOnly){
-        if ( addr >=0x0000 && addr <=0xFFFF){
-            //System.out.println(ram[addr]+" addr:"+addr);
-            return this.ram[addr];
+        if ((addr >>> 16) == 0){
+            int page = addr >> 8;
+            int[] memory = readMemory[page];
+            int data;
+            if (memory != null) data = memory[readOffset[page] + addr];
+            else data = readOther(page, addr, bReadOnly);
+            if ((tracer.categories & Tracer.READS) != 0 && !bReadOnly) tracer.record(Tracer.READ, addr, data);
+            return data;
         }
         return 0;
 
     }
 
+    private int readOther(int page, int addr, boolean bReadOnly){
+        byte[] bytes = readBytes[page];
+        if (bytes != null) return bytes[readOffset[page] + addr] & 0x00FF;
+        ByteBuffer buffer = readBuffers[page];
+        if (buffer != null) return buffer.get(readOffset[page] + addr) & 0x00FF;
+        BusDevice device = readDevices[page];
+        if (device != null) return device.read(addr, bReadOnly);
+        return 0;
+    }
+
+    // Stores straight into the memory that addr reads from, even read-only
+    // memory, without tracing. For loading programs and ROM images
+    public void poke(int addr, int data){
+        int page = (addr >> 8) & 0xFF;
+        Object backing = readBacking[page];
+        int index = readOffset[page] + (addr & 0xFFFF);
+        if (backing instanceof int[]) ((int[]) backing)[index] = data;
+        else if (backing instanceof byte[]) ((byte[]) backing)[index] = (byte) data;
+        else if (backing instanceof ByteBuffer) ((ByteBuffer) backing).put(index, (byte) data);
+        else return;
+
+        // Someone may have decoded the old value
+        for (int other = 0; other < 256; other++) {
+            int watch = watches[other];
+            if (watch != 0 && readBacking[other] == backing && readOffset[other] + (other << 8) == readOffset[page] + (page << 8)) {
+                while (watch != 0) {
+                    listeners[Integer.numberOfTrailingZeros(watch)].written((other << 8) | (addr & 0xFF));
+                    watch &= watch - 1;
+                }
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // MEMORY MAP
+
+    // Maps pageCount pages from firstPage onto memory, starting at offset.
+    // Read-only memory ignores writes
+    public void mapMemory(int firstPage, int pageCount, int[] memory, int offset, boolean writable){
+        map(firstPage, pageCount, memory, offset, writable);
+    }
+
+    public void mapMemory(int firstPage, int pageCount, byte[] memory, int offset, boolean writable){
+        map(firstPage, pageCount, memory, offset, writable);
+    }
+
+    public void mapMemory(int firstPage, int pageCount, ByteBuffer memory, int offset, boolean writable){
+        if (writable && memory.isReadOnly()) throw new IllegalArgumentException("Buffer is read-only");
+        map(firstPage, pageCount, memory, offset, writable);
+    }
+
+    // Points only the reads of the pages at read-only memory, leaving writes to
+    // whatever handles them, e.g. to switch the ROM bank under the registers
+    // of a cartridge mapper. Memory that is not writable anywhere does not
+    // take part in mirroring, so this costs a few stores per page rather than
+    // a rebuild of the alias lists
+    public void mapReadMemory(int firstPage, int pageCount, ByteBuffer memory, int offset){
+        checkPages(firstPage, pageCount);
+        if (offset < 0 || offset + pageCount * 256 > memory.capacity()) {
+            throw new IllegalArgumentException("Mapping runs past the end of the memory");
+        }
+        boolean aliased = contains(writableMemory, writableMemory.length, memory);
+        for (int page = firstPage; page < firstPage + pageCount; page++) {
+            if (contains(writableMemory, writableMemory.length, readBacking[page])) aliased = true;
+        }
+        for (int i = 0; i < pageCount; i++) {
+            int page = firstPage + i;
+            mapRead(page, memory, offset + i * 256 - (page << 8));
+        }
+        if (aliased) {
+            remapped(firstPage, pageCount);
+            return;
+        }
+        for (int page = firstPage; page < firstPage + pageCount; page++) {
+            int watch = watches[page];
+            while (watch != 0) {
+                listeners[Integer.numberOfTrailingZeros(watch)].remapped(page);
+                watch &= watch - 1;
+            }
+        }
+    }
+
+    private void map(int firstPage, int pageCount, Object memory, int offset, boolean writable){
+        checkPages(firstPage, pageCount);
+        if (offset < 0 || offset + pageCount * 256 > length(memory)) {
+            throw new IllegalArgumentException("Mapping runs past the end of the memory");
+        }
+        for (int i = 0; i < pageCount; i++) {
+            int page = firstPage + i;
+            int start = offset + i * 256 - (page << 8);
+            mapRead(page, memory, start);
+            mapWrite(page, writable ? memory : null, start);
+        }
+        remapped(firstPage, pageCount);
+    }
+
+    private static int length(Object memory){
+        if (memory instanceof int[]) return ((int[]) memory).length;
+        if (memory instanceof byte[]) return ((byte[]) memory).length;
+        return ((ByteBuffer) memory).capacity();
+    }
+
+    // Hands every read and write on the pages to device
+    public void mapDevice(int firstPage, int pageCount, BusDevice device){
+        checkPages(firstPage, pageCount);
+        for (int page = firstPage; page < firstPage + pageCount; page++) {
+            mapRead(page, device, 0);
+            mapWrite(page, device, 0);
+        }
+        remapped(firstPage, pageCount);
+    }
+
+    // Hands writes on the pages to device and leaves reads as they are, e.g.
+    // for the registers of a cartridge mapper sitting on top of its ROM
+    public void mapWriteDevice(int firstPage, int pageCount, BusDevice device){
+        checkPages(firstPage, pageCount);
+        for (int page = firstPage; page < firstPage + pageCount; page++) {
+            mapWrite(page, device, 0);
+        }
+        remapped(firstPage, pageCount);
+    }
+
+    // Repeats the sourceCount pages from sourcePage over pageCount pages from
+    // firstPage. The two ranges must not overlap
+    public void mirror(int firstPage, int pageCount, int sourcePage, int sourceCount){
+        checkPages(firstPage, pageCount);
+        checkPages(sourcePage, sourceCount);
+        if (sourceCount == 0 || (firstPage < sourcePage + sourceCount && sourcePage < firstPage + pageCount)) {
+            throw new IllegalArgumentException("Mirror overlaps its source");
+        }
+        for (int i = 0; i < pageCount; i++) {
+            int page = firstPage + i;
+            int source = sourcePage + i % sourceCount;
+            int shift = (source - page) << 8;
+            mapRead(page, readBacking[source], readOffset[source] + shift);
+            mapWrite(page, writeBacking[source], writeOffset[source] + shift);
+        }
+        remapped(firstPage, pageCount);
+    }
+
+    // Leaves the pages open, they read as 0 and ignore writes
+    public void unmap(int firstPage, int pageCount){
+        checkPages(firstPage, pageCount);
+        for (int page = firstPage; page < firstPage + pageCount; page++) {
+            mapRead(page, null, 0);
+            mapWrite(page, null, 0);
+        }
+        remapped(firstPage, pageCount);
+    }
+
+    // Points the reads of a page at memory or a device, or at nothing for null
+    private void mapRead(int page, Object backing, int start){
+        readBacking[page] = backing;
+        readMemory[page] = backing instanceof int[] ? (int[]) backing : null;
+        readBytes[page] = backing instanceof byte[] ? (byte[]) backing : null;
+        readBuffers[page] = backing instanceof ByteBuffer ? (ByteBuffer) backing : null;
+        readDevices[page] = backing instanceof BusDevice ? (BusDevice) backing : null;
+        readOffset[page] = start;
+        if (readTrapped[page]) {
+            readMemory[page] = null;
+            readBytes[page] = null;
+            readBuffers[page] = null;
+            readDevices[page] = trap;
+        }
+    }
+
+    private void mapWrite(int page, Object backing, int start){
+        writeBacking[page] = backing;
+        writeMemory[page] = backing instanceof int[] ? (int[]) backing : null;
+        writeBytes[page] = backing instanceof byte[] ? (byte[]) backing : null;
+        writeBuffers[page] = backing instanceof ByteBuffer ? (ByteBuffer) backing : null;
+        writeDevices[page] = backing instanceof BusDevice ? (BusDevice) backing : null;
+        writeOffset[page] = start;
+        if (writeTrapped[page]) {
+            writeMemory[page] = null;
+            writeBytes[page] = null;
+            writeBuffers[page] = null;
+            writeDevices[page] = trap;
+        }
+    }
+
+    // Sends the accesses of a page through "trap", for Breakpoints
+    void trapReads(int page, boolean trapped){
+        readTrapped[page] = trapped;
+        mapRead(page, readBacking[page], readOffset[page]);
+    }
+
+    void trapWrites(int page, boolean trapped){
+        writeTrapped[page] = trapped;
+        mapWrite(page, writeBacking[page], writeOffset[page]);
+    }
+
+    // Reads and writes a trapped page the way its typed entries would. The
+    // write returns false if no memory changed
+    private int readBacked(int page, int addr, boolean bReadOnly){
+        Object backing = readBacking[page];
+        int index = readOffset[page] + addr;
+        if (backing instanceof int[]) return ((int[]) backing)[index];
+        if (backing instanceof byte[]) return ((byte[]) backing)[index] & 0x00FF;
+        if (backing instanceof ByteBuffer) return ((ByteBuffer) backing).get(index) & 0x00FF;
+        if (backing instanceof BusDevice) return ((BusDevice) backing).read(addr, bReadOnly);
+        return 0;
+    }
+
+    private boolean writeBacked(int page, int addr, int data){
+        Object backing = writeBacking[page];
+        int index = writeOffset[page] + addr;
+        if (backing instanceof int[]) ((int[]) backing)[index] = data;
+        else if (backing instanceof byte[]) ((byte[]) backing)[index] = (byte) data;
+        else if (backing instanceof ByteBuffer) ((ByteBuffer) backing).put(index, (byte) data);
+        else {
+            if (backing instanceof BusDevice) ((BusDevice) backing).write(addr, data);
+            return false;
+        }
+        return true;
+    }
+
+    private static void checkPages(int firstPage, int pageCount){
+        if (firstPage < 0 || pageCount < 0 || firstPage + pageCount > 256) {
+            throw new IllegalArgumentException("Pages out of range");
+        }
+    }
+
+    private void remapped(int firstPage, int pageCount){
+        rebuildAliases();
+        for (int page = firstPage; page < firstPage + pageCount; page++) {
+            int watch = watches[page];
+            while (watch != 0) {
+                listeners[Integer.numberOfTrailingZeros(watch)].remapped(page);
+                watch &= watch - 1;
+            }
+        }
+    }
+
+    private void rebuildAliases(){
+        Object[] writable = new Object[256];
+        int writableCount = 0;
+        int[] found = new int[256];
+        int[] writerCount = new int[256];
+        for (int page = 0; page < 256; page++) {
+            Object memory = writeBacking[page];
+            int count = 0;
+            if (memory != null && !(memory instanceof BusDevice)) {
+                if (!contains(writable, writableCount, memory)) writable[writableCount++] = memory;
+                int start = writeOffset[page] + (page << 8);
+                for (int other = 0; other < 256; other++) {
+                    if (readBacking[other] == memory && readOffset[other] + (other << 8) == start) {
+                        found[count++] = other;
+                        writerCount[other]++;
+                    }
+                }
+            }
+            int[] old = aliases[page];
+            if (old == null || !Arrays.equals(old, 0, old.length, found, 0, count)) {
+                aliases[page] = count == 0 ? NO_PAGES : Arrays.copyOf(found, count);
+            }
+        }
+
+        for (int page = 0; page < 256; page++) {
+            writers[page] = writerCount[page] == 0 ? NO_PAGES : new int[writerCount[page]];
+            writerCount[page] = 0;
+        }
+        for (int page = 0; page < 256; page++) {
+            for (int other : aliases[page]) {
+                writers[other][writerCount[other]++] = page;
+            }
+        }
+        for (int page = 0; page < 256; page++) {
+            updateWatch(page);
+        }
+        writableMemory = Arrays.copyOf(writable, writableCount);
+    }
+
+    private static boolean contains(Object[] items, int count, Object item){
+        for (int i = 0; i < count; i++) {
+            if (items[i] == item) return true;
+        }
+        return false;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // SAVE STATES
+    // Snapshot of the CPU, of all writable memory and of the devices added
+    // with addStateDevice(), little-endian:
+    //   8 bytes    "6502SAV" and the format version
+    //   56 bytes   CPU6502 registers and helper state
+    //   4 bytes    number of memory blocks, then for each, in page order
+    //     1 byte   bytes per cell, 4 for int[] RAM and 1 for the others
+    //     4 bytes  number of cells
+    //     the cells
+    //   4 bytes    number of devices, then for each, in the order added
+    //     4 bytes  size of its state
+    //     its state
+    // Memory is copied in bulk and nothing is allocated per save. A state can
+    // only be loaded into a Bus with the same kind of memory map and the same
+    // devices. Loading only drops decoded and compiled code for pages that
+    // actually change, so rolling back a few frames stays cheap
+    static final int STATE_VERSION = 3; // 2: 64-bit clockCount, 3: devices
+    private static final byte[] STATE_MAGIC = "6502SAV".getBytes(StandardCharsets.US_ASCII);
+
+    private Object[] writableMemory = new Object[0]; // Distinct memory mapped for writes, in page order
+    private StatefulDevice[] stateDevices = new StatefulDevice[0];
+    private int[] scratchCells = new int[0];
+    private byte[] scratchBytes = new byte[0];
+    private byte[] scratchLive = new byte[0];
+
+    // Has the state of device saved and loaded with the rest, after memory
+    public void addStateDevice(StatefulDevice device){
+        stateDevices = Arrays.copyOf(stateDevices, stateDevices.length + 1);
+        stateDevices[stateDevices.length - 1] = device;
+    }
+
+    // Bytes saveState() writes with the current memory map
+    public int stateSize(){
+        int size = 8 + CPU6502.STATE_BYTES + 4;
+        for (Object memory : writableMemory) size += 5 + length(memory) * cellBytes(memory);
+        size += 4;
+        for (StatefulDevice device : stateDevices) size += 4 + device.stateSize();
+        return size;
+    }
+
+    // Writes the state at the position of out and moves past it. Only call
+    // between instructions or bulk runs
+    public void saveState(ByteBuffer out){
+        ByteBuffer state = out.slice().order(ByteOrder.LITTLE_ENDIAN);
+        state.put(STATE_MAGIC).put((byte) STATE_VERSION);
+        cpu.saveState(state);
+        state.putInt(writableMemory.length);
+        for (Object memory : writableMemory) {
+            int cells = length(memory);
+            state.put((byte) cellBytes(memory)).putInt(cells);
+            if (memory instanceof int[]) {
+                state.asIntBuffer().put((int[]) memory);
+                state.position(state.position() + cells * 4);
+            } else if (memory instanceof byte[]) {
+                state.put((byte[]) memory);
+            } else {
+                state.put(state.position(), (ByteBuffer) memory, 0, cells);
+                state.position(state.position() + cells);
+            }
+        }
+        state.putInt(stateDevices.length);
+        for (StatefulDevice device : stateDevices) {
+            state.putInt(device.stateSize());
+            device.saveState(state);
+        }
+        out.position(out.position() + state.position());
+    }
+
+    // Restores a state written by saveState() and moves past it
+    public void loadState(ByteBuffer in){
+        ByteBuffer state = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : STATE_MAGIC) {
+            if (state.get() != b) throw new IllegalArgumentException("Not a save state");
+        }
+        int version = state.get();
+        if (version != STATE_VERSION) throw new IllegalArgumentException("Unsupported save state version " + version);
+        int cpuState = state.position();
+
+        // Check the whole layout before changing anything
+        state.position(cpuState + CPU6502.STATE_BYTES);
+        if (state.getInt() != writableMemory.length) throw new IllegalArgumentException("Save state has a different memory map");
+        int memoryState = state.position();
+        for (Object memory : writableMemory) {
+            int cellSize = state.get();
+            int cells = state.getInt();
+            if (cellSize != cellBytes(memory) || cells != length(memory)) {
+                throw new IllegalArgumentException("Save state has a different memory map");
+            }
+            state.position(state.position() + cells * cellSize);
+        }
+        if (state.getInt() != stateDevices.length) throw new IllegalArgumentException("Save state has different devices");
+        int deviceState = state.position();
+        for (StatefulDevice device : stateDevices) {
+            int size = state.getInt();
+            if (size != device.stateSize()) throw new IllegalArgumentException("Save state has different devices");
+            state.position(state.position() + size);
+        }
+        int end = state.position();
+
+        state.position(memoryState);
+        for (Object memory : writableMemory) {
+            state.position(state.position() + 5);
+            loadMemory(memory, state);
+        }
+        state.position(cpuState);
+        cpu.loadState(state);
+        state.position(deviceState);
+        for (StatefulDevice device : stateDevices) {
+            state.position(state.position() + 4);
+            device.loadState(state);
+        }
+        in.position(in.position() + end);
+    }
+
+    // Saves into a memory-mapped file, replacing it
+    public void saveState(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            saveState(channel.map(FileChannel.MapMode.READ_WRITE, 0, stateSize()));
+        }
+    }
+
+    public void loadState(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            loadState(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static int cellBytes(Object memory){
+        return memory instanceof int[] ? 4 : 1;
+    }
+
+    // Copies the cells of one block in, a page at a time, skipping pages that
+    // did not change
+    private void loadMemory(Object memory, ByteBuffer state){
+        int cells = length(memory);
+        if (memory instanceof int[]) {
+            int[] live = (int[]) memory;
+            if (scratchCells.length < cells) scratchCells = new int[cells];
+            state.asIntBuffer().get(scratchCells, 0, cells);
+            state.position(state.position() + cells * 4);
+            for (int start = 0; start < cells; start += 256) {
+                int end = Math.min(cells, start + 256);
+                if (Arrays.mismatch(live, start, end, scratchCells, start, end) >= 0) {
+                    System.arraycopy(scratchCells, start, live, start, end - start);
+                    changed(memory, start);
+                }
+            }
+            return;
+        }
+
+        if (scratchBytes.length < cells) {
+            scratchBytes = new byte[cells];
+            scratchLive = new byte[cells];
+        }
+        state.get(scratchBytes, 0, cells);
+        ByteBuffer buffer = memory instanceof ByteBuffer ? (ByteBuffer) memory : null;
+        byte[] live;
+        if (buffer != null) {
+            buffer.get(0, scratchLive, 0, cells);
+            live = scratchLive;
+        } else {
+            live = (byte[]) memory;
+        }
+        for (int start = 0; start < cells; start += 256) {
+            int end = Math.min(cells, start + 256);
+            if (Arrays.mismatch(live, start, end, scratchBytes, start, end) >= 0) {
+                if (buffer != null) buffer.put(start, scratchBytes, start, end - start);
+                else System.arraycopy(scratchBytes, start, live, start, end - start);
+                changed(memory, start);
+            }
+        }
+    }
+
+    // Tells the listeners watching pages that show memory[start..start+255]
+    private void changed(Object memory, int start){
+        for (int page = 0; page < 256; page++) {
+            int watch = watches[page];
+            if (watch == 0 || readBacking[page] != memory) continue;
+            int base = readOffset[page] + (page << 8);
+            if (base >= start + 256 || base + 256 <= start) continue;
+            while (watch != 0) {
+                listeners[Integer.numberOfTrailingZeros(watch)].remapped(page);
+                watch &= watch - 1;
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // WRITE LISTENERS
+
+    // Registers a listener and returns the id to watch pages with
+    public int addWriteListener(WriteListener listener){
+        if (listeners.length == 32) throw new IllegalStateException("Too many write listeners");
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        return listeners.length - 1;
+    }
+
+    public void watchPage(int id, int page){
+        watches[page] |= 1 << id;
+        for (int writer : writers[page]) updateWatch(writer);
+    }
+
+    public void unwatchPage(int id, int page){
+        watches[page] &= ~(1 << id);
+        for (int writer : writers[page]) updateWatch(writer);
+    }
+
+    // True if reads of the page come from a device. Its data can change
+    // without a write, which watching the page would not tell about
+    public boolean isDevicePage(int page){
+        return readBacking[page] instanceof BusDevice;
+    }
+
+    private void updateWatch(int page){
+        int watch = 0;
+        for (int alias : aliases[page]) watch |= watches[alias];
+        watchedPages[page] = watch;
+    }
+
+    // Tells the listeners watching any page that shows this write, at the
+    // address they see it on
+    private void notifyWrite(int page, int addr){
+        int low = addr & 0xFF;
+        for (int alias : aliases[page]) {
+            int watch = watches[alias];
+            while (watch != 0) {
+                listeners[Integer.numberOfTrailingZeros(watch)].written((alias << 8) | low);
+                watch &= watch - 1;
+            }
+        }
+    }
+
 
 }
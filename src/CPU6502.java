@@ -1,6 +1,9 @@
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Predicate;
+import utils.CpuEngine;
 import utils.FLAGS6502;
 
 
@@ -19,6 +22,13 @@ public class CPU6502 {
 
    Instruction[] lookup = new Instruction[256];
 
+   final CpuEngine engine; // How instructions are executed
+   private final SwitchInterpreter switchEngine; // Set for every engine but TABLE
+   final DecodeCache decodeCache; // Only set for CpuEngine.PREDECODE
+   final Recompiler recompiler; // Only set for CpuEngine.JIT
+   public final Profiler profiler = new Profiler(this); // Disabled until enabled
+   public final TraceRecorder recorder = new TraceRecorder(this); // Stopped until started
+
    // Assistive variables to facilitate emulation
    int fetched = 0x00; // Represents the working input value to the ALU
    int temp = 0x0000; // A convenience variable used everywhere
@@ -26,10 +36,28 @@ public class CPU6502 {
    int addr_rel = 0x0000; // Represents absolute address following a branch
    int opcode = 0x00; // Is the instruction int
    int cycles = 0x00; // Counts how many cycles the instruction has remaining
-   int clockCount = 0; // A global accumulation of the number of clocks
+   long clockCount = 0; // A global accumulation of the number of clocks, 64 bits so it never wraps
+
+   // Kept by the Scheduler. An interrupt is waiting to be taken, so runCycles()
+   // stops after the instruction it is executing. irqAsserted is set while a
+   // device holds the IRQ line, so clearing I can make an interrupt wait
+   boolean interruptPending = false;
+   boolean irqAsserted = false;
+
+   // Cycles a device halted the CPU for during the instruction being
+   // executed, added to the cycles it takes. See stall()
+   int stalled = 0;
 
    public CPU6502() {
+       this(CpuEngine.TABLE);
+   }
+
+   public CPU6502(CpuEngine engine) {
+       this.engine = engine;
        setupLookupTable();
+       decodeCache = engine == CpuEngine.PREDECODE ? new DecodeCache(this) : null;
+       switchEngine = engine != CpuEngine.TABLE ? new SwitchInterpreter(this, decodeCache) : null;
+       recompiler = engine == CpuEngine.JIT ? new Recompiler(this, switchEngine) : null;
    }
     
    
@@ -37,6 +65,7 @@ public class CPU6502 {
 	// to produce a change in state.
 	void reset(){	// Reset Interrupt - Forces CPU into known state
         pc = ResetVector();
+        traceInterrupt(Tracer.RESET);
 
         // Reset internal registers
         a = 0;
@@ -58,14 +87,16 @@ public class CPU6502 {
     }
     
     void irq(){		// Interrupt Request - Executes an instruction at a specific location
+        traceInterrupt(Tracer.IRQ);
         pushStack((pc >> 8) & 0x00FF);
         pushStack(pc & 0x00FF);
 
         //Push the current Status Register to the Stack
         SetFlag(FLAGS6502.B, false);
         SetFlag(FLAGS6502.U, true);
-        SetFlag(FLAGS6502.I, true);
         pushStack(status);
+        // Masked after the push, so RTI gives back the I flag of before
+        SetFlag(FLAGS6502.I, true);
 
         //Jump to the NMI Routine specified at 0xFFFA
         pc = irqVector();
@@ -76,15 +107,16 @@ public class CPU6502 {
     }
     
     void nmi(){		// Non-Maskable Interrupt Request - As above, but cannot be disabled
-        
+        traceInterrupt(Tracer.NMI);
         pushStack((pc >> 8) & 0x00FF);
         pushStack(pc & 0x00FF);
 
         //Push the current Status Register to the Stack
         SetFlag(FLAGS6502.B, false);
         SetFlag(FLAGS6502.U, true);
-        SetFlag(FLAGS6502.I, true);
         pushStack(status);
+        // Masked after the push, so RTI gives back the I flag of before
+        SetFlag(FLAGS6502.I, true);
 
         //Jump to the NMI Routine specified at 0xFFFA
         pc = nmiVector();
@@ -93,8 +125,49 @@ public class CPU6502 {
         cycles = 8;
     }
     
+    // Halts the CPU for "count" more cycles, from the write handler of a
+    // device, e.g. for OAM DMA. They are charged to the instruction making
+    // the write, so clockCount only moves on between instructions, and a
+    // compiled block stops after it
+    void stall(int count){
+        stalled += count;
+        if (switchEngine != null) switchEngine.abort = true;
+    }
+
+    // Returns the cycles stalled since the last call
+    int takeStall(){
+        int count = stalled;
+        stalled = 0;
+        return count;
+    }
+
     void clock(){	// Perform one clock cycle's worth of update
         if (cycles <= 0) {
+            step();
+        }
+
+        clockCount++;
+        cycles--;
+
+
+    }
+	// Indicates the current instruction has completed by returning true. This is
+	// a utility function to enable "step-by-step" execution, without manually
+	// clocking every cycle
+	boolean complete(){
+        return cycles==0;
+    }
+
+    // Fetches, decodes and executes one whole instruction. Leaves the total number
+    // of cycles it takes (including page-cross and branch penalties) in "cycles"
+    // and also returns it
+    private int step(){
+        if (switchEngine != null) {
+            cycles = switchEngine.execute();
+            if (stalled != 0) cycles += takeStall();
+            return cycles;
+        }
+
         opcode = read(pc);
         SetFlag(FLAGS6502.U, true);
         //Increment the Program Counter
@@ -106,21 +179,136 @@ public class CPU6502 {
         int additional_cycle_2 = instr.operate.run();
 
         cycles += (additional_cycle_1 & additional_cycle_2);
+        if (stalled != 0) cycles += takeStall();
         SetFlag(FLAGS6502.U, true);
+        return cycles;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // BULK EXECUTION
+    // These run whole instructions back to back without the per-cycle bookkeeping
+    // of clock(). Cycles still pending from an instruction started by clock() (or
+    // from reset/irq/nmi) are finished first and count as used. All of them return
+    // the exact number of cycles consumed and leave the CPU on an instruction
+    // boundary, so complete() is true afterwards.
+    // While breakpoints are armed, the profiler is enabled or the recorder
+    // is recording they run one instruction at a time through observedStep(),
+    // which checks for a breakpoint before each and records each in the
+    // profile and the trace; a hit stops them early, see Breakpoints.
+    // Otherwise all three cost one check per call.
+
+    // Runs instructions until at least "budget" cycles have elapsed. The last
+    // instruction is never split, so the result may exceed the budget slightly.
+    // Stops early, after the instruction, when an interrupt starts waiting,
+    // so the Scheduler can take it (see interruptPending).
+    // With CpuEngine.JIT this works a whole basic block at a time, running the
+    // hot ones as compiled code when they fit in what is left of the budget,
+    // so it stops on the same instruction as the interpreters
+    long runCycles(long budget){
+        long start = begin();
+        if (observed()) {
+            while (clockCount - start < budget) {
+                if (!observedStep() || interruptPending) break;
+            }
+        } else if (recompiler != null) {
+            while (clockCount - start < budget) {
+                recompiler.execute(budget - (clockCount - start));
+                if (interruptPending) break;
+            }
+        } else {
+            while (clockCount - start < budget) {
+                clockCount += step();
+                if (interruptPending) break;
+            }
         }
+        return retire(start);
+    }
 
-        clockCount++;
-        cycles--;
+    // Runs exactly "count" instructions
+    long runInstructions(long count){
+        long start = begin();
+        boolean observed = observed();
+        for (long n = 0; n < count; n++) {
+            if (!observed) clockCount += step();
+            else if (!observedStep()) break;
+        }
+        return retire(start);
+    }
 
+    // Runs instructions until "stop" returns true (checked before each
+    // instruction) or until "maxCycles" have elapsed, whichever comes first.
+    // With CpuEngine.JIT, unless observed, "stop" is checked before each
+    // basic block instead, as in runCycles(), so it only sees the addresses
+    // blocks start at: the targets of jumps, branches, calls and returns,
+    // instructions that jump to themselves and addresses given to
+    // Recompiler.splitAt()
+    long runUntil(Predicate<CPU6502> stop, long maxCycles){
+        long start = begin();
+        boolean observed = observed();
+        if (recompiler != null && !observed) {
+            while (clockCount - start < maxCycles) {
+                if (stop.test(this)) break;
+                recompiler.execute(maxCycles - (clockCount - start));
+            }
+            return retire(start);
+        }
+        while (clockCount - start < maxCycles) {
+            if (stop.test(this)) break;
+            if (!observed) clockCount += step();
+            else if (!observedStep()) break;
+        }
+        return retire(start);
+    }
 
+    // Runs the basic block at pc and returns the cycles used: with
+    // CpuEngine.JIT as compiled code once it is hot, otherwise, or while
+    // observed, a single instruction. For checking compiled blocks where
+    // they exit, see Conformance
+    long runBlock(){
+        if (recompiler == null || observed()) return runInstructions(1);
+        long start = begin();
+        recompiler.execute(Integer.MAX_VALUE);
+        return retire(start);
     }
-	// Indicates the current instruction has completed by returning true. This is
-	// a utility function to enable "step-by-step" execution, without manually 
-	// clocking every cycle
-	boolean complete(){
-        return cycles==0;
+
+    private boolean observed(){
+        return bus.breakpoints.armed || profiler.enabled || recorder.enabled;
     }
-    
+
+    // Runs the instruction at pc for the slow loops. Returns false, without
+    // running it, when a breakpoint stops the CPU there
+    private boolean observedStep(){
+        if (bus.breakpoints.armed && bus.breakpoints.stopAt(this)) return false;
+        if (recorder.enabled) recorder.record();
+        if (!profiler.enabled) {
+            clockCount += step();
+            return true;
+        }
+        int at = pc;
+        int used = step();
+        profiler.record(at, opcode, used);
+        clockCount += used;
+        return true;
+    }
+
+    // Finishes the pending cycles and returns clockCount from before them.
+    // clockCount is kept current while running, so it holds the start of the
+    // instruction being executed, in CPU cycles, when a device is accessed.
+    // Compiled blocks only bring it up to date before the accesses that can
+    // reach a device, see BlockCompiler
+    private long begin(){
+        long start = clockCount;
+        clockCount += cycles > 0 ? cycles : 0;
+        cycles = 0;
+        return start;
+    }
+
+    private long retire(long start){
+        cycles = 0;
+        return clockCount - start;
+    }
+
   
     
     private void setupLookupTable() {
@@ -386,6 +574,8 @@ public class CPU6502 {
 
     public void ConnectBus(Bus bus) {
        this.bus = bus;
+       if (decodeCache != null) decodeCache.attach(bus);
+       if (recompiler != null) recompiler.attach(bus);
     }
 
 
@@ -470,6 +660,35 @@ public class CPU6502 {
 
 
 
+    ///////////////////////////////////////////////////////////////////////////////
+    // SAVE STATES
+    // Registers and the helper state, in the order they are declared. Only
+    // valid between instructions or bulk runs, when "status" is up to date
+    static final int STATE_BYTES = 12 * 4 + 8;
+
+    void saveState(ByteBuffer out){
+        out.putInt(a).putInt(x).putInt(y).putInt(stkp).putInt(pc).putInt(status);
+        out.putInt(fetched).putInt(temp).putInt(addr_abs).putInt(addr_rel);
+        out.putInt(opcode).putInt(cycles).putLong(clockCount);
+    }
+
+    void loadState(ByteBuffer in){
+        a = in.getInt();
+        x = in.getInt();
+        y = in.getInt();
+        stkp = in.getInt();
+        pc = in.getInt();
+        status = in.getInt();
+        fetched = in.getInt();
+        temp = in.getInt();
+        addr_abs = in.getInt();
+        addr_rel = in.getInt();
+        opcode = in.getInt();
+        cycles = in.getInt();
+        clockCount = in.getLong();
+    }
+
+
     ///////////////////////////////////////////////////////////////////////////////
     // BUS CONNECTIVITY
     int read(int a){
@@ -742,6 +961,7 @@ public class CPU6502 {
         return 0;
     }	
     int BRK(){
+        traceInterrupt(Tracer.BRK);
         //Dummy Read
         read((pc - 1) & 0xFFFF);
         pushStack((pc >> 8) & 0x00FF);
@@ -785,6 +1005,7 @@ public class CPU6502 {
     }	
     int CLI(){
         SetFlag(FLAGS6502.I, false);
+        unmasked();
         return 0;
     }
     int CLV(){
@@ -979,6 +1200,7 @@ public class CPU6502 {
         status = popStack();
 
         SetFlag(FLAGS6502.U, true);
+        unmasked();
 
         return 0;
     }	
@@ -1009,6 +1231,7 @@ public class CPU6502 {
         return 0;
     }	
     int RTI(){
+        traceInterrupt(Tracer.RTI);
         //Dummy read
         read(pc);
         status = popStack();
@@ -1018,6 +1241,7 @@ public class CPU6502 {
 
         status &= ~FLAGS6502.B.getValue() & 0x00FF;
         status &= ~FLAGS6502.U.getValue() & 0x00FF;
+        unmasked();
 
         return 0;
     }	
@@ -1063,7 +1287,6 @@ public class CPU6502 {
         return 0;
     }
     int STX(){
-        System.out.println(addr_abs+" stx"+x);
         write(addr_abs, x);
         return 0;
     }	
@@ -1151,16 +1374,33 @@ public class CPU6502 {
 
 
     //Update the Stack Pointer accordingly
-    private void pushStack(int data) {
+    void pushStack(int data) {
+        Tracer tracer = bus.tracer;
+        if ((tracer.categories & Tracer.STACK) != 0) tracer.record(Tracer.PUSH, 0x0100 + stkp, data);
         write(0x0100 + stkp, data);
         stkp--;
         stkp &= 0x00FF;
     }
 
-    private int popStack() {
+    int popStack() {
         stkp++;
         stkp &= 0x00FF;
-        return read(0x0100 + stkp);
+        int data = read(0x0100 + stkp);
+        Tracer tracer = bus.tracer;
+        if ((tracer.categories & Tracer.STACK) != 0) tracer.record(Tracer.PULL, 0x0100 + stkp, data);
+        return data;
+    }
+
+    // Called by the instructions that can clear I. A device already holding
+    // the IRQ line gets its interrupt after this instruction
+    void unmasked(){
+        if (irqAsserted && (status & FLAGS6502.I.getValue()) == 0) interruptPending = true;
+    }
+
+    // Records an interrupt, pc is where it was taken
+    void traceInterrupt(int type){
+        Tracer tracer = bus.tracer;
+        if ((tracer.categories & Tracer.INTERRUPTS) != 0) tracer.record(type, pc, 0);
     }
 
 }
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import utils.Mirroring;
+
+
+// A cartridge from an iNES file. The file is mapped into memory and PRG and
+// CHR ROM are views of that mapping, so nothing is copied on loading and the
+// OS pages in only the banks that are used. Layout of the file:
+//   16 bytes     header
+//     0-3        "NES" and $1A
+//     4          PRG ROM size in 16 KB units
+//     5          CHR ROM size in 8 KB units, 0 for 8 KB of CHR RAM
+//     6          bit 0 vertical mirroring, 1 battery-backed PRG RAM,
+//                2 trainer present, 3 four-screen, 4-7 mapper low nibble
+//     7          bits 4-7 mapper high nibble
+//   512 bytes    trainer, when bit 2 of byte 6 is set (skipped)
+//   PRG ROM, then CHR ROM
+// Battery-backed PRG RAM is mapped from a .sav file next to the ROM, so what
+// the game saves is written back to disk by the OS.
+public class Cartridge {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int TRAINER_SIZE = 512;
+    private static final int PRG_UNIT = 0x4000;
+    private static final int CHR_UNIT = 0x2000;
+    static final int PRG_RAM_SIZE = 0x2000;
+
+    public final int mapperNumber;
+    public final Mirroring mirroring;
+    public final boolean battery;
+
+    final ByteBuffer prg;
+    final ByteBuffer chr;
+    final boolean chrRam; // CHR is RAM on the cartridge rather than ROM
+    final ByteBuffer prgRam; // 8 KB at $6000
+
+    public static Cartridge load(Path file) throws IOException {
+        ByteBuffer image;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            image = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (image.capacity() < HEADER_SIZE || (image.get(6) & 0x02) == 0) {
+            return new Cartridge(image, ByteBuffer.wrap(new byte[PRG_RAM_SIZE]));
+        }
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        Path save = file.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".sav");
+        try (FileChannel channel = FileChannel.open(save, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            return new Cartridge(image, channel.map(MapMode.READ_WRITE, 0, PRG_RAM_SIZE));
+        }
+    }
+
+    // image is the whole iNES file, prgRam 8 KB for $6000-$7FFF
+    public Cartridge(ByteBuffer image, ByteBuffer prgRam) {
+        if (image.capacity() < HEADER_SIZE || image.get(0) != 'N' || image.get(1) != 'E' || image.get(2) != 'S'
+                || image.get(3) != 0x1A) {
+            throw new IllegalArgumentException("Not an iNES file");
+        }
+        if (prgRam.capacity() < PRG_RAM_SIZE) throw new IllegalArgumentException("PRG RAM is smaller than 8 KB");
+        int prgSize = (image.get(4) & 0xFF) * PRG_UNIT;
+        int chrSize = (image.get(5) & 0xFF) * CHR_UNIT;
+        int flags6 = image.get(6) & 0xFF;
+        int flags7 = image.get(7) & 0xFF;
+
+        // Old dumping tools left text in bytes 7-15, in which case byte 7
+        // holds no mapper bits. NES 2.0 headers mark themselves in byte 7
+        boolean nes2 = (flags7 & 0x0C) == 0x08;
+        boolean dirty = !nes2 && (image.get(12) | image.get(13) | image.get(14) | image.get(15)) != 0;
+        mapperNumber = (flags6 >> 4) | (dirty ? 0 : flags7 & 0xF0);
+
+        if ((flags6 & 0x08) != 0) mirroring = Mirroring.FOUR_SCREEN;
+        else if ((flags6 & 0x01) != 0) mirroring = Mirroring.VERTICAL;
+        else mirroring = Mirroring.HORIZONTAL;
+        battery = (flags6 & 0x02) != 0;
+
+        int start = HEADER_SIZE + ((flags6 & 0x04) != 0 ? TRAINER_SIZE : 0);
+        if (prgSize == 0) throw new IllegalArgumentException("No PRG ROM");
+        if (start + prgSize + chrSize > image.capacity()) throw new IllegalArgumentException("File is shorter than its header says");
+        prg = image.slice(start, prgSize).asReadOnlyBuffer();
+        if (chrSize == 0) {
+            chr = ByteBuffer.wrap(new byte[CHR_UNIT]);
+            chrRam = true;
+        } else {
+            chr = image.slice(start + prgSize, chrSize).asReadOnlyBuffer();
+            chrRam = false;
+        }
+        this.prgRam = prgRam;
+    }
+
+
+    // The bank switching hardware the board has
+    Mapper createMapper(){
+        switch (mapperNumber) {
+            case 0: return new NROM(this);
+            case 1: return new MMC1(this);
+            case 2: return new UxROM(this);
+            case 4: return new MMC3(this);
+            default: throw new IllegalArgumentException("Mapper " + mapperNumber + " is not supported");
+        }
+    }
+
+}
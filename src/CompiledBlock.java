@@ -0,0 +1,7 @@
+
+// A 6502 basic block translated to JVM bytecode by the BlockCompiler. run()
+// executes the whole block against the interpreter's state, leaves pc on the
+// next instruction to execute and returns the cycles it took
+public interface CompiledBlock {
+    int run(SwitchInterpreter k);
+}
@@ -0,0 +1,252 @@
+import java.util.function.Predicate;
+import utils.FLAGS6502;
+
+
+// Compiles breakpoint conditions such as "A == $10 && [$0002] > 5" into a
+// Predicate, once, when the breakpoint is set. The result is a tree of
+// lambdas that only does the arithmetic; nothing is parsed or looked up by
+// name on a hit.
+//
+// Values are whole numbers, a comparison gives 1 or 0 and anything but 0 is
+// true. Operators from the loosest to the tightest:
+//   ||
+//   &&
+//   == != < <= > >=      one per comparison, "1 < A < 3" does not parse
+//   |
+//   ^
+//   &
+//   + -
+//   ! - ~                unary
+// and the operands:
+//   A X Y SP PC P        registers, P is the status register
+//   N V U B D I Z C      flags, 1 when set
+//   CYC                  clockCount
+//   [addr]               byte at addr, read without side effects
+//   $1F 0x1F %11111 31   numbers
+//   ( )
+// Names are not case sensitive.
+final class Condition {
+
+    // A compiled value
+    private interface Term {
+        long eval(CPU6502 cpu);
+    }
+
+    // Operators that start with a shorter one
+    private static final String[] LONG_OPERATORS = { "||", "&&", "==", "!=", "<=", ">=" };
+
+    private final String text;
+    private int pos = 0;
+
+    private Condition(String text) {
+        this.text = text;
+    }
+
+
+    // Throws IllegalArgumentException, telling where, for text that does not parse
+    static Predicate<CPU6502> compile(String text){
+        Condition parser = new Condition(text);
+        Term term = parser.or();
+        parser.skipSpaces();
+        if (parser.pos < text.length()) throw parser.error("Unexpected '" + text.charAt(parser.pos) + "'");
+        return cpu -> term.eval(cpu) != 0;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // OPERATORS
+    private Term or(){
+        Term left = and();
+        while (accept("||")) {
+            Term l = left, r = and();
+            left = cpu -> l.eval(cpu) != 0 || r.eval(cpu) != 0 ? 1 : 0;
+        }
+        return left;
+    }
+
+    private Term and(){
+        Term left = comparison();
+        while (accept("&&")) {
+            Term l = left, r = comparison();
+            left = cpu -> l.eval(cpu) != 0 && r.eval(cpu) != 0 ? 1 : 0;
+        }
+        return left;
+    }
+
+    private Term comparison(){
+        Term l = bitOr();
+        if (accept("==")) {
+            Term r = bitOr();
+            return cpu -> l.eval(cpu) == r.eval(cpu) ? 1 : 0;
+        }
+        if (accept("!=")) {
+            Term r = bitOr();
+            return cpu -> l.eval(cpu) != r.eval(cpu) ? 1 : 0;
+        }
+        if (accept("<=")) {
+            Term r = bitOr();
+            return cpu -> l.eval(cpu) <= r.eval(cpu) ? 1 : 0;
+        }
+        if (accept(">=")) {
+            Term r = bitOr();
+            return cpu -> l.eval(cpu) >= r.eval(cpu) ? 1 : 0;
+        }
+        if (accept("<")) {
+            Term r = bitOr();
+            return cpu -> l.eval(cpu) < r.eval(cpu) ? 1 : 0;
+        }
+        if (accept(">")) {
+            Term r = bitOr();
+            return cpu -> l.eval(cpu) > r.eval(cpu) ? 1 : 0;
+        }
+        return l;
+    }
+
+    private Term bitOr(){
+        Term left = bitXor();
+        while (accept("|")) {
+            Term l = left, r = bitXor();
+            left = cpu -> l.eval(cpu) | r.eval(cpu);
+        }
+        return left;
+    }
+
+    private Term bitXor(){
+        Term left = bitAnd();
+        while (accept("^")) {
+            Term l = left, r = bitAnd();
+            left = cpu -> l.eval(cpu) ^ r.eval(cpu);
+        }
+        return left;
+    }
+
+    private Term bitAnd(){
+        Term left = sum();
+        while (accept("&")) {
+            Term l = left, r = sum();
+            left = cpu -> l.eval(cpu) & r.eval(cpu);
+        }
+        return left;
+    }
+
+    private Term sum(){
+        Term left = unary();
+        while (true) {
+            Term l = left;
+            if (accept("+")) {
+                Term r = unary();
+                left = cpu -> l.eval(cpu) + r.eval(cpu);
+            } else if (accept("-")) {
+                Term r = unary();
+                left = cpu -> l.eval(cpu) - r.eval(cpu);
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Term unary(){
+        if (accept("!")) {
+            Term t = unary();
+            return cpu -> t.eval(cpu) == 0 ? 1 : 0;
+        }
+        if (accept("-")) {
+            Term t = unary();
+            return cpu -> -t.eval(cpu);
+        }
+        if (accept("~")) {
+            Term t = unary();
+            return cpu -> ~t.eval(cpu);
+        }
+        return operand();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // OPERANDS
+    private Term operand(){
+        skipSpaces();
+        if (accept("(")) {
+            Term t = or();
+            expect(")");
+            return t;
+        }
+        if (accept("[")) {
+            Term t = or();
+            expect("]");
+            return cpu -> cpu.bus.read((int) t.eval(cpu) & 0xFFFF, true) & 0xFF;
+        }
+        if (pos < text.length() && Character.isLetter(text.charAt(pos))) return name();
+        long value = number();
+        return cpu -> value;
+    }
+
+    private Term name(){
+        int start = pos;
+        while (pos < text.length() && Character.isLetterOrDigit(text.charAt(pos))) pos++;
+        String name = text.substring(start, pos).toUpperCase();
+        switch (name) {
+            case "A": return cpu -> cpu.a;
+            case "X": return cpu -> cpu.x;
+            case "Y": return cpu -> cpu.y;
+            case "SP": return cpu -> cpu.stkp;
+            case "PC": return cpu -> cpu.pc;
+            case "P": return cpu -> cpu.status;
+            case "CYC": return cpu -> cpu.clockCount;
+        }
+        for (FLAGS6502 flag : FLAGS6502.values()) {
+            if (flag.name().equals(name)) {
+                int mask = flag.getValue();
+                return cpu -> (cpu.status & mask) != 0 ? 1 : 0;
+            }
+        }
+        pos = start;
+        throw error("Unknown name " + name);
+    }
+
+    private long number(){
+        int radix = 10;
+        if (accept("$")) radix = 16;
+        else if (accept("%")) radix = 2;
+        else if (text.startsWith("0x", pos) || text.startsWith("0X", pos)) {
+            pos += 2;
+            radix = 16;
+        }
+        int start = pos;
+        while (pos < text.length() && Character.digit(text.charAt(pos), radix) >= 0) pos++;
+        if (pos == start) throw error(pos < text.length() ? "Unexpected '" + text.charAt(pos) + "'" : "Missing value");
+        try {
+            return Long.parseLong(text.substring(start, pos), radix);
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Number out of range");
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // TOKENS
+    // Takes op if it comes next and is not the start of a longer operator
+    private boolean accept(String op){
+        skipSpaces();
+        if (!text.startsWith(op, pos)) return false;
+        for (String longer : LONG_OPERATORS) {
+            if (longer.length() > op.length() && longer.startsWith(op) && text.startsWith(longer, pos)) return false;
+        }
+        pos += op.length();
+        return true;
+    }
+
+    private void expect(String op){
+        if (!accept(op)) throw error("Missing '" + op + "'");
+    }
+
+    private void skipSpaces(){
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+    }
+
+    private IllegalArgumentException error(String message){
+        return new IllegalArgumentException(message + " at " + pos + " in \"" + text + "\"");
+    }
+
+}
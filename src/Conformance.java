@@ -0,0 +1,343 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import utils.CpuEngine;
+
+
+// Runs a program and checks every instruction against a golden log in the
+// format of nestest.log:
+//   C000  4C F5 C5  JMP $C5F5        A:00 X:00 Y:00 P:24 SP:FD PPU:  0, 21 CYC:7
+// Each line holds the state before the instruction runs: pc in the first
+// column, then the A:, X:, Y:, P:, SP: and CYC: fields, any of which may be
+// missing. The first line also sets up the CPU, so no reset is needed.
+//
+// The log is streamed through fixed buffers, so any number of lines runs in
+// the same memory. The run stops at the first difference and prints the
+// lines and CPU states leading up to it.
+//
+// With CpuEngine.JIT the program runs a basic block at a time, compiled
+// once hot, and is compared where each block exits. The lines of the
+// instructions inside a block are skipped by their cycle counts, so the log
+// needs CYC: on every line.
+//
+// Usage: java Conformance [options] program log
+//   --engine=E    TABLE, SWITCH, PREDECODE or JIT, defaults to TABLE
+//   --org=XXXX    load address of a raw program (hex), defaults to 8000. An
+//                 iNES file is recognised and its PRG ROM loaded at $8000,
+//                 repeated at $C000 when it is 16 KB
+//   --pmask=XX    status bits to compare (hex), defaults to FF
+// Exits with 0 when the whole log matches, 1 at a difference
+public class Conformance {
+
+    private static final int CONTEXT = 8; // Lines shown before a difference
+    private static final long REPORT_NANOS = 1_000_000_000L;
+
+    // Value of each hex digit character, -1 for anything else
+    private static final int[] HEX = new int[256];
+    static {
+        java.util.Arrays.fill(HEX, -1);
+        for (int i = 0; i < 16; i++) {
+            HEX[Character.forDigit(i, 16)] = i;
+            HEX[Character.toUpperCase(Character.forDigit(i, 16))] = i;
+        }
+    }
+
+    // Streams the log a line at a time into a reused buffer, and parses the
+    // fields of the line in place
+    private static class LogReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int position = 0;
+        private int limit = 0;
+
+        final byte[] line = new byte[512];
+        int length = 0;
+        long lineNumber = 0;
+
+        // Fields of the current line, -1 when missing
+        int pc, a, x, y, p, sp;
+        long cycles;
+        private int column = -1; // Where the A: field was, if the registers followed it in order
+
+        LogReader(InputStream in) {
+            this.in = in;
+        }
+
+        // Moves to the next line with a pc, false at the end of the log
+        boolean next() throws IOException {
+            while (readLine()) {
+                if (parse()) return true;
+            }
+            return false;
+        }
+
+        private boolean readLine() throws IOException {
+            length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        if (length == 0) return false;
+                        break;
+                    }
+                }
+                int end = position;
+                while (end < limit && buffer[end] != '\n') end++;
+                int count = Math.min(end - position, line.length - length);
+                System.arraycopy(buffer, position, line, length, count);
+                length += count;
+                position = end;
+                if (end < limit) {
+                    position++;
+                    break;
+                }
+            }
+            if (length > 0 && line[length - 1] == '\r') length--;
+            lineNumber++;
+            return true;
+        }
+
+        private boolean parse(){
+            pc = hex(0, 4);
+            if (pc < 0) return false;
+            if (!parseColumns()) parseTokens();
+            return true;
+        }
+
+        // Lines of one log usually share a layout, so the registers are looked
+        // for where the previous line had them, and CYC: at the end
+        private boolean parseColumns(){
+            int c = column;
+            if (c < 0 || c + 25 > length
+                    || line[c] != 'A' || line[c + 1] != ':' || line[c + 5] != 'X' || line[c + 6] != ':'
+                    || line[c + 10] != 'Y' || line[c + 11] != ':' || line[c + 15] != 'P' || line[c + 16] != ':'
+                    || line[c + 20] != 'S' || line[c + 21] != 'P' || line[c + 22] != ':') {
+                return false;
+            }
+            a = hex(c + 2, 2);
+            x = hex(c + 7, 2);
+            y = hex(c + 12, 2);
+            p = hex(c + 17, 2);
+            sp = hex(c + 23, 2);
+
+            int digits = length;
+            while (digits > c && line[digits - 1] != ':') digits--;
+            if (digits - 4 > c && line[digits - 4] == 'C' && line[digits - 3] == 'Y' && line[digits - 2] == 'C') {
+                cycles = decimal(digits, length - digits);
+            } else {
+                cycles = -1;
+            }
+            return true;
+        }
+
+        // Fields are whitespace separated NAME:VALUE tokens
+        private void parseTokens(){
+            a = x = y = p = sp = -1;
+            cycles = -1;
+            column = -1;
+            int i = 4;
+            while (i < length) {
+                while (i < length && line[i] == ' ') i++;
+                int start = i;
+                while (i < length && line[i] != ' ') i++;
+                int colon = start;
+                while (colon < i && line[colon] != ':') colon++;
+                if (colon == i) continue;
+
+                int name = colon - start;
+                if (name == 1 && line[start] == 'A') {
+                    a = hex(colon + 1, i - colon - 1);
+                    column = start;
+                }
+                else if (name == 1 && line[start] == 'X') x = hex(colon + 1, i - colon - 1);
+                else if (name == 1 && line[start] == 'Y') y = hex(colon + 1, i - colon - 1);
+                else if (name == 1 && line[start] == 'P') p = hex(colon + 1, i - colon - 1);
+                else if (name == 2 && line[start] == 'S' && line[start + 1] == 'P') sp = hex(colon + 1, i - colon - 1);
+                else if (name == 3 && line[start] == 'C' && line[start + 1] == 'Y' && line[start + 2] == 'C') {
+                    cycles = decimal(colon + 1, i - colon - 1);
+                }
+            }
+        }
+
+        private int hex(int from, int count){
+            if (count <= 0 || from + count > length) return -1;
+            int value = 0;
+            for (int i = from; i < from + count; i++) {
+                int digit = HEX[line[i] & 0xFF];
+                if (digit < 0) return -1;
+                value = value * 16 + digit;
+            }
+            return value;
+        }
+
+        private long decimal(int from, int count){
+            if (count <= 0) return -1;
+            long value = 0;
+            for (int i = from; i < from + count; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) return -1;
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        String text(){
+            return new String(line, 0, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CpuEngine engine = CpuEngine.TABLE;
+        int origin = 0x8000;
+        int pmask = 0xFF;
+        String program = null;
+        String log = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) engine = CpuEngine.valueOf(arg.substring(9));
+            else if (arg.startsWith("--org=")) origin = Integer.parseInt(arg.substring(6), 16);
+            else if (arg.startsWith("--pmask=")) pmask = Integer.parseInt(arg.substring(8), 16);
+            else if (program == null) program = arg;
+            else log = arg;
+        }
+        if (log == null) {
+            System.err.println("Usage: java Conformance [--engine=E] [--org=XXXX] [--pmask=XX] program log");
+            System.exit(2);
+        }
+
+        Bus bus = new Bus(engine);
+        load(bus, Files.readAllBytes(Paths.get(program)), origin);
+
+        try (InputStream in = new FileInputStream(log)) {
+            System.exit(check(bus.cpu, new LogReader(in), pmask) ? 0 : 1);
+        }
+    }
+
+    private static void load(Bus bus, byte[] image, int origin){
+        if (image.length >= 16 && image[0] == 'N' && image[1] == 'E' && image[2] == 'S' && image[3] == 0x1A) {
+            int prg = (image[4] & 0xFF) * 0x4000;
+            int start = 16 + ((image[6] & 0x04) != 0 ? 512 : 0);
+            for (int i = 0; i < 0x8000; i++) {
+                bus.poke(0x8000 + i, image[start + i % prg] & 0xFF);
+            }
+            return;
+        }
+        for (int i = 0; i < image.length && origin + i < 0x10000; i++) {
+            bus.poke(origin + i, image[i] & 0xFF);
+        }
+    }
+
+    private static boolean check(CPU6502 cpu, LogReader log, int pmask) throws IOException {
+        if (!log.next()) {
+            System.err.println("Empty log");
+            return false;
+        }
+
+        // The CPU starts where the log starts
+        cpu.runInstructions(0);
+        cpu.pc = log.pc;
+        if (log.a >= 0) cpu.a = log.a;
+        if (log.x >= 0) cpu.x = log.x;
+        if (log.y >= 0) cpu.y = log.y;
+        if (log.p >= 0) cpu.status = log.p;
+        if (log.sp >= 0) cpu.stkp = log.sp;
+        long cycleBase = (log.cycles >= 0 ? log.cycles : 0) - cpu.clockCount;
+        boolean blocks = cpu.engine == CpuEngine.JIT;
+        if (blocks && log.cycles < 0) {
+            System.err.println("Comparing compiled blocks needs CYC: in the log");
+            return false;
+        }
+
+        // Recent log lines and CPU states, for the context of a difference.
+        // Kept raw, text is only made once something differs
+        byte[][] recentLines = new byte[CONTEXT][log.line.length];
+        int[] recentLengths = new int[CONTEXT];
+        int[][] recentStates = new int[CONTEXT][6];
+        long[] recentCycles = new long[CONTEXT];
+        long compared = 0; // Lines compared, all of them unless running blocks
+        long instructions = 0;
+        long start = System.nanoTime();
+        long lastReport = start;
+        long lastInstructions = 0;
+        long lastCheck = 0;
+
+        while (true) {
+            long cycles = cpu.clockCount + cycleBase;
+            String field = null;
+            if (cpu.pc != log.pc) field = "PC";
+            else if (log.a >= 0 && cpu.a != log.a) field = "A";
+            else if (log.x >= 0 && cpu.x != log.x) field = "X";
+            else if (log.y >= 0 && cpu.y != log.y) field = "Y";
+            else if (log.p >= 0 && (cpu.status & pmask) != (log.p & pmask)) field = "P";
+            else if (log.sp >= 0 && cpu.stkp != log.sp) field = "SP";
+            else if (log.cycles >= 0 && cycles != log.cycles) field = "CYC";
+
+            if (field != null) {
+                System.out.printf("Difference in %s at line %d, after %d instructions%n", field, log.lineNumber, instructions);
+                for (long n = Math.max(0, compared - CONTEXT); n < compared; n++) {
+                    int slot = (int) (n % CONTEXT);
+                    int[] r = recentStates[slot];
+                    System.out.println("  log " + new String(recentLines[slot], 0, recentLengths[slot], StandardCharsets.US_ASCII));
+                    System.out.println("  cpu " + state(r[0], r[1], r[2], r[3], r[4], r[5], recentCycles[slot]));
+                }
+                System.out.println("> log " + log.text());
+                System.out.println("> cpu " + state(cpu.pc, cpu.a, cpu.x, cpu.y, cpu.status, cpu.stkp, cycles));
+                return false;
+            }
+
+            int slot = (int) (compared % CONTEXT);
+            System.arraycopy(log.line, 0, recentLines[slot], 0, log.length);
+            recentLengths[slot] = log.length;
+            int[] r = recentStates[slot];
+            r[0] = cpu.pc;
+            r[1] = cpu.a;
+            r[2] = cpu.x;
+            r[3] = cpu.y;
+            r[4] = cpu.status;
+            r[5] = cpu.stkp;
+            recentCycles[slot] = cycles;
+            compared++;
+
+            boolean more;
+            if (blocks) {
+                // The next line to compare is the first at or past the cycle
+                // the block exits at
+                long exit = cycles + cpu.runBlock();
+                instructions++;
+                while ((more = log.next()) && log.cycles >= 0 && log.cycles < exit) instructions++;
+            } else {
+                cpu.runInstructions(1);
+                instructions++;
+                more = log.next();
+            }
+
+            if (instructions - lastCheck >= 0x10000) {
+                lastCheck = instructions;
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_NANOS) {
+                    System.err.printf("%d lines, %.2f M instructions/s%n", log.lineNumber,
+                            (instructions - lastInstructions) * 1000.0 / (now - lastReport));
+                    lastReport = now;
+                    lastInstructions = instructions;
+                }
+            }
+
+            if (!more) break;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Log matches: %d instructions in %.3f s, %.2f M instructions/s%n",
+                instructions, elapsed / 1e9, instructions * 1000.0 / elapsed);
+        return true;
+    }
+
+    private static String state(int pc, int a, int x, int y, int p, int sp, long cycles){
+        return String.format("%04X  A:%02X X:%02X Y:%02X P:%02X SP:%02X CYC:%d", pc, a, x, y, p, sp, cycles);
+    }
+
+}
@@ -0,0 +1,146 @@
+import java.util.Arrays;
+import utils.WriteListener;
+
+
+// Predecoded instructions for the SwitchInterpreter, keyed by address. An
+// entry packs everything needed to run the instruction without going back to
+// the bus for its opcode and operand:
+//   bits  0-7   opcode, which selects the handler in SwitchInterpreter
+//   bits  8-23  operand (one byte, or a little-endian word)
+//   bits 24-27  base cycles
+//   bits 28-29  bytes the opcode and operand take
+//   bit  31     always set, so a valid entry is never 0
+//
+// Every page holding part of a decoded instruction is watched on the bus. A
+// write to such a page drops all entries that may include one of its bytes,
+// so self-modifying code is decoded again before it runs. Remapping a page,
+// e.g. by a bank switch, drops it the same way. Instructions on a page whose
+// reads come from a device are decoded again every time, as its bytes can
+// change without a write.
+public class DecodeCache implements WriteListener {
+
+    private static final int VALID = 1 << 31;
+
+    private final CPU6502 cpu;
+    private final int[] entries = new int[0x10000]; // 0 means not decoded
+    private final boolean[] watched = new boolean[256];
+    private final int[] lengths = new int[256];
+    private final int[] cycles = new int[256];
+
+    private Bus bus = null;
+    private int listenerId = -1;
+
+    // Statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    public DecodeCache(CPU6502 cpu) {
+        this.cpu = cpu;
+        for (int i = 0; i < 256; i++) {
+            lengths[i] = 1 + SwitchInterpreter.operandBytes(cpu.lookup[i]);
+            cycles[i] = cpu.lookup[i].cycles;
+        }
+    }
+
+    void attach(Bus bus){
+        this.bus = bus;
+        listenerId = bus.addWriteListener(this);
+    }
+
+
+    // Returns the entry for the instruction at pc, decoding it on a miss
+    int fetch(int pc){
+        int entry = entries[pc];
+        if (entry != 0) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        return decode(pc);
+    }
+
+    private int decode(int pc){
+        int op = cpu.read(pc);
+        int length = lengths[op];
+        int operand = 0;
+        if (length > 1) operand = cpu.read((pc + 1) & 0xFFFF);
+        if (length > 2) operand |= cpu.read((pc + 2) & 0xFFFF) << 8;
+
+        int entry = VALID | (length << 28) | (cycles[op] << 24) | (operand << 8) | op;
+        int first = pc >> 8;
+        int last = ((pc + length - 1) & 0xFFFF) >> 8;
+        if (bus.isDevicePage(first) || bus.isDevicePage(last)) return entry;
+        entries[pc] = entry;
+        watch(first);
+        watch(last);
+        return entry;
+    }
+
+    private void watch(int page){
+        if (!watched[page]) {
+            watched[page] = true;
+            bus.watchPage(listenerId, page);
+        }
+    }
+
+    @Override
+    public void written(int addr){
+        int page = addr >> 8;
+        // Instructions starting in the last two bytes of the previous page can
+        // reach into this one
+        entries[(page * 256 - 1) & 0xFFFF] = 0;
+        entries[(page * 256 - 2) & 0xFFFF] = 0;
+        Arrays.fill(entries, page * 256, page * 256 + 256, 0);
+        watched[page] = false;
+        bus.unwatchPage(listenerId, page);
+        invalidations++;
+    }
+
+    @Override
+    public void remapped(int page){
+        // Same as a write, which already drops the whole page
+        written(page << 8);
+    }
+
+    // Drops every entry
+    void clear(){
+        Arrays.fill(entries, 0);
+        for (int page = 0; page < 256; page++) {
+            if (watched[page]) {
+                watched[page] = false;
+                bus.unwatchPage(listenerId, page);
+            }
+        }
+    }
+
+    static int opcode(int entry){
+        return entry & 0xFF;
+    }
+
+    static int operand(int entry){
+        return (entry >>> 8) & 0xFFFF;
+    }
+
+    static int cycles(int entry){
+        return (entry >>> 24) & 0x0F;
+    }
+
+    static int length(int entry){
+        return (entry >>> 28) & 0x03;
+    }
+
+    long hits(){
+        return hits;
+    }
+
+    long misses(){
+        return misses;
+    }
+
+    // Number of page invalidations caused by writes
+    long invalidations(){
+        return invalidations;
+    }
+
+}
@@ -0,0 +1,352 @@
+import java.util.Arrays;
+import utils.WriteListener;
+
+
+// Disassembly of the whole address space for the debugger, decoded a page at a
+// time when first asked for and kept up to date as memory changes. Like
+// CPU6502.disassemble(0x0000, 0xFFFF) it sweeps from $0000, each instruction
+// starting where the previous one ends, and makes the same text.
+//
+// The instructions starting in a page are kept in address order in that
+// page's 256 slots of two arrays:
+//   starts   address of the instruction
+//   entries  bits 0-7 opcode, bits 8-23 operand (one byte, or a little-endian word)
+// so finding an address is a binary search within its page, and its
+// neighbours are the adjacent slots. Text is only made
+// for the lines asked for.
+//
+// Decoded pages are watched on the bus. A write drops its page, and the page
+// before it when that page's last instruction reaches in; both are decoded
+// again when next asked for. Where the sweep enters a page depends on where it
+// left the page before, so a page that is left at a different place after
+// decoding also drops the next page.
+public class Disassembler implements WriteListener {
+
+    // Addressing modes, indexed by the ids in "modes"
+    private static final String[] MODE_NAMES = {
+        "IMP", "IMM", "ZP0", "ZPX", "ZPY", "IZX", "IZY", "ABS", "ABX", "ABY", "IND", "REL"
+    };
+    private static final int IMP = 0, IMM = 1, ZP0 = 2, ZPX = 3, ZPY = 4, IZX = 5,
+            IZY = 6, ABS = 7, ABX = 8, ABY = 9, IND = 10, REL = 11;
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final Bus bus;
+    private final int listenerId;
+
+    // Per opcode
+    private final char[][] names = new char[256][];
+    private final int[] modes = new int[256];
+    private final int[] lengths = new int[256];
+
+    private final int[] starts = new int[0x10000];
+    private final int[] entries = new int[0x10000];
+    private final int[] counts = new int[256]; // Instructions starting in each page
+    private final int[] exits = new int[256]; // Bytes the last instruction of each page reaches into the next
+    private final boolean[] decoded = new boolean[256];
+    private final boolean[] watched = new boolean[256];
+    private int firstStale = 0; // Lowest page that is not decoded, 256 if none
+
+    private final char[] line = new char[32];
+
+    // Statistics
+    private long pagesDecoded = 0;
+
+    public Disassembler(Bus bus) {
+        this.bus = bus;
+        for (int i = 0; i < 256; i++) {
+            Instruction instruction = bus.cpu.lookup[i];
+            names[i] = instruction.name.toCharArray();
+            modes[i] = Arrays.asList(MODE_NAMES).indexOf(instruction.addrmodeName);
+            if (modes[i] < 0) throw new IllegalStateException("Unknown addressing mode " + instruction.addrmodeName);
+            lengths[i] = modes[i] == IMP ? 1 : modes[i] >= ABS && modes[i] <= IND ? 3 : 2;
+        }
+        listenerId = bus.addWriteListener(this);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // INDEX
+    // True if an instruction starts at addr
+    public boolean isStart(int addr){
+        return slot(addr) >= 0;
+    }
+
+    // Start of the instruction that addr is part of
+    public int instructionAt(int addr){
+        checkAddress(addr);
+        int page = addr >> 8;
+        ensure(page);
+        int i = Arrays.binarySearch(starts, page << 8, (page << 8) + counts[page], addr);
+        if (i >= 0) return addr;
+        i = -i - 2;
+        // Before the first start of a page, addr is in the operand of the
+        // previous page's last instruction
+        if (i < page << 8) i = ((page - 1) << 8) + counts[page - 1] - 1;
+        return starts[i];
+    }
+
+    // First instruction starting after addr, -1 if there is none
+    public int next(int addr){
+        checkAddress(addr);
+        int page = addr >> 8;
+        ensure(page);
+        int i = Arrays.binarySearch(starts, page << 8, (page << 8) + counts[page], addr);
+        i = i >= 0 ? i + 1 : -i - 1;
+        if (i < (page << 8) + counts[page]) return starts[i];
+        if (page == 255) return -1;
+        ensure(page + 1);
+        return starts[(page + 1) << 8];
+    }
+
+    // Last instruction starting before addr, -1 if there is none
+    public int previous(int addr){
+        checkAddress(addr);
+        int page = addr >> 8;
+        ensure(page);
+        int i = Arrays.binarySearch(starts, page << 8, (page << 8) + counts[page], addr);
+        i = (i >= 0 ? i : -i - 1) - 1;
+        if (i >= page << 8) return starts[i];
+        if (page == 0) return -1;
+        return starts[((page - 1) << 8) + counts[page - 1] - 1];
+    }
+
+    // Fills "lines" with the starts of the instruction that addr is part of,
+    // at index "before", and of the instructions around it in address order.
+    // Slots past either end of memory are set to -1
+    public void window(int addr, int before, int[] lines){
+        if (before < 0 || before >= lines.length) throw new IllegalArgumentException("No room for the centre line");
+        int centre = instructionAt(addr);
+        int page = centre >> 8;
+        int i = Arrays.binarySearch(starts, page << 8, (page << 8) + counts[page], centre);
+        lines[before] = centre;
+
+        // Walks the slots directly, moving to the neighbouring page at the
+        // ends of one, which are already decoded up to "page"
+        int p = page, k = i;
+        for (int n = before - 1; n >= 0; n--) {
+            if (k > p << 8) {
+                k--;
+            } else if (p > 0) {
+                p--;
+                k = (p << 8) + counts[p] - 1;
+            } else {
+                lines[n] = -1;
+                continue;
+            }
+            lines[n] = starts[k];
+        }
+        p = page;
+        k = i;
+        for (int n = before + 1; n < lines.length; n++) {
+            if (k < (p << 8) + counts[p] - 1) {
+                k++;
+            } else if (p < 255) {
+                ensure(++p);
+                k = p << 8;
+            } else {
+                lines[n] = -1;
+                continue;
+            }
+            lines[n] = starts[k];
+        }
+    }
+
+    // Text of the instruction starting at addr, as CPU6502.disassemble() makes it
+    public String text(int addr){
+        int i = slot(addr);
+        if (i < 0) throw new IllegalArgumentException("No instruction starts at $" + Integer.toHexString(addr));
+        return format(addr, entries[i] & 0xFF, entries[i] >>> 8);
+    }
+
+    // Bytes the instruction starting at addr takes
+    public int length(int addr){
+        int i = slot(addr);
+        if (i < 0) throw new IllegalArgumentException("No instruction starts at $" + Integer.toHexString(addr));
+        return lengths[entries[i] & 0xFF];
+    }
+
+    // Drops everything decoded so far
+    public void clear(){
+        for (int page = 0; page < 256; page++) drop(page);
+    }
+
+    public long pagesDecoded(){
+        return pagesDecoded;
+    }
+
+    private int slot(int addr){
+        checkAddress(addr);
+        int page = addr >> 8;
+        ensure(page);
+        int i = Arrays.binarySearch(starts, page << 8, (page << 8) + counts[page], addr);
+        return i >= 0 ? i : -1;
+    }
+
+    private static void checkAddress(int addr){
+        if ((addr >>> 16) != 0) throw new IllegalArgumentException("Address out of range: " + addr);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // DECODING
+    // Decodes whatever is stale up to and including page
+    private void ensure(int page){
+        while (firstStale <= page) {
+            decode(firstStale);
+            while (firstStale < 256 && decoded[firstStale]) firstStale++;
+        }
+    }
+
+    private void decode(int page){
+        int addr = page == 0 ? 0 : (page << 8) + exits[page - 1];
+        int end = (page + 1) << 8;
+        int i = page << 8;
+        while (addr < end) {
+            // Reads past $FFFF give 0, as in disassemble()
+            int op = bus.read(addr, true) & 0xFF;
+            int length = lengths[op];
+            int operand = 0;
+            if (length > 1) operand = bus.read(addr + 1, true) & 0xFF;
+            if (length > 2) operand |= (bus.read(addr + 2, true) & 0xFF) << 8;
+            starts[i] = addr;
+            entries[i] = (operand << 8) | op;
+            i++;
+            addr += length;
+        }
+        counts[page] = i - (page << 8);
+        decoded[page] = true;
+        watch(page);
+        pagesDecoded++;
+
+        if (page == 255) return;
+        int exit = addr - end;
+        if (exit != exits[page]) {
+            exits[page] = exit;
+            drop(page + 1);
+        }
+        // The operand of the last instruction is read from the next page
+        if (exit > 0) watch(page + 1);
+    }
+
+    private void drop(int page){
+        decoded[page] = false;
+        if (page < firstStale) firstStale = page;
+        if (watched[page]) {
+            watched[page] = false;
+            bus.unwatchPage(listenerId, page);
+        }
+    }
+
+    private void watch(int page){
+        if (!watched[page]) {
+            watched[page] = true;
+            bus.watchPage(listenerId, page);
+        }
+    }
+
+    @Override
+    public void written(int addr){
+        int page = addr >> 8;
+        drop(page);
+        if (page > 0 && exits[page - 1] > 0) drop(page - 1);
+    }
+
+    @Override
+    public void remapped(int page){
+        // A write already drops the whole page
+        written(page << 8);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // TEXT
+    private String format(int addr, int op, int operand){
+        int n = 0;
+        line[n++] = '$';
+        n = hex(addr, 4, n);
+        line[n++] = ':';
+        line[n++] = ' ';
+        for (char c : names[op]) line[n++] = c;
+        line[n++] = ' ';
+
+        int mode = modes[op];
+        switch (mode) {
+            case IMP:
+                break;
+            case IMM:
+                n = append("#$", n);
+                n = hex(operand, 2, n);
+                break;
+            case ZP0:
+                line[n++] = '$';
+                n = hex(operand, 2, n);
+                break;
+            case ZPX:
+                line[n++] = '$';
+                n = hex(operand, 2, n);
+                n = append(", X", n);
+                break;
+            case ZPY:
+                line[n++] = '$';
+                n = hex(operand, 2, n);
+                n = append(", Y", n);
+                break;
+            case IZX:
+                n = append("($", n);
+                n = hex(operand, 2, n);
+                n = append(", X)", n);
+                break;
+            case IZY:
+                n = append("($", n);
+                n = hex(operand, 2, n);
+                n = append("), Y", n);
+                break;
+            case ABS:
+                line[n++] = '$';
+                n = hex(operand, 4, n);
+                break;
+            case ABX:
+                line[n++] = '$';
+                n = hex(operand, 4, n);
+                n = append(", X", n);
+                break;
+            case ABY:
+                line[n++] = '$';
+                n = hex(operand, 4, n);
+                n = append(", Y", n);
+                break;
+            case IND:
+                n = append("($", n);
+                n = hex(operand, 4, n);
+                line[n++] = ')';
+                break;
+            case REL:
+                // The target is shown without sign extending the offset, as
+                // disassemble() does
+                line[n++] = '$';
+                n = hex(operand, 2, n);
+                n = append(" [$", n);
+                n = hex(addr + 2 + operand, 4, n);
+                line[n++] = ']';
+                break;
+        }
+        n = append(" {", n);
+        n = append(MODE_NAMES[mode], n);
+        line[n++] = '}';
+        return new String(line, 0, n);
+    }
+
+    private int hex(int value, int digits, int n){
+        for (int i = digits - 1; i >= 0; i--, value >>= 4) {
+            line[n + i] = DIGITS[value & 0xF];
+        }
+        return n + digits;
+    }
+
+    private int append(String s, int n){
+        for (int i = 0; i < s.length(); i++) line[n++] = s.charAt(i);
+        return n;
+    }
+
+}
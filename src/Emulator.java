@@ -0,0 +1,181 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+// Runs a machine on a thread of its own, so a long run never holds up the
+// UI and the UI never sees the machine half way through an instruction.
+// After start() only the emulation thread touches the Bus. The two sides
+// talk without locks:
+//   - the UI sends commands with send(), which queues them and wakes the
+//     thread; they are carried out between instructions. Anything else, e.g.
+//     setting breakpoints, goes the same way through submit()
+//   - the thread publishes a MachineState after every frame it runs and
+//     after every command, through a TripleBuffer the UI reads with latest()
+//     at its own rate
+// While running, the machine is kept to the speed of the console, a 60 Hz
+// frame of CPU cycles at a time. A breakpoint that stops the CPU pauses it;
+// RUN and STEP go on from there.
+// Resets, interrupts and anything else it does to the machine from outside
+// go through a Journal, so a session can be recorded and replayed, see
+// journal().
+public class Emulator {
+
+    public enum Command {
+        RUN,   // Run at the speed of the console
+        PAUSE,
+        STEP,  // Pause, then run one instruction
+        RESET,
+        IRQ,
+        NMI
+    }
+
+    private static final long CYCLES_PER_FRAME = 29781; // NTSC CPU cycles in a 60 Hz frame
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+    private static final long MAX_LAG_NANOS = 100_000_000L; // Further behind than this, it gives up catching up
+
+    private final Bus bus;
+    private final Journal journal;
+    private final Queue<Command> commands = new ConcurrentLinkedQueue<>();
+    private final Queue<Consumer<Bus>> actions = new ConcurrentLinkedQueue<>();
+    private final TripleBuffer<MachineState> states = new TripleBuffer<>(MachineState::new);
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    // Emulation thread only
+    private boolean running = false;
+    private long deadline = 0; // When the next frame is due
+    private long sequence = 0;
+
+    public Emulator(Bus bus) {
+        this.bus = bus;
+        journal = new Journal(bus);
+        thread = new Thread(this::loop, "Emulation");
+        thread.setDaemon(true);
+    }
+
+
+    public void start(){
+        thread.start();
+    }
+
+    // Never blocks, any thread
+    public void send(Command command){
+        commands.offer(command);
+        LockSupport.unpark(thread);
+    }
+
+    // Runs action on the emulation thread, between instructions, with the Bus
+    // it may then touch. Never blocks, any thread
+    public void submit(Consumer<Bus> action){
+        actions.offer(action);
+        LockSupport.unpark(thread);
+    }
+
+    // What changes the machine from outside. Only touch it on the emulation
+    // thread, through submit()
+    public Journal journal(){
+        return journal;
+    }
+
+    // The newest state, for the one UI thread. It stays valid until the next call
+    public MachineState latest(){
+        return states.front();
+    }
+
+    public void stop(){
+        stopped = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // EMULATION THREAD
+    private void loop(){
+        publish();
+        while (!stopped) {
+            boolean changed = false;
+            Command command;
+            while ((command = commands.poll()) != null) {
+                apply(command);
+                changed = true;
+            }
+            Consumer<Bus> action;
+            while ((action = actions.poll()) != null) {
+                action.accept(bus);
+                changed = true;
+            }
+            if (changed) publish();
+
+            if (!running) {
+                LockSupport.park(this);
+                continue;
+            }
+            long now = System.nanoTime();
+            if (now < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+            if (now - deadline > MAX_LAG_NANOS) deadline = now;
+            bus.scheduler.runCycles(CYCLES_PER_FRAME);
+            if (bus.breakpoints.hit()) running = false;
+            deadline += FRAME_NANOS;
+            publish();
+        }
+    }
+
+    private void apply(Command command){
+        switch (command) {
+            case RUN:
+                if (!running) deadline = System.nanoTime();
+                bus.breakpoints.resume();
+                running = true;
+                break;
+            case PAUSE:
+                running = false;
+                break;
+            case STEP:
+                running = false;
+                bus.breakpoints.resume();
+                bus.scheduler.step();
+                break;
+            case RESET:
+                journal.reset();
+                break;
+            case IRQ:
+                journal.irq();
+                break;
+            case NMI:
+                journal.nmi();
+                break;
+        }
+    }
+
+    private void publish(){
+        MachineState state = states.back();
+        CPU6502 cpu = bus.cpu;
+        state.sequence = ++sequence;
+        state.running = running;
+        state.pc = cpu.pc;
+        state.a = cpu.a;
+        state.x = cpu.x;
+        state.y = cpu.y;
+        state.stkp = cpu.stkp;
+        state.status = cpu.status;
+        state.clockCount = cpu.clockCount;
+        Breakpoints.Breakpoint stoppedBy = bus.breakpoints.stoppedBy();
+        state.stoppedBy = stoppedBy == null ? null : stoppedBy.toString();
+        byte[] memory = state.memory;
+        for (int addr = 0; addr < memory.length; addr++) {
+            memory[addr] = (byte) bus.read(addr, true);
+        }
+        states.publish();
+    }
+
+}
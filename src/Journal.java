@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import utils.CpuEngine;
+
+
+// Deterministic record of everything from outside that changes a machine, so
+// a session can be run again bit for bit, headless and as fast as the host
+// allows. Whoever drives the machine makes those changes through a Journal:
+// RESET, IRQ, NMI, controller buttons and pokes are carried out between
+// instructions and, while recording, each is stamped with the clockCount it
+// happened at. Runs and steps are not recorded. The Scheduler takes an
+// interrupt after the instruction in which it starts waiting, however the
+// runs are cut up, so the machine gets to a cycle the same way whatever
+// budgets it was run with, on the JIT as well, and with breakpoints, the
+// profiler or the trace recorder on or off.
+//
+// replay() loads the state recording started from, runs the machine to the
+// cycle of each event, checking that it lands on it, and makes the same call;
+// then it runs to the cycle recording stopped at. The saved state holds the
+// CPU, memory and PPU, not the APU or mapper, so a journal of a Nes only
+// starts from power on, see start().
+//
+// File, little-endian:
+//   header  32 bytes
+//     "6502JNL" and the format version
+//     byte  CpuEngine it was recorded on
+//     byte  1 if recorded on a Nes
+//     short 0
+//     int   bytes of state
+//     long  events
+//     long  clockCount recording stopped at
+//   state   as Bus.saveState() writes it
+//   event   16 bytes
+//     long  clockCount at the event
+//     long  bits 0-7 type, 8-31 first argument, 32-63 second argument
+//
+// Only the thread running the machine may touch this, see Emulator.submit().
+public class Journal {
+
+    // Event types, with their arguments
+    static final int RESET = 0;
+    static final int IRQ = 1;
+    static final int NMI = 2;
+    static final int BUTTONS = 3; // Port and buttons
+    static final int POKE = 4;    // Address and data
+
+    static final int VERSION = 2; // 2: no runs, end of recording in the header
+    private static final byte[] MAGIC = "6502JNL".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = 32;
+    private static final int EVENT_BYTES = 16;
+
+    private final Bus bus;
+    private final Nes nes; // Null for a machine without controllers
+
+    private boolean recording = false;
+    private byte[] start = null; // State recording started from
+    private long[] events = new long[64]; // Two longs per event, see the file layout
+    private int length = 0; // Longs of events used
+    private long end = 0; // clockCount recording stopped at
+
+    public Journal(Bus bus) {
+        this(bus, null);
+    }
+
+    public Journal(Nes nes) {
+        this(nes.bus, nes);
+    }
+
+    private Journal(Bus bus, Nes nes) {
+        this.bus = bus;
+        this.nes = nes;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // EVENTS
+    // Resets the CPU, and the rest of a Nes
+    public void reset(){
+        event(RESET, 0, 0);
+    }
+
+    public void irq(){
+        event(IRQ, 0, 0);
+    }
+
+    public void nmi(){
+        event(NMI, 0, 0);
+    }
+
+    // See Nes.setButtons()
+    public void buttons(int port, int pressed){
+        if (nes == null) throw new IllegalStateException("The machine has no controllers");
+        event(BUTTONS, port, pressed & 0xFF);
+    }
+
+    // See Bus.poke()
+    public void poke(int addr, int data){
+        event(POKE, addr & 0xFFFF, data & 0xFF);
+    }
+
+    private void event(int type, int first, long second){
+        if (recording) record(bus.cpu.clockCount, type, first, second);
+        apply(type, first, second);
+    }
+
+    private void apply(int type, int first, long second){
+        switch (type) {
+            case RESET:
+                if (nes != null) nes.reset();
+                else bus.cpu.reset();
+                break;
+            case IRQ:
+                bus.cpu.irq();
+                break;
+            case NMI:
+                bus.cpu.nmi();
+                break;
+            case BUTTONS:
+                nes.setButtons(first, (int) second);
+                break;
+            case POKE:
+                bus.poke(first, (int) second);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event type " + type);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // RECORDING
+    // Starts a new record from the state the machine is in now. Throws
+    // IllegalStateException on a Nes that has run since power on, as the
+    // state of its APU and mapper cannot be saved with it
+    public void start(){
+        if (nes != null && bus.cpu.clockCount != 0) {
+            throw new IllegalStateException("A journal of a Nes can only start from power on");
+        }
+        start = new byte[bus.stateSize()];
+        bus.saveState(ByteBuffer.wrap(start));
+        length = 0;
+        recording = true;
+    }
+
+    public void stop(){
+        if (recording) end = bus.cpu.clockCount;
+        recording = false;
+    }
+
+    public boolean recording(){
+        return recording;
+    }
+
+    public int events(){
+        return length / 2;
+    }
+
+    private void record(long at, int type, int first, long second){
+        if (length == events.length) events = Arrays.copyOf(events, length * 2);
+        events[length++] = at;
+        events[length++] = type | ((long) first << 8) | (second << 32);
+    }
+
+    // Writes what was recorded so far, replacing file
+    public void save(Path file) throws IOException {
+        if (start == null) throw new IllegalStateException("Nothing recorded");
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + start.length + length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC).put((byte) VERSION);
+        out.put((byte) bus.cpu.engine.ordinal()).put((byte) (nes != null ? 1 : 0)).putShort((short) 0);
+        out.putInt(start.length).putLong(length / 2).putLong(recording ? bus.cpu.clockCount : end);
+        out.put(start);
+        for (int i = 0; i < length; i++) out.putLong(events[i]);
+        out.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) channel.write(out);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // REPLAY
+    // Puts the machine in the state the journal in file starts from and runs
+    // it through its events to where recording stopped, as fast as it can.
+    // Returns the cycles run. Throws IllegalStateException if the machine
+    // does not come to the cycle of an event or a breakpoint stops it, and
+    // IllegalArgumentException if the journal was recorded on another kind
+    // of machine
+    public long replay(Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        for (byte b : MAGIC) {
+            if (in.remaining() < HEADER_BYTES || in.get() != b) throw new IllegalArgumentException("Not a journal");
+        }
+        int version = in.get();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported journal version " + version);
+        CpuEngine engine = CpuEngine.values()[in.get()];
+        if (engine != bus.cpu.engine) {
+            throw new IllegalArgumentException("Journal was recorded on " + engine + ", the machine runs " + bus.cpu.engine);
+        }
+        if ((in.get() != 0) != (nes != null)) throw new IllegalArgumentException("Journal was recorded on another kind of machine");
+        in.getShort();
+        int stateBytes = in.getInt();
+        long count = in.getLong();
+        long stopped = in.getLong();
+        if (in.remaining() != stateBytes + count * EVENT_BYTES) throw new IllegalArgumentException("Journal is cut short");
+
+        bus.loadState(in);
+        long first = bus.cpu.clockCount;
+        boolean wasRecording = recording;
+        recording = false;
+        try {
+            for (long n = 0; n < count; n++) {
+                long at = in.getLong();
+                long word = in.getLong();
+                runTo(at);
+                if (bus.cpu.clockCount != at) {
+                    throw new IllegalStateException(String.format("Replay diverged at event %d: cycle %d, recorded at %d",
+                            n, bus.cpu.clockCount, at));
+                }
+                apply((int) word & 0xFF, (int) (word >>> 8) & 0xFFFFFF, word >>> 32);
+            }
+            runTo(stopped);
+            if (bus.cpu.clockCount != stopped) {
+                throw new IllegalStateException(String.format("Replay diverged at the end: cycle %d, recorded at %d",
+                        bus.cpu.clockCount, stopped));
+            }
+        } finally {
+            recording = wasRecording;
+        }
+        return bus.cpu.clockCount - first;
+    }
+
+    // Runs until clockCount is at least "at"
+    private void runTo(long at){
+        while (bus.cpu.clockCount < at) {
+            bus.scheduler.runCycles(at - bus.cpu.clockCount);
+            if (bus.breakpoints.hit()) {
+                throw new IllegalStateException("A breakpoint stopped the replay at cycle " + bus.cpu.clockCount);
+            }
+        }
+    }
+
+
+    // Usage: java Journal journal [cartridge]
+    // Replays a journal headless and prints how long it took and the state
+    // it ends in, with a CRC-32 of the address space to compare runs by. A
+    // journal recorded on a Nes needs the cartridge it was recorded with
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java Journal journal [cartridge]");
+            System.exit(2);
+        }
+        Path file = Paths.get(args[0]);
+        CpuEngine engine;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) > 0) { }
+            engine = CpuEngine.values()[header.get(8)];
+        }
+
+        Journal journal;
+        Bus bus;
+        if (args.length == 2) {
+            Nes nes = new Nes(engine);
+            nes.insert(Cartridge.load(Paths.get(args[1])));
+            journal = new Journal(nes);
+            bus = nes.bus;
+        } else {
+            bus = new Bus(engine);
+            journal = new Journal(bus);
+        }
+
+        long begin = System.nanoTime();
+        long cycles = journal.replay(file);
+        long elapsed = System.nanoTime() - begin;
+
+        CRC32 crc = new CRC32();
+        for (int addr = 0; addr < 0x10000; addr++) crc.update(bus.read(addr, true));
+        CPU6502 cpu = bus.cpu;
+        System.out.printf("%d cycles in %.3f s, %.1f MHz%n", cycles, elapsed / 1e9, cycles * 1000.0 / elapsed);
+        System.out.printf("pc=%04X a=%02X x=%02X y=%02X sp=%02X p=%02X cyc=%d crc=%08X%n",
+                cpu.pc, cpu.a, cpu.x, cpu.y, cpu.stkp, cpu.status, cpu.clockCount, crc.getValue());
+    }
+
+}
@@ -0,0 +1,96 @@
+import utils.Mirroring;
+
+
+// Mapper 1. Registers are loaded a bit at a time: five writes of bit 0 to
+// $8000-$FFFF, the fifth going to the register picked by its address:
+//   $8000  control: bits 0-1 mirroring, 2-3 PRG mode, 4 CHR mode
+//   $A000  CHR bank at $0000, 4 KB, or 8 KB with bit 0 ignored
+//   $C000  CHR bank at $1000 in 4 KB mode
+//   $E000  PRG bank: bits 0-3
+// A write with bit 7 set starts over and fixes the last PRG bank at $C000.
+// PRG modes: 0 and 1 switch 32 KB, 2 fixes the first bank at $8000 and
+// switches $C000, 3 switches $8000 and fixes the last bank at $C000.
+//
+// The chip ignores the second of two writes on consecutive cycles, which
+// read-modify-write instructions make. Writes here are not timed to the
+// cycle within an instruction, so that is not emulated.
+public class MMC1 extends Mapper {
+
+    private static final int SHIFT_EMPTY = 0x10; // Bits come in at bit 4; the marker reaching bit 0 means the fifth write
+
+    private int shift = SHIFT_EMPTY;
+    private int control = 0x0C;
+    private int chrBank0 = 0;
+    private int chrBank1 = 0;
+    private int prgBank = 0;
+
+    MMC1(Cartridge cartridge) {
+        super(cartridge);
+    }
+
+
+    @Override
+    protected void reset(){
+        shift = SHIFT_EMPTY;
+        control = 0x0C;
+        chrBank0 = chrBank1 = prgBank = 0;
+        update();
+    }
+
+    @Override
+    public void write(int addr, int data){
+        if ((data & 0x80) != 0) {
+            shift = SHIFT_EMPTY;
+            control |= 0x0C;
+            update();
+            return;
+        }
+        boolean fifth = (shift & 1) != 0;
+        shift = (shift >> 1) | ((data & 1) << 4);
+        if (!fifth) return;
+
+        switch ((addr >> 13) & 3) {
+            case 0: control = shift; break;
+            case 1: chrBank0 = shift; break;
+            case 2: chrBank1 = shift; break;
+            case 3: prgBank = shift; break;
+        }
+        shift = SHIFT_EMPTY;
+        update();
+    }
+
+    private void update(){
+        if (cartridge.mirroring != Mirroring.FOUR_SCREEN) {
+            switch (control & 3) {
+                case 0: ppu.setMirroring(Mirroring.SINGLE_LOWER); break;
+                case 1: ppu.setMirroring(Mirroring.SINGLE_UPPER); break;
+                case 2: ppu.setMirroring(Mirroring.VERTICAL); break;
+                case 3: ppu.setMirroring(Mirroring.HORIZONTAL); break;
+            }
+        }
+
+        int bank = prgBank & 0x0F;
+        switch ((control >> 2) & 3) {
+            case 0:
+            case 1:
+                mapPrg(0x8000, 0x8000, bank >> 1);
+                break;
+            case 2:
+                mapPrg(0x8000, 0x4000, 0);
+                mapPrg(0xC000, 0x4000, bank);
+                break;
+            case 3:
+                mapPrg(0x8000, 0x4000, bank);
+                mapPrg(0xC000, 0x4000, -1);
+                break;
+        }
+
+        if ((control & 0x10) == 0) {
+            mapChr(0x0000, 0x2000, chrBank0 >> 1);
+        } else {
+            mapChr(0x0000, 0x1000, chrBank0);
+            mapChr(0x1000, 0x1000, chrBank1);
+        }
+    }
+
+}
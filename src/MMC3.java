@@ -0,0 +1,124 @@
+import utils.ClockedDevice;
+import utils.Mirroring;
+
+
+// Mapper 4. Registers, even and odd addresses of each 8 KB:
+//   $8000  bank select: bits 0-2 which of R0-R7 $8001 sets, bit 6 PRG mode,
+//          bit 7 CHR inversion
+//   $8001  bank number for the selected register
+//   $A000  mirroring: 0 vertical, 1 horizontal
+//   $A001  PRG RAM protection, not emulated
+//   $C000  IRQ counter reload value
+//   $C001  reloads the counter at the next clock
+//   $E000  disables and acknowledges the IRQ
+//   $E001  enables the IRQ
+// PRG is four 8 KB banks: R6, R7, and the second last and last banks, with
+// R6 and the second last swapped in PRG mode 1. CHR is R0 and R1 in 2 KB at
+// $0000, and R2-R5 in 1 KB at $1000, the halves swapped by CHR inversion.
+//
+// The counter is clocked by the PPU once a line while rendering, and raises
+// IRQ when it reaches 0 with the IRQ enabled. The PPU wakes up for the
+// clocks itself, so the mapper is a clocked device only to have an IRQ line
+// on the scheduler.
+public class MMC3 extends Mapper implements ClockedDevice {
+
+    private final int[] registers = new int[8];
+    private int bankSelect = 0;
+    private int irqLatch = 0;
+    private int irqCounter = 0;
+    private boolean irqReload = false;
+    private boolean irqEnabled = false;
+    private int id = -1;
+
+    MMC3(Cartridge cartridge) {
+        super(cartridge);
+    }
+
+
+    @Override
+    void attach(Nes nes){
+        id = nes.bus.scheduler.add(this);
+        super.attach(nes);
+        ppu.setScanlineCounter(this::clockCounter);
+    }
+
+    @Override
+    protected void reset(){
+        System.arraycopy(new int[] { 0, 2, 4, 5, 6, 7, 0, 1 }, 0, registers, 0, 8);
+        bankSelect = 0;
+        irqLatch = irqCounter = 0;
+        irqReload = irqEnabled = false;
+        bus.scheduler.setIrq(id, false);
+        update();
+    }
+
+    @Override
+    public void write(int addr, int data){
+        data &= 0xFF;
+        switch (addr & 0xE001) {
+            case 0x8000:
+                bankSelect = data;
+                update();
+                break;
+            case 0x8001:
+                registers[bankSelect & 7] = data;
+                update();
+                break;
+            case 0xA000:
+                if (cartridge.mirroring != Mirroring.FOUR_SCREEN) {
+                    ppu.setMirroring((data & 1) == 0 ? Mirroring.VERTICAL : Mirroring.HORIZONTAL);
+                }
+                break;
+            case 0xC000:
+                // Lines the PPU has already passed count with the old settings
+                bus.scheduler.catchUpAll();
+                irqLatch = data;
+                break;
+            case 0xC001:
+                bus.scheduler.catchUpAll();
+                irqCounter = 0;
+                irqReload = true;
+                break;
+            case 0xE000:
+                bus.scheduler.catchUpAll();
+                irqEnabled = false;
+                bus.scheduler.setIrq(id, false);
+                break;
+            case 0xE001:
+                bus.scheduler.catchUpAll();
+                irqEnabled = true;
+                break;
+        }
+    }
+
+    private void update(){
+        boolean prgSwap = (bankSelect & 0x40) != 0;
+        mapPrg(0x8000, 0x2000, prgSwap ? -2 : registers[6]);
+        mapPrg(0xA000, 0x2000, registers[7]);
+        mapPrg(0xC000, 0x2000, prgSwap ? registers[6] : -2);
+        mapPrg(0xE000, 0x2000, -1);
+
+        int invert = (bankSelect & 0x80) != 0 ? 0x1000 : 0;
+        mapChr(invert, 0x0800, registers[0] >> 1);
+        mapChr(invert | 0x0800, 0x0800, registers[1] >> 1);
+        for (int i = 0; i < 4; i++) {
+            mapChr((invert ^ 0x1000) | (i << 10), 0x0400, registers[2 + i]);
+        }
+    }
+
+    private void clockCounter(){
+        if (irqCounter == 0 || irqReload) {
+            irqCounter = irqLatch;
+            irqReload = false;
+        } else {
+            irqCounter--;
+        }
+        if (irqCounter == 0 && irqEnabled) bus.scheduler.setIrq(id, true);
+    }
+
+    @Override
+    public void runUntil(long time){
+        // Nothing runs here, see clockCounter()
+    }
+
+}
@@ -0,0 +1,58 @@
+// What the UI shows of a machine: the CPU registers and the whole address
+// space as it reads, copied between two instructions on the emulation
+// thread. Emulator only writes one while the UI can not see it, so to the
+// UI it does not change.
+public final class MachineState {
+
+    long sequence = 0; // Increases with every state published, 0 before the first
+    boolean running = false;
+    int pc, a, x, y, stkp, status;
+    long clockCount;
+    String stoppedBy; // Breakpoint the machine is stopped on, null if none
+    final byte[] memory = new byte[0x10000];
+
+    public long sequence(){
+        return sequence;
+    }
+
+    public boolean running(){
+        return running;
+    }
+
+    public int pc(){
+        return pc;
+    }
+
+    public int a(){
+        return a;
+    }
+
+    public int x(){
+        return x;
+    }
+
+    public int y(){
+        return y;
+    }
+
+    public int stkp(){
+        return stkp;
+    }
+
+    public int status(){
+        return status;
+    }
+
+    public long clockCount(){
+        return clockCount;
+    }
+
+    public String stoppedBy(){
+        return stoppedBy;
+    }
+
+    public int read(int addr){
+        return memory[addr & 0xFFFF] & 0xFF;
+    }
+
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+import utils.BusDevice;
+
+
+// Bank switching hardware of a cartridge. The mapper takes the CPU's writes
+// to $8000-$FFFF, which reads leave to the ROM below, and points the Bus
+// pages of PRG ROM and the PPU banks of CHR at parts of the cartridge. A
+// switch only changes where those pages point: nothing is copied, and a bank
+// that is already in place is left alone, so code decoded from it stays
+// valid.
+public abstract class Mapper implements BusDevice {
+
+    private static final int PRG_SLOT = 0x2000; // Smallest PRG bank of any mapper here
+
+    protected final Cartridge cartridge;
+    protected Bus bus;
+    protected PPU2C02 ppu;
+
+    private final int[] prgOffsets = new int[4]; // Offset into PRG ROM of each 8 KB at $8000, -1 until mapped
+
+    protected Mapper(Cartridge cartridge) {
+        this.cartridge = cartridge;
+        Arrays.fill(prgOffsets, -1);
+    }
+
+
+    // Plugs the mapper into the console: PRG RAM at $6000-$7FFF, the writes
+    // to ROM, and the banks of power on
+    void attach(Nes nes){
+        bus = nes.bus;
+        ppu = nes.ppu;
+        bus.mapMemory(0x60, 0x20, cartridge.prgRam, 0, true);
+        bus.mapWriteDevice(0x80, 0x80, this);
+        ppu.setMirroring(cartridge.mirroring);
+        reset();
+    }
+
+    // Sets the registers and banks of power on
+    protected abstract void reset();
+
+    // Only the writes are mapped here, reads go to the ROM
+    @Override
+    public int read(int addr, boolean bReadOnly){
+        return 0;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // BANKS
+    // Points size bytes of the CPU from addr at PRG bank "bank" of that size.
+    // Banks past the end wrap around, negative ones count from the end
+    protected void mapPrg(int addr, int size, int bank){
+        int offset = Math.floorMod(bank, Math.max(1, cartridge.prg.capacity() / size)) * size;
+        for (int i = 0; i < size; i += PRG_SLOT) {
+            int slot = (addr + i - 0x8000) / PRG_SLOT;
+            // ROM smaller than the bank repeats
+            int start = (offset + i) % cartridge.prg.capacity();
+            if (prgOffsets[slot] == start) continue;
+            prgOffsets[slot] = start;
+            bus.mapReadMemory((addr + i) >> 8, PRG_SLOT >> 8, cartridge.prg, start);
+        }
+    }
+
+    // Points size bytes of the pattern tables from addr at CHR bank "bank" of
+    // that size, with the same wrapping as mapPrg()
+    protected void mapChr(int addr, int size, int bank){
+        int offset = Math.floorMod(bank, Math.max(1, cartridge.chr.capacity() / size)) * size;
+        ppu.mapChr(addr >> 10, size >> 10, cartridge.chr, offset % cartridge.chr.capacity(), cartridge.chrRam);
+    }
+
+}
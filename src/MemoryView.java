@@ -0,0 +1,197 @@
+import java.awt.*;
+import javax.swing.*;
+import utils.WriteListener;
+
+
+// Scrollable hex view of the whole address space for the debugger, 16 bytes a
+// row. Put it in a JScrollPane; only the rows inside the area being painted
+// are drawn, and the text of a row is kept until its bytes change.
+//
+// Pages with rows on screen are watched on the bus. A write marks its page
+// dirty and stops watching it, so a running program causes at most one
+// notification per page between refreshes. refresh() compares the rows of
+// dirty pages with the bytes their text shows, and repaints only the rows
+// that differ. Device pages can change without a write, so their rows are
+// always compared.
+public class MemoryView extends JComponent implements Scrollable, WriteListener {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int COLUMNS = 16;
+    static final int ROWS = 0x10000 / COLUMNS;
+    static final int ROW_HEIGHT = 10;
+    private static final int VISIBLE_ROWS = 16; // Preferred height of the viewport
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final Bus bus;
+    private final int listenerId;
+
+    private final String[] text = new String[ROWS]; // Rendered rows, null until painted
+    private final int[] shown = new int[0x10000]; // Bytes the rendered rows show
+    private final boolean[] dirty = new boolean[256]; // Written since they were last compared
+    private final boolean[] watched = new boolean[256];
+    private final char[] line = new char[6 + COLUMNS * 3];
+
+    // Statistics
+    private long rowsRendered = 0;
+
+    public MemoryView(Bus bus) {
+        this.bus = bus;
+        listenerId = bus.addWriteListener(this);
+        setOpaque(true);
+        setBackground(Color.DARK_GRAY);
+        setForeground(Color.WHITE);
+    }
+
+
+    // Scrolls so the row holding addr is at the top
+    public void scrollTo(int addr){
+        if (!(getParent() instanceof JViewport)) return;
+        JViewport viewport = (JViewport) getParent();
+        int y = Math.min((addr / COLUMNS) * ROW_HEIGHT, ROWS * ROW_HEIGHT - viewport.getExtentSize().height);
+        viewport.setViewPosition(new Point(0, Math.max(0, y)));
+    }
+
+    // Repaints the visible rows whose bytes changed since they were painted.
+    // Call after the CPU ran, on the event dispatch thread
+    public void refresh(){
+        Rectangle visible = getVisibleRect();
+        int first = visible.y / ROW_HEIGHT;
+        int last = Math.min(ROWS - 1, (visible.y + visible.height) / ROW_HEIGHT);
+        for (int row = first; row <= last; row++) {
+            int page = row / (256 / COLUMNS);
+            if (text[row] != null && !trusted(page) && changed(row)) {
+                text[row] = null;
+                repaint(0, row * ROW_HEIGHT, getWidth(), ROW_HEIGHT);
+            }
+        }
+        // Compared now, so tell about the next write again. Rows of the page
+        // that are off screen were not compared, so their text goes
+        for (int page = first * COLUMNS >> 8; page <= last * COLUMNS >> 8; page++) {
+            if (dirty[page]) {
+                for (int row = page * (256 / COLUMNS); row < (page + 1) * (256 / COLUMNS); row++) {
+                    if (row < first || row > last) text[row] = null;
+                }
+                dirty[page] = false;
+                watch(page);
+            }
+        }
+    }
+
+    public long rowsRendered(){
+        return rowsRendered;
+    }
+
+    // True if the rows of the page can only have changed by a write we were
+    // told about
+    private boolean trusted(int page){
+        return watched[page] && !dirty[page] && !bus.isDevicePage(page);
+    }
+
+    private boolean changed(int row){
+        int addr = row * COLUMNS;
+        for (int col = 0; col < COLUMNS; col++, addr++) {
+            if ((bus.read(addr, true) & 0xFF) != shown[addr]) return true;
+        }
+        return false;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // PAINTING
+    @Override
+    protected void paintComponent(Graphics g){
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setColor(getForeground());
+
+        int first = clip.y / ROW_HEIGHT;
+        int last = Math.min(ROWS - 1, (clip.y + clip.height) / ROW_HEIGHT);
+        int ascent = g.getFontMetrics().getAscent();
+        for (int row = first; row <= last; row++) {
+            int page = row / (256 / COLUMNS);
+            if (text[row] == null || (!trusted(page) && changed(row))) render(row);
+            g.drawString(text[row], 2, row * ROW_HEIGHT + Math.min(ascent, ROW_HEIGHT));
+        }
+        for (int page = first * COLUMNS >> 8; page <= last * COLUMNS >> 8; page++) {
+            if (!dirty[page]) watch(page);
+        }
+    }
+
+    private void render(int row){
+        int addr = row * COLUMNS;
+        int n = 0;
+        line[n++] = '$';
+        for (int shift = 12; shift >= 0; shift -= 4) line[n++] = DIGITS[(addr >> shift) & 0xF];
+        line[n++] = ':';
+        for (int col = 0; col < COLUMNS; col++, addr++) {
+            int data = bus.read(addr, true) & 0xFF;
+            shown[addr] = data;
+            line[n++] = ' ';
+            line[n++] = DIGITS[data >> 4];
+            line[n++] = DIGITS[data & 0xF];
+        }
+        text[row] = new String(line, 0, n);
+        rowsRendered++;
+    }
+
+    private void watch(int page){
+        if (!watched[page]) {
+            watched[page] = true;
+            bus.watchPage(listenerId, page);
+        }
+    }
+
+    @Override
+    public void written(int addr){
+        int page = addr >> 8;
+        dirty[page] = true;
+        watched[page] = false;
+        bus.unwatchPage(listenerId, page);
+    }
+
+    @Override
+    public void remapped(int page){
+        written(page << 8);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // SCROLLING
+    @Override
+    public Dimension getPreferredSize(){
+        Font font = getFont();
+        int charWidth = font != null ? getFontMetrics(font).charWidth('0') : 8;
+        return new Dimension(charWidth * line.length + 4, ROWS * ROW_HEIGHT);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize(){
+        return new Dimension(getPreferredSize().width, VISIBLE_ROWS * ROW_HEIGHT);
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction){
+        return orientation == SwingConstants.VERTICAL ? ROW_HEIGHT : 8;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction){
+        if (orientation != SwingConstants.VERTICAL) return visible.width;
+        return Math.max(ROW_HEIGHT, (visible.height / ROW_HEIGHT - 1) * ROW_HEIGHT);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth(){
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight(){
+        return false;
+    }
+
+}
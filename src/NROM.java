@@ -0,0 +1,22 @@
+// Mapper 0: no bank switching. 16 or 32 KB of PRG ROM, a 16 KB one repeated
+// at $C000, and 8 KB of CHR
+public class NROM extends Mapper {
+
+    NROM(Cartridge cartridge) {
+        super(cartridge);
+    }
+
+
+    @Override
+    protected void reset(){
+        mapPrg(0x8000, 0x4000, 0);
+        mapPrg(0xC000, 0x4000, -1);
+        mapChr(0x0000, 0x2000, 0);
+    }
+
+    @Override
+    public void write(int addr, int data){
+        // ROM
+    }
+
+}
@@ -0,0 +1,132 @@
+import utils.BusDevice;
+import utils.CpuEngine;
+
+
+// The console: the CPU and its 2 KB of RAM on the Bus, the PPU, the APU, and
+// the I/O registers of the 2A03 at $4000-$401F. Address space of the CPU:
+//   $0000-$07FF  RAM, repeated up to $1FFF
+//   $2000-$3FFF  PPU registers, see PPU2C02
+//   $4000-$401F  I/O registers, handled here or handed to APU2A03
+//   $4020-$5FFF  RAM
+//   $6000-$7FFF  cartridge PRG RAM, RAM until one is inserted
+//   $8000-$FFFF  cartridge PRG ROM, see insert() and Mapper
+public class Nes implements BusDevice {
+
+    // About a scanline, runFrame() checks for a finished frame this often
+    private static final int CYCLES_PER_SLICE = 114;
+
+    // Buttons of a standard controller, in the order its shift register
+    // hands them out
+    public static final int BUTTON_A = 1 << 0;
+    public static final int BUTTON_B = 1 << 1;
+    public static final int BUTTON_SELECT = 1 << 2;
+    public static final int BUTTON_START = 1 << 3;
+    public static final int BUTTON_UP = 1 << 4;
+    public static final int BUTTON_DOWN = 1 << 5;
+    public static final int BUTTON_LEFT = 1 << 6;
+    public static final int BUTTON_RIGHT = 1 << 7;
+
+    public final Bus bus;
+    public final PPU2C02 ppu;
+    public final APU2A03 apu;
+    private Mapper mapper = null;
+
+    // Controllers in ports 1 and 2
+    private final int[] buttons = new int[2]; // Held now
+    private final int[] shifters = new int[2]; // Latched by the strobe, read a bit at a time
+    private boolean strobe = false;
+
+    public Nes() {
+        this(CpuEngine.TABLE);
+    }
+
+    public Nes(CpuEngine engine) {
+        this(engine, APU2A03.DEFAULT_SAMPLE_RATE);
+    }
+
+    public Nes(CpuEngine engine, int sampleRate) {
+        bus = new Bus(engine);
+        bus.mirror(0x08, 0x18, 0x00, 0x08);
+        ppu = new PPU2C02(bus);
+        apu = new APU2A03(bus, sampleRate);
+        bus.mapDevice(0x20, 0x20, ppu);
+        bus.mapDevice(0x40, 0x01, this);
+    }
+
+
+    // Plugs a cartridge in and resets. The console has no way to take it out
+    // again, so this works once
+    public void insert(Cartridge cartridge){
+        if (mapper != null) throw new IllegalStateException("A cartridge is already inserted");
+        Mapper created = cartridge.createMapper();
+        created.attach(this);
+        mapper = created;
+        reset();
+    }
+
+    public void reset(){
+        ppu.reset();
+        apu.reset();
+        bus.cpu.reset();
+    }
+
+    // Sets the buttons held on the controller in port 0 or 1, see BUTTON_A.
+    // Only call between instructions. Journal.buttons() does this and records it
+    public void setButtons(int port, int pressed){
+        if (port != 0 && port != 1) throw new IllegalArgumentException("No controller port " + port);
+        buttons[port] = pressed & 0xFF;
+        if (strobe) shifters[port] = buttons[port];
+    }
+
+    // Runs until the PPU finishes the next frame, or a breakpoint stops the
+    // CPU, and returns the CPU cycles used. The frame is then in ppu.frame
+    public long runFrame(){
+        long frames = ppu.frames();
+        long used = 0;
+        while (ppu.frames() == frames && !bus.breakpoints.hit()) {
+            used += bus.scheduler.runCycles(CYCLES_PER_SLICE);
+        }
+        return used;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // I/O REGISTERS
+    @Override
+    public int read(int addr, boolean bReadOnly){
+        if (addr == 0x4015) return apu.read(addr, bReadOnly);
+        if (addr == 0x4016 || addr == 0x4017) return 0x40 | readController(addr - 0x4016, bReadOnly);
+        return 0;
+    }
+
+    // Next button of the controller, A first. Once all eight are out it reads
+    // 1, as the standard controller does. With the strobe high it keeps
+    // reading A. The upper bits are open bus, usually $40
+    private int readController(int port, boolean bReadOnly){
+        if (strobe) return buttons[port] & 1;
+        int bit = shifters[port] & 1;
+        if (!bReadOnly) shifters[port] = (shifters[port] >> 1) | 0x80;
+        return bit;
+    }
+
+    @Override
+    public void write(int addr, int data){
+        switch (addr) {
+            case 0x4014:
+                ppu.oamDma(data & 0xFF);
+                break;
+            case 0x4016:
+                // Latches both controllers while the strobe is high
+                strobe = (data & 1) != 0;
+                if (strobe) {
+                    shifters[0] = buttons[0];
+                    shifters[1] = buttons[1];
+                }
+                break;
+            default:
+                if (addr <= 0x4017) apu.write(addr, data);
+                break;
+        }
+    }
+
+}
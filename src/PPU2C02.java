@@ -0,0 +1,645 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import utils.BusDevice;
+import utils.ClockedDevice;
+import utils.Mirroring;
+import utils.StatefulDevice;
+
+
+// The 2C02 picture processing unit. Its eight registers are mapped on the Bus
+// at $2000-$2007, repeated up to $3FFF. It has its own address space:
+//   $0000-$1FFF  pattern tables, 8 KB of CHR in eight 1 KB banks, RAM on the
+//                PPU until a cartridge maps its own with mapChr()
+//   $2000-$2FFF  four nametables in 2 KB of video RAM, see setMirroring()
+//   $3F00-$3F1F  palette
+// and 256 bytes of sprite memory (OAM), filled through $2004 or by DMA.
+//
+// The PPU runs three dots per CPU cycle but is not ticked with the CPU. It is
+// a ClockedDevice: it catches up when the CPU touches a register and when the
+// start of vertical blank comes, which is when it raises NMI, and once a line
+// when a mapper has a scanline counter on it. Each visible line is rendered
+// whole into "frame" at its first dot, with the scroll, pattern and palette
+// settings of that moment. Register writes during a line show from the next
+// line on, which is when games make them anyway (in horizontal blank). Sprite
+// 0 hit is worked out with the line and shows in $2002 from the dot it
+// happens at.
+//
+// Tiles are decoded from CHR into 2-bit pixels once and kept until the CHR
+// behind them is written or remapped.
+//
+// Its registers, position, video RAM, palette, OAM and own CHR RAM are part
+// of the save states of the Bus. What a cartridge maps with mapChr() and
+// setScanlineCounter() is not; that belongs to the mapper.
+public class PPU2C02 implements BusDevice, ClockedDevice, StatefulDevice {
+
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 240;
+
+    static final int DOTS = 341; // Per line
+    static final int LINES = 262; // Per frame
+    static final int MASTER_PER_DOT = 4;
+    private static final int VBLANK_LINE = 241;
+    private static final int PRERENDER_LINE = 261;
+
+    // PPUCTRL
+    private static final int CTRL_INCREMENT_32 = 0x04;
+    private static final int CTRL_SPRITE_TABLE = 0x08;
+    private static final int CTRL_BG_TABLE = 0x10;
+    private static final int CTRL_SPRITE_16 = 0x20;
+    private static final int CTRL_NMI = 0x80;
+    // PPUMASK
+    private static final int MASK_GREY = 0x01;
+    private static final int MASK_BG_LEFT = 0x02;
+    private static final int MASK_SPRITES_LEFT = 0x04;
+    private static final int MASK_BG = 0x08;
+    private static final int MASK_SPRITES = 0x10;
+    // PPUSTATUS
+    private static final int STATUS_OVERFLOW = 0x20;
+    private static final int STATUS_SPRITE_0 = 0x40;
+    private static final int STATUS_VBLANK = 0x80;
+
+    // Sprite pixels of a line: bits 0-1 colour, 2-3 palette, then
+    private static final int SPRITE_BEHIND = 0x20;
+    private static final int SPRITE_ZERO = 0x40;
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    // ARGB of the 64 colours the PPU makes
+    private static final int[] COLOURS = {
+        0x545454, 0x001E74, 0x081090, 0x300088, 0x440064, 0x5C0030, 0x540400, 0x3C1800,
+        0x202A00, 0x083A00, 0x004000, 0x003C00, 0x00323C, 0x000000, 0x000000, 0x000000,
+        0x989698, 0x084CC4, 0x3032EC, 0x5C1EE4, 0x8814B0, 0xA01464, 0x982220, 0x783C00,
+        0x545A00, 0x287200, 0x087C00, 0x007628, 0x006678, 0x000000, 0x000000, 0x000000,
+        0xECEEEC, 0x4C9AEC, 0x787CEC, 0xB062EC, 0xE454EC, 0xEC58B4, 0xEC6A64, 0xD48820,
+        0xA0AA00, 0x74C400, 0x4CD020, 0x38CC6C, 0x38B4CC, 0x3C3C3C, 0x000000, 0x000000,
+        0xECEEEC, 0xA8CCEC, 0xBCBCEC, 0xD4B2EC, 0xECAEEC, 0xECAED4, 0xECB4B0, 0xE4C490,
+        0xCCD278, 0xB4DE78, 0xA8E290, 0x98E2B4, 0xA0D6E4, 0xA0A2A0, 0x000000, 0x000000
+    };
+    static {
+        for (int i = 0; i < COLOURS.length; i++) COLOURS[i] |= 0xFF000000;
+    }
+
+    // Finished lines, ARGB, WIDTH by HEIGHT. Complete whenever frames() advances
+    public final int[] frame = new int[WIDTH * HEIGHT];
+
+    private final Bus bus;
+    private final Scheduler scheduler;
+    private final int id;
+
+    // Pattern tables, eight 1 KB banks
+    private final ByteBuffer[] chr = new ByteBuffer[8];
+    private final int[] chrOffset = new int[8];
+    private final boolean[] chrWritable = new boolean[8];
+    private final ByteBuffer chrRam = ByteBuffer.wrap(new byte[0x2000]);
+
+    // Video RAM, 2 KB on the console plus 2 KB for four-screen cartridges
+    private final byte[] vram = new byte[0x1000];
+    private final int[] nametables = new int[4]; // Offset into vram of each nametable
+    private final int[] palette = new int[32];
+    final int[] oam = new int[256];
+
+    // Decoded tiles, 2-bit colour of each pixel row by row, 64 per tile
+    private final byte[] tiles = new byte[512 * 64];
+    private final boolean[] tileValid = new boolean[512];
+
+    // Registers. v and t are the current and temporary VRAM addresses:
+    //   bits 0-4 coarse x, 5-9 coarse y, 10-11 nametable, 12-14 fine y
+    private int ctrl = 0;
+    private int mask = 0;
+    private int status = 0;
+    private int oamAddr = 0;
+    private int v = 0;
+    private int t = 0;
+    private int fineX = 0;
+    private boolean secondWrite = false; // Toggle of $2005/$2006
+    private int readBuffer = 0; // $2007 reads are a read behind below the palette
+    private int latch = 0; // Last value on the register bus, read back from write-only registers
+
+    // Position
+    private long dots = 0; // Since power on, master time / MASTER_PER_DOT
+    private int scanline = 0;
+    private int dot = 0;
+    private boolean oddFrame = false;
+    private long frames = 0;
+    private long sprite0Hit = NEVER; // Dot at which the flag sets this frame
+
+    // Clocked at dot 260 of every line the PPU fetches on, where MMC3 and
+    // similar mappers see the pattern fetches of the sprites begin
+    private Runnable scanlineCounter = null;
+
+    // Line buffers, palette index per pixel with 0 for transparent
+    private final byte[] bgLine = new byte[WIDTH];
+    private final byte[] bgTiles = new byte[WIDTH + 8]; // Whole tiles, before fine x
+    private final int[] lineColours = new int[32];
+    private final byte[] spriteLine = new byte[WIDTH];
+
+    // Statistics
+    private long tilesDecoded = 0;
+
+    public PPU2C02(Bus bus) {
+        this.bus = bus;
+        this.scheduler = bus.scheduler;
+        for (int bank = 0; bank < 8; bank++) {
+            chr[bank] = chrRam;
+            chrOffset[bank] = bank * 0x400;
+            chrWritable[bank] = true;
+        }
+        id = scheduler.add(this);
+        bus.addStateDevice(this);
+        setMirroring(Mirroring.HORIZONTAL);
+        scheduleNext();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // CARTRIDGE
+    // Points count 1 KB banks of the pattern tables, from firstBank, at memory
+    // starting at offset. Drops the decoded tiles of those banks
+    public void mapChr(int firstBank, int count, ByteBuffer memory, int offset, boolean writable){
+        if (firstBank < 0 || count < 0 || firstBank + count > 8) throw new IllegalArgumentException("Banks out of range");
+        if (offset < 0 || offset + count * 0x400 > memory.capacity()) {
+            throw new IllegalArgumentException("Mapping runs past the end of the memory");
+        }
+        if (writable && memory.isReadOnly()) throw new IllegalArgumentException("Buffer is read-only");
+        boolean caughtUp = false;
+        for (int i = 0; i < count; i++) {
+            int bank = firstBank + i;
+            if (chr[bank] == memory && chrOffset[bank] == offset + i * 0x400) continue;
+            if (!caughtUp) {
+                scheduler.catchUp(id);
+                caughtUp = true;
+            }
+            chr[bank] = memory;
+            chrOffset[bank] = offset + i * 0x400;
+            chrWritable[bank] = writable;
+            Arrays.fill(tileValid, bank * 64, bank * 64 + 64, false);
+        }
+    }
+
+    // Runs counter once a line while rendering is on, at the moment it is due.
+    // null for none
+    public void setScanlineCounter(Runnable counter){
+        scheduler.catchUp(id);
+        scanlineCounter = counter;
+        scheduleNext();
+    }
+
+    public void setMirroring(Mirroring mirroring){
+        int[] layout;
+        switch (mirroring) {
+            case HORIZONTAL:   layout = new int[] { 0x000, 0x000, 0x400, 0x400 }; break;
+            case VERTICAL:     layout = new int[] { 0x000, 0x400, 0x000, 0x400 }; break;
+            case SINGLE_LOWER: layout = new int[] { 0x000, 0x000, 0x000, 0x000 }; break;
+            case SINGLE_UPPER: layout = new int[] { 0x400, 0x400, 0x400, 0x400 }; break;
+            default:           layout = new int[] { 0x000, 0x400, 0x800, 0xC00 }; break;
+        }
+        if (Arrays.equals(layout, nametables)) return;
+        scheduler.catchUp(id);
+        System.arraycopy(layout, 0, nametables, 0, 4);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // STATE
+    public void reset(){
+        ctrl = 0;
+        mask = 0;
+        secondWrite = false;
+        readBuffer = 0;
+        fineX = 0;
+        t = 0;
+    }
+
+    // Registers and position in the order they are declared, then the
+    // nametable layout, video RAM, palette, OAM and CHR RAM
+    @Override
+    public int stateSize(){
+        return 13 * 4 + 3 * 8 + 4 * 4 + vram.length + palette.length + oam.length + chrRam.capacity();
+    }
+
+    @Override
+    public void saveState(ByteBuffer out){
+        out.putInt(ctrl).putInt(mask).putInt(status).putInt(oamAddr).putInt(v).putInt(t).putInt(fineX);
+        out.putInt(secondWrite ? 1 : 0).putInt(readBuffer).putInt(latch);
+        out.putLong(dots).putInt(scanline).putInt(dot).putInt(oddFrame ? 1 : 0).putLong(frames).putLong(sprite0Hit);
+        for (int offset : nametables) out.putInt(offset);
+        out.put(vram);
+        for (int entry : palette) out.put((byte) entry);
+        for (int entry : oam) out.put((byte) entry);
+        out.put(out.position(), chrRam, 0, chrRam.capacity());
+        out.position(out.position() + chrRam.capacity());
+    }
+
+    @Override
+    public void loadState(ByteBuffer in){
+        ctrl = in.getInt();
+        mask = in.getInt();
+        status = in.getInt();
+        oamAddr = in.getInt();
+        v = in.getInt();
+        t = in.getInt();
+        fineX = in.getInt();
+        secondWrite = in.getInt() != 0;
+        readBuffer = in.getInt();
+        latch = in.getInt();
+        dots = in.getLong();
+        scanline = in.getInt();
+        dot = in.getInt();
+        oddFrame = in.getInt() != 0;
+        frames = in.getLong();
+        sprite0Hit = in.getLong();
+        for (int i = 0; i < 4; i++) nametables[i] = in.getInt();
+        in.get(vram);
+        for (int i = 0; i < palette.length; i++) palette[i] = in.get() & 0x3F;
+        for (int i = 0; i < oam.length; i++) oam[i] = in.get() & 0xFF;
+        chrRam.put(0, in, in.position(), chrRam.capacity());
+        in.position(in.position() + chrRam.capacity());
+        for (int bank = 0; bank < 8; bank++) {
+            if (chr[bank] == chrRam) Arrays.fill(tileValid, bank * 64, bank * 64 + 64, false);
+        }
+        scheduleNext();
+    }
+
+    // Frames finished since power on
+    public long frames(){
+        return frames;
+    }
+
+    public int scanline(){
+        return scanline;
+    }
+
+    public long tilesDecoded(){
+        return tilesDecoded;
+    }
+
+    // Copies a page of CPU memory into OAM, for writes to $4014. The CPU is
+    // halted while the copy runs, one more cycle when it starts on an odd one
+    void oamDma(int page){
+        for (int i = 0; i < 256; i++) {
+            oam[(oamAddr + i) & 0xFF] = bus.read((page << 8) | i, false) & 0xFF;
+        }
+        bus.cpu.stall(513 + (int) (bus.cpu.clockCount & 1));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // REGISTERS
+    @Override
+    public int read(int addr, boolean bReadOnly){
+        if (!bReadOnly) scheduler.catchUp(id);
+        int data;
+        switch (addr & 0x0007) {
+            case 0x0002:
+                data = statusBits() | (latch & 0x1F);
+                if (bReadOnly) return data;
+                status &= ~STATUS_VBLANK;
+                secondWrite = false;
+                break;
+            case 0x0004:
+                data = oam[oamAddr];
+                if (bReadOnly) return data;
+                break;
+            case 0x0007:
+                if ((v & 0x3FFF) >= 0x3F00) {
+                    // The palette answers at once, the buffer gets the
+                    // nametable underneath
+                    data = (latch & 0xC0) | ppuRead(v);
+                    if (bReadOnly) return data;
+                    readBuffer = ppuRead(v - 0x1000);
+                } else {
+                    data = readBuffer;
+                    if (bReadOnly) return data;
+                    readBuffer = ppuRead(v);
+                }
+                v = (v + ((ctrl & CTRL_INCREMENT_32) != 0 ? 32 : 1)) & 0x7FFF;
+                break;
+            default:
+                return latch;
+        }
+        latch = data;
+        return data;
+    }
+
+    @Override
+    public void write(int addr, int data){
+        scheduler.catchUp(id);
+        data &= 0xFF;
+        latch = data;
+        switch (addr & 0x0007) {
+            case 0x0000:
+                // Enabling NMI during vertical blank raises it at once
+                if ((ctrl & CTRL_NMI) == 0 && (data & CTRL_NMI) != 0 && (status & STATUS_VBLANK) != 0) {
+                    scheduler.nmi();
+                }
+                ctrl = data;
+                t = (t & ~0x0C00) | ((data & 0x03) << 10);
+                break;
+            case 0x0001:
+                mask = data;
+                break;
+            case 0x0003:
+                oamAddr = data;
+                break;
+            case 0x0004:
+                oam[oamAddr] = data;
+                oamAddr = (oamAddr + 1) & 0xFF;
+                break;
+            case 0x0005:
+                if (!secondWrite) {
+                    t = (t & ~0x001F) | (data >> 3);
+                    fineX = data & 0x07;
+                } else {
+                    t = (t & ~0x73E0) | ((data & 0x07) << 12) | ((data & 0xF8) << 2);
+                }
+                secondWrite = !secondWrite;
+                break;
+            case 0x0006:
+                if (!secondWrite) {
+                    t = (t & 0x00FF) | ((data & 0x3F) << 8);
+                } else {
+                    t = (t & 0x7F00) | data;
+                    v = t;
+                }
+                secondWrite = !secondWrite;
+                break;
+            case 0x0007:
+                ppuWrite(v, data);
+                v = (v + ((ctrl & CTRL_INCREMENT_32) != 0 ? 32 : 1)) & 0x7FFF;
+                break;
+        }
+    }
+
+    private int statusBits(){
+        return status | (dots >= sprite0Hit ? STATUS_SPRITE_0 : 0);
+    }
+
+    // PPU address space
+    private int ppuRead(int addr){
+        addr &= 0x3FFF;
+        if (addr < 0x2000) return chr[addr >> 10].get(chrOffset[addr >> 10] + (addr & 0x3FF)) & 0xFF;
+        if (addr < 0x3F00) return vram[nametables[(addr >> 10) & 3] + (addr & 0x3FF)] & 0xFF;
+        return palette[paletteIndex(addr)];
+    }
+
+    private void ppuWrite(int addr, int data){
+        addr &= 0x3FFF;
+        if (addr < 0x2000) {
+            int bank = addr >> 10;
+            if (!chrWritable[bank]) return;
+            chr[bank].put(chrOffset[bank] + (addr & 0x3FF), (byte) data);
+            tileValid[addr >> 4] = false;
+        } else if (addr < 0x3F00) {
+            vram[nametables[(addr >> 10) & 3] + (addr & 0x3FF)] = (byte) data;
+        } else {
+            palette[paletteIndex(addr)] = data & 0x3F;
+        }
+    }
+
+    // The backdrop entries of the sprite palettes are those of the background
+    private static int paletteIndex(int addr){
+        int i = addr & 0x1F;
+        return (i & 0x13) == 0x10 ? i & 0x0F : i;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // TIMING
+    @Override
+    public void runUntil(long time){
+        long target = time / MASTER_PER_DOT;
+        while (dots < target) {
+            int next = nextEvent(dot);
+            long step = Math.min(next - dot, target - dots);
+            dot += step;
+            dots += step;
+            if (dot == next) event();
+        }
+        scheduleNext();
+    }
+
+    // Dots of a line at which something happens
+    private static int nextEvent(int dot){
+        if (dot < 1) return 1;
+        if (dot < 256) return 256;
+        if (dot < 257) return 257;
+        if (dot < 260) return 260;
+        if (dot < 280) return 280;
+        if (dot < 340) return 340;
+        return DOTS;
+    }
+
+    private void event(){
+        boolean rendering = (mask & (MASK_BG | MASK_SPRITES)) != 0;
+        boolean fetching = rendering && (scanline < HEIGHT || scanline == PRERENDER_LINE);
+        switch (dot) {
+            case 1:
+                if (scanline < HEIGHT) {
+                    renderLine(scanline);
+                } else if (scanline == HEIGHT) {
+                    frames++;
+                } else if (scanline == VBLANK_LINE) {
+                    status |= STATUS_VBLANK;
+                    if ((ctrl & CTRL_NMI) != 0) scheduler.nmi();
+                } else if (scanline == PRERENDER_LINE) {
+                    status &= ~(STATUS_VBLANK | STATUS_OVERFLOW);
+                    sprite0Hit = NEVER;
+                }
+                break;
+            case 256:
+                if (fetching) incrementY();
+                break;
+            case 257:
+                // Horizontal position starts over from t
+                if (fetching) v = (v & ~0x041F) | (t & 0x041F);
+                break;
+            case 260:
+                if (fetching && scanlineCounter != null) scanlineCounter.run();
+                break;
+            case 280:
+                // So does the vertical one, for the new frame
+                if (fetching && scanline == PRERENDER_LINE) v = (v & ~0x7BE0) | (t & 0x7BE0);
+                break;
+            case 340:
+                // Odd frames skip the last dot of the pre-render line
+                if (rendering && oddFrame && scanline == PRERENDER_LINE) nextLine();
+                break;
+            case DOTS:
+                nextLine();
+                break;
+        }
+    }
+
+    private void nextLine(){
+        dot = 0;
+        if (++scanline == LINES) {
+            scanline = 0;
+            oddFrame = !oddFrame;
+        }
+    }
+
+    private void incrementY(){
+        if ((v & 0x7000) != 0x7000) {
+            v += 0x1000;
+            return;
+        }
+        v &= ~0x7000;
+        int y = (v & 0x03E0) >> 5;
+        if (y == 29) {
+            y = 0;
+            v ^= 0x0800;
+        } else if (y == 31) {
+            y = 0;
+        } else {
+            y++;
+        }
+        v = (v & ~0x03E0) | (y << 5);
+    }
+
+    // Wakes up for the start of vertical blank, and with a scanline counter
+    // also for dot 260 of the next line that fetches. Whether rendering is on
+    // then is only known when it comes
+    private void scheduleNext(){
+        long until = (long) (VBLANK_LINE - scanline) * DOTS + 1 - dot;
+        if (until <= 0) until += (long) LINES * DOTS;
+        if (scanlineCounter != null) {
+            int line = scanline;
+            long counter = 260 - dot;
+            if (dot >= 260) {
+                line++;
+                counter += DOTS;
+            }
+            if (line >= HEIGHT && line < PRERENDER_LINE) counter += (long) (PRERENDER_LINE - line) * DOTS;
+            until = Math.min(until, counter);
+        }
+        scheduler.schedule(id, (dots + until) * MASTER_PER_DOT);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // RENDERING
+    private void renderLine(int line){
+        boolean showBg = (mask & MASK_BG) != 0;
+        boolean showSprites = (mask & MASK_SPRITES) != 0;
+        if (showBg) renderBackground();
+        else Arrays.fill(bgLine, (byte) 0);
+        Arrays.fill(spriteLine, (byte) 0);
+        if (showSprites) renderSprites(line);
+
+        // Colour of each palette index for this line, the transparent ones
+        // showing the backdrop
+        int grey = (mask & MASK_GREY) != 0 ? 0x30 : 0x3F;
+        for (int i = 0; i < 32; i++) {
+            lineColours[i] = COLOURS[palette[(i & 0x03) == 0 ? 0 : i] & grey];
+        }
+        int base = line * WIDTH;
+        for (int x = 0; x < WIDTH; x++) {
+            int bg = bgLine[x];
+            int sprite = spriteLine[x];
+            int index = bg;
+            if (sprite != 0) {
+                if (bg != 0 && (sprite & SPRITE_ZERO) != 0 && x != 255 && sprite0Hit == NEVER) {
+                    // Pixel x comes out at dot x + 1, this is dot 1
+                    sprite0Hit = dots + x;
+                }
+                if (bg == 0 || (sprite & SPRITE_BEHIND) == 0) index = 0x10 | (sprite & 0x0F);
+            }
+            frame[base + x] = lineColours[index];
+        }
+    }
+
+    // Fills bgLine from the nametables, starting at v and fine x
+    private void renderBackground(){
+        int addr = v;
+        int fineY = (v >> 12) & 0x07;
+        int table = (ctrl & CTRL_BG_TABLE) != 0 ? 256 : 0;
+        // 33 tiles, as fine x shifts the line into the next one
+        for (int out = 0; out < WIDTH + 8; out += 8) {
+            int tile = nametableByte(0x2000 | (addr & 0x0FFF));
+            int attribute = nametableByte(0x23C0 | (addr & 0x0C00) | ((addr >> 4) & 0x38) | ((addr >> 2) & 0x07));
+            int colours = ((attribute >> (((addr >> 4) & 0x04) | (addr & 0x02))) & 0x03) << 2;
+            int row = tileRow(table + tile, fineY);
+            for (int px = 0; px < 8; px++) {
+                int c = tiles[row + px];
+                bgTiles[out + px] = (byte) (c == 0 ? 0 : colours | c);
+            }
+            // Next tile, into the next nametable across at the edge
+            if ((addr & 0x001F) == 31) addr = (addr & ~0x001F) ^ 0x0400;
+            else addr++;
+        }
+        System.arraycopy(bgTiles, fineX, bgLine, 0, WIDTH);
+        if ((mask & MASK_BG_LEFT) == 0) Arrays.fill(bgLine, 0, 8, (byte) 0);
+    }
+
+    // Fills spriteLine with the first eight sprites on the line. The lowest
+    // numbered sprite with a pixel at a position wins it, even behind the
+    // background
+    private void renderSprites(int line){
+        int height = (ctrl & CTRL_SPRITE_16) != 0 ? 16 : 8;
+        int found = 0;
+        for (int i = 0; i < 64; i++) {
+            // Sprites show one line below their OAM y
+            int row = line - 1 - oam[i * 4];
+            if (row < 0 || row >= height) continue;
+            if (found == 8) {
+                status |= STATUS_OVERFLOW;
+                break;
+            }
+            found++;
+
+            int index = oam[i * 4 + 1];
+            int attributes = oam[i * 4 + 2];
+            int left = oam[i * 4 + 3];
+            if ((attributes & 0x80) != 0) row = height - 1 - row;
+            int tile;
+            if (height == 16) {
+                tile = ((index & 0x01) << 8) | (index & 0xFE);
+                if (row >= 8) {
+                    tile++;
+                    row -= 8;
+                }
+            } else {
+                tile = ((ctrl & CTRL_SPRITE_TABLE) != 0 ? 256 : 0) | index;
+            }
+            int pixels = tileRow(tile, row);
+            boolean flip = (attributes & 0x40) != 0;
+            int bits = ((attributes & 0x03) << 2) | (attributes & SPRITE_BEHIND) | (i == 0 ? SPRITE_ZERO : 0);
+            for (int px = 0; px < 8; px++) {
+                int x = left + px;
+                if (x >= WIDTH) break;
+                if (spriteLine[x] != 0) continue;
+                int c = tiles[pixels + (flip ? 7 - px : px)];
+                if (c != 0) spriteLine[x] = (byte) (bits | c);
+            }
+        }
+        if ((mask & MASK_SPRITES_LEFT) == 0) Arrays.fill(spriteLine, 0, 8, (byte) 0);
+    }
+
+    private int nametableByte(int addr){
+        return vram[nametables[(addr >> 10) & 3] + (addr & 0x3FF)] & 0xFF;
+    }
+
+    // Offset in "tiles" of a row of a tile, decoding the tile if needed
+    private int tileRow(int tile, int row){
+        if (!tileValid[tile]) decodeTile(tile);
+        return tile * 64 + row * 8;
+    }
+
+    private void decodeTile(int tile){
+        int bank = tile >> 6;
+        ByteBuffer memory = chr[bank];
+        int offset = chrOffset[bank] + (tile & 0x3F) * 16;
+        int out = tile * 64;
+        for (int row = 0; row < 8; row++) {
+            int lo = memory.get(offset + row);
+            int hi = memory.get(offset + row + 8);
+            for (int px = 0; px < 8; px++) {
+                int shift = 7 - px;
+                tiles[out++] = (byte) (((lo >> shift) & 0x01) | (((hi >> shift) & 0x01) << 1));
+            }
+        }
+        tileValid[tile] = true;
+        tilesDecoded++;
+    }
+
+}
@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+
+// Hot-spot profile of the code the CPU runs. While enabled, the bulk run
+// methods of CPU6502 add every instruction they run to
+//   counts[pc]          instructions started at pc
+//   cycles[pc]          cycles they took, page-cross and branch penalties included
+//   opcodeCounts[op]    the same per opcode
+//   opcodeCycles[op]
+// Every instruction is counted, nothing is sampled. The arrays, 1 MB, are
+// allocated when the profiler is first enabled, so recording one is four
+// increments.
+//
+// While disabled it costs the check CPU6502 makes once per bulk run for
+// Breakpoints. Enabled, the CPU runs one instruction at a time, so the JIT
+// falls back to its interpreter. Not counted: instructions run by clock(),
+// and the cycles taken to enter interrupts.
+//
+// Only the thread running the machine may touch this, see Emulator.submit().
+public class Profiler {
+
+    boolean enabled = false;
+
+    private final CPU6502 cpu;
+    private final long[] opcodeCounts = new long[256];
+    private final long[] opcodeCycles = new long[256];
+    private long[] counts = null; // Allocated when first enabled, with cycles
+    private long[] cycles = null;
+
+    public Profiler(CPU6502 cpu) {
+        this.cpu = cpu;
+    }
+
+
+    // Counting goes on from where it stopped, reset() starts over
+    public void enable(){
+        if (counts == null) {
+            counts = new long[0x10000];
+            cycles = new long[0x10000];
+        }
+        enabled = true;
+    }
+
+    public void disable(){
+        enabled = false;
+    }
+
+    public boolean enabled(){
+        return enabled;
+    }
+
+    public void reset(){
+        if (counts != null) {
+            Arrays.fill(counts, 0);
+            Arrays.fill(cycles, 0);
+        }
+        Arrays.fill(opcodeCounts, 0);
+        Arrays.fill(opcodeCycles, 0);
+    }
+
+    // From the bulk loops of CPU6502, after the instruction at pc ran
+    void record(int pc, int opcode, int used){
+        counts[pc]++;
+        cycles[pc] += used;
+        opcodeCounts[opcode]++;
+        opcodeCycles[opcode] += used;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // RESULTS
+    public long instructions(int pc){
+        return counts == null ? 0 : counts[pc & 0xFFFF];
+    }
+
+    public long cycles(int pc){
+        return cycles == null ? 0 : cycles[pc & 0xFFFF];
+    }
+
+    public long opcodeInstructions(int opcode){
+        return opcodeCounts[opcode & 0xFF];
+    }
+
+    public long opcodeCycles(int opcode){
+        return opcodeCycles[opcode & 0xFF];
+    }
+
+    public long totalInstructions(){
+        long total = 0;
+        for (long count : opcodeCounts) total += count;
+        return total;
+    }
+
+    public long totalCycles(){
+        long total = 0;
+        for (long used : opcodeCycles) total += used;
+        return total;
+    }
+
+    // Text report: the "lines" addresses that took the most cycles, then
+    // every opcode that ran, both with the most cycles first. Addresses are
+    // shown with the instruction that is in memory there now, which after a
+    // bank switch may not be the one that ran
+    public String report(int lines){
+        long totalCycles = totalCycles();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d instructions, %d cycles%n%n", totalInstructions(), totalCycles));
+
+        out.append(String.format("%12s %6s %12s %7s  %s%n", "Cycles", "%", "Instructions", "Cyc/ins", "Address"));
+        for (int pc : counts == null ? new int[0] : hottest(cycles, counts, lines)) {
+            String text = cpu.disassemble(pc, pc).get(pc);
+            out.append(line(cycles[pc], totalCycles, counts[pc], text));
+        }
+
+        out.append(String.format("%n%12s %6s %12s %7s  %s%n", "Cycles", "%", "Instructions", "Cyc/ins", "Opcode"));
+        for (int op : hottest(opcodeCycles, opcodeCounts, 256)) {
+            Instruction instruction = cpu.lookup[op];
+            String text = String.format("$%02X %s {%s}", op, instruction.name, instruction.addrmodeName);
+            out.append(line(opcodeCycles[op], totalCycles, opcodeCounts[op], text));
+        }
+        return out.toString();
+    }
+
+    private static String line(long used, long totalCycles, long count, String text){
+        return String.format("%12d %5.1f%% %12d %7.2f  %s%n", used, totalCycles == 0 ? 0.0 : used * 100.0 / totalCycles,
+                count, (double) used / count, text);
+    }
+
+    // Indices of the most cycles, at most "limit" of them, leaving out the
+    // ones that never ran
+    private static int[] hottest(long[] cycles, long[] counts, int limit){
+        Integer[] ran = new Integer[counts.length];
+        int n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) ran[n++] = i;
+        }
+        Arrays.sort(ran, 0, n, (p, q) -> Long.compare(cycles[q], cycles[p]));
+        int[] result = new int[Math.min(n, limit)];
+        for (int i = 0; i < result.length; i++) result[i] = ran[i];
+        return result;
+    }
+
+}
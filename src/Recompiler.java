@@ -0,0 +1,204 @@
+import utils.WriteListener;
+
+
+// Tiered execution for CpuEngine.JIT. Code runs in the SwitchInterpreter one
+// basic block at a time while the entries of every block are counted; once a
+// block has been entered HOT_THRESHOLD times it is compiled by the
+// BlockCompiler and from then on executed as JVM bytecode.
+//
+// The Recompiler watches the bus pages holding compiled code. A write to any
+// byte of a compiled block throws that block away (it will be counted and
+// compiled again if it stays hot) and stops the running block at the next
+// instruction boundary, so self-modifying code behaves exactly as interpreted.
+// Remapping a page (a bank switch) counts as a write to every byte in it.
+// Code on a page whose reads come from a device is always interpreted: its
+// bytes can change without a write, so a compiled copy could go stale unseen.
+public class Recompiler implements WriteListener {
+
+    static final int HOT_THRESHOLD = 32;
+
+    // Longest block in bytes, bounds the search for blocks covering an address
+    private static final int MAX_BLOCK_BYTES = BlockCompiler.MAX_INSTRUCTIONS * 3;
+
+    // Compiled code for the block starting at "start", covering [start, end),
+    // which takes at most maxCycles to run
+    private static class Block {
+        final int start;
+        final int end;
+        final int maxCycles;
+        final CompiledBlock code;
+
+        Block(int start, int end, int maxCycles, CompiledBlock code) {
+            this.start = start;
+            this.end = end;
+            this.maxCycles = maxCycles;
+            this.code = code;
+        }
+    }
+
+    private final CPU6502 cpu;
+    private final SwitchInterpreter interpreter;
+    private final BlockCompiler compiler;
+
+    private final int[] hits = new int[0x10000]; // Block entries counted so far, by address
+    private final Block[] blocks = new Block[0x10000]; // Compiled blocks, by start address
+    private final int[] covered = new int[0x10000]; // Number of compiled blocks covering each byte
+    private final int[] pageUse = new int[256]; // Number of compiled blocks touching each page
+    private final boolean[] terminators = new boolean[256];
+
+    private Bus bus = null;
+    private int listenerId = -1;
+
+    // Statistics
+    private long compiled = 0;
+    private long invalidated = 0;
+    private long failed = 0;
+
+    public Recompiler(CPU6502 cpu, SwitchInterpreter interpreter) {
+        this.cpu = cpu;
+        this.interpreter = interpreter;
+        this.compiler = new BlockCompiler(cpu);
+        for (int i = 0; i < 256; i++) {
+            terminators[i] = BlockCompiler.isTerminator(cpu.lookup[i]);
+        }
+    }
+
+    void attach(Bus bus){
+        this.bus = bus;
+        listenerId = bus.addWriteListener(this);
+    }
+
+
+    // Executes the block at pc and advances clockCount past it. A compiled
+    // block only runs if it is sure to end within "budget" cycles; otherwise
+    // the block is interpreted and stops at the first instruction that ends
+    // at or past the budget, where CPU6502.runCycles() would stop. Either way
+    // the run ends where the interpreters end it
+    void execute(long budget){
+        CPU6502 c = cpu;
+        int pc = c.pc;
+        Block block = blocks[pc];
+        if (block == null && ++hits[pc] == HOT_THRESHOLD) {
+            block = compile(pc);
+        }
+        if (block != null && block.maxCycles <= budget) {
+            long start = c.clockCount;
+            interpreter.abort = false;
+            interpreter.blockStart = start;
+            c.clockCount = start + block.code.run(interpreter) + c.takeStall();
+            return;
+        }
+
+        // Interpret up to the end of the block starting here
+        long end = c.clockCount + budget;
+        for (int n = 0; n < BlockCompiler.MAX_INSTRUCTIONS; n++) {
+            c.clockCount += interpreter.execute();
+            if (c.stalled != 0) c.clockCount += c.takeStall();
+            if (terminators[c.opcode] || c.interruptPending || c.clockCount >= end
+                    || compiler.startsBlock(c.pc)) break;
+        }
+    }
+
+    private Block compile(int start){
+        int end = compiler.scan(start);
+        CompiledBlock code = null;
+        if (end > start && !onDevicePage(start, end)) {
+            try {
+                code = compiler.compile(start, end);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                code = null;
+            }
+        }
+        if (code == null) {
+            // Never count this address again
+            hits[start] = Integer.MIN_VALUE;
+            failed++;
+            return null;
+        }
+
+        Block block = new Block(start, end, compiler.maxCycles(start, end), code);
+        blocks[start] = block;
+        for (int addr = start; addr < end; addr++) {
+            covered[addr]++;
+        }
+        for (int page = start >> 8; page <= (end - 1) >> 8; page++) {
+            if (pageUse[page]++ == 0) bus.watchPage(listenerId, page);
+        }
+        compiled++;
+        return block;
+    }
+
+    // Makes addr the start of every block that reaches it, so that runUntil()
+    // predicates see pc there. Compiled blocks running through it are thrown
+    // away
+    void splitAt(int addr){
+        compiler.splitAt(addr);
+        for (int start = Math.max(0, addr - MAX_BLOCK_BYTES + 1); start < addr; start++) {
+            Block block = blocks[start];
+            if (block != null && addr < block.end) invalidate(block);
+        }
+    }
+
+    private boolean onDevicePage(int start, int end){
+        for (int page = start >> 8; page <= (end - 1) >> 8; page++) {
+            if (bus.isDevicePage(page)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void written(int addr){
+        if (covered[addr] == 0) return;
+
+        for (int start = Math.max(0, addr - MAX_BLOCK_BYTES + 1); start <= addr; start++) {
+            Block block = blocks[start];
+            if (block != null && addr < block.end) invalidate(block);
+        }
+        interpreter.abort = true;
+    }
+
+    @Override
+    public void remapped(int page){
+        int first = page << 8;
+        for (int start = Math.max(0, first - MAX_BLOCK_BYTES + 1); start < first + 256; start++) {
+            Block block = blocks[start];
+            if (block != null && first < block.end) invalidate(block);
+            // Other code may be there now, so count it again
+            if (hits[start] < 0) hits[start] = 0;
+        }
+        interpreter.abort = true;
+    }
+
+    private void invalidate(Block block){
+        blocks[block.start] = null;
+        hits[block.start] = 0;
+        for (int addr = block.start; addr < block.end; addr++) {
+            covered[addr]--;
+        }
+        for (int page = block.start >> 8; page <= (block.end - 1) >> 8; page++) {
+            if (--pageUse[page] == 0) bus.unwatchPage(listenerId, page);
+        }
+        invalidated++;
+    }
+
+    // Throws away all compiled code and entry counts
+    void flush(){
+        for (int start = 0; start < blocks.length; start++) {
+            if (blocks[start] != null) invalidate(blocks[start]);
+        }
+        java.util.Arrays.fill(hits, 0);
+    }
+
+    long compiledBlocks(){
+        return compiled;
+    }
+
+    long invalidatedBlocks(){
+        return invalidated;
+    }
+
+    long failedBlocks(){
+        return failed;
+    }
+
+}
@@ -0,0 +1,77 @@
+import java.util.StringTokenizer;
+import utils.CpuEngine;
+
+
+// Measures emulated clock speed of each CPU engine on a CPU-bound program and
+// reports how the recompiler compares with the interpreters.
+// Usage: java RecompilerBenchmark [millions of cycles per run]
+public class RecompilerBenchmark {
+
+    // Nested version of the multiply loop from App, so it runs long enough
+    /*
+        *=$8000
+        start
+        CLC
+        LDA #0
+        LDX #0
+        outer
+        LDY #0
+        inner
+        ADC $0001
+        DEY
+        BNE inner
+        DEX
+        BNE outer
+        STA $0002
+        JMP start
+    */
+    private static final String PROGRAM = "18 A9 00 A2 00 A0 00 6D 01 00 88 D0 FA CA D0 F5 8D 02 00 4C 00 80";
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args) {
+        long cycles = (args.length > 0 ? Long.parseLong(args[0]) : 100) * 1_000_000L;
+
+        double table = measure(CpuEngine.TABLE, cycles);
+        double fast = measure(CpuEngine.SWITCH, cycles);
+        double predecode = measure(CpuEngine.PREDECODE, cycles);
+        double jit = measure(CpuEngine.JIT, cycles);
+
+        System.out.printf("%-10s %10.1f MHz%n", "TABLE", table);
+        System.out.printf("%-10s %10.1f MHz  %5.2fx TABLE%n", "SWITCH", fast, fast / table);
+        System.out.printf("%-10s %10.1f MHz  %5.2fx TABLE  %5.2fx SWITCH%n", "PREDECODE", predecode, predecode / table, predecode / fast);
+        System.out.printf("%-10s %10.1f MHz  %5.2fx TABLE  %5.2fx SWITCH%n", "JIT", jit, jit / table, jit / fast);
+    }
+
+    // Returns the best emulated clock rate over the measured runs, in MHz
+    private static double measure(CpuEngine engine, long cycles){
+        Bus nes = new Bus(engine);
+        load(nes);
+        nes.cpu.reset();
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            nes.cpu.runCycles(cycles);
+        }
+
+        double best = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            long used = nes.cpu.runCycles(cycles);
+            long elapsed = System.nanoTime() - start;
+            best = Math.max(best, used * 1000.0 / elapsed);
+        }
+        return best;
+    }
+
+    private static void load(Bus nes){
+        StringTokenizer tokenizer = new StringTokenizer(PROGRAM);
+        int offset = 0x8000;
+        while (tokenizer.hasMoreTokens()) {
+            nes.ram[offset++] = Integer.parseInt(tokenizer.nextToken(), 16);
+        }
+        nes.ram[0x0001] = 0x03;
+        nes.ram[0xFFFC] = 0x00;
+        nes.ram[0xFFFD] = 0x80;
+    }
+}
@@ -0,0 +1,272 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+
+// Bounded history of save states for stepping the machine back in time.
+//
+// Every keyframeInterval-th snapshot is a keyframe, the others are stored as
+// the difference from the latest keyframe. Either way a snapshot is the XOR
+// of the state with its base (zeros for a keyframe) run-length encoded as
+//   varint  bytes that did not change
+//   varint  n, followed by n XORed bytes
+// repeated to the end of the state. Most of memory does not change between
+// frames, so a delta is usually a few hundred bytes.
+//
+// When the snapshots outgrow the memory budget the oldest keyframe goes,
+// together with the deltas that depend on it.
+public class Rewind {
+
+    // Equal bytes that end a run of changed ones; shorter gaps are cheaper to
+    // carry along than to encode
+    private static final int MIN_GAP = 4;
+
+    private static class Snapshot {
+        final byte[] data;
+        final boolean keyframe;
+        final int size; // Bytes of state once decoded
+        final long clock;
+
+        Snapshot(byte[] data, boolean keyframe, int size, long clock) {
+            this.data = data;
+            this.keyframe = keyframe;
+            this.size = size;
+            this.clock = clock;
+        }
+    }
+
+    private final Bus bus;
+    private final long budget;
+    private final int keyframeInterval;
+
+    private final ArrayDeque<Snapshot> snapshots = new ArrayDeque<>();
+    private long stored = 0; // Bytes held by the encoded snapshots
+    private int sinceKeyframe = 0; // Snapshots taken since the latest keyframe, 0 forces a keyframe
+    private long sinceSnapshot = 0; // Cycles run by runCycles() since the last snapshot
+
+    // Reused buffers, sized for the largest state seen
+    private byte[] state = new byte[0];
+    private byte[] keyState = new byte[0];
+    private byte[] zeros = new byte[0];
+    private byte[] encoded = new byte[0];
+
+    // Statistics
+    private long captures = 0;
+    private long captureNanos = 0;
+    private long maxCaptureNanos = 0;
+
+    // budget is in bytes of encoded snapshots, a keyframe is taken every
+    // keyframeInterval snapshots
+    public Rewind(Bus bus, long budget, int keyframeInterval) {
+        if (keyframeInterval < 1) throw new IllegalArgumentException("Keyframe interval must be at least 1");
+        this.bus = bus;
+        this.budget = budget;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+
+    // Runs the CPU for about "budget" cycles, taking a snapshot every
+    // "interval" cycles, and returns the cycles run
+    public long runCycles(long budget, long interval){
+        long used = 0;
+        while (used < budget) {
+            long ran = bus.cpu.runCycles(Math.min(budget - used, interval - sinceSnapshot));
+            used += ran;
+            sinceSnapshot += ran;
+            if (sinceSnapshot >= interval) {
+                capture();
+                sinceSnapshot = 0;
+            }
+        }
+        return used;
+    }
+
+    // Takes a snapshot of the machine now. Only call between instructions or
+    // bulk runs, e.g. once per frame
+    public void capture(){
+        long start = System.nanoTime();
+
+        int size = bus.stateSize();
+        if (state.length < size) {
+            state = new byte[size];
+            zeros = new byte[size];
+            encoded = new byte[size + size / 2 + 16];
+        }
+        bus.saveState(ByteBuffer.wrap(state, 0, size));
+
+        // A new memory map also needs a new keyframe
+        boolean keyframe = sinceKeyframe == 0 || keyState.length != size;
+        int length = encode(state, keyframe ? zeros : keyState, size);
+        if (keyframe) {
+            keyState = Arrays.copyOf(state, size);
+            sinceKeyframe = 0;
+        }
+        sinceKeyframe = (sinceKeyframe + 1) % keyframeInterval;
+
+        snapshots.addLast(new Snapshot(Arrays.copyOf(encoded, length), keyframe, size, bus.cpu.clockCount));
+        stored += length;
+        evict();
+
+        long elapsed = System.nanoTime() - start;
+        captures++;
+        captureNanos += elapsed;
+        maxCaptureNanos = Math.max(maxCaptureNanos, elapsed);
+    }
+
+    // Goes back "steps" snapshots, 1 being the latest, and drops the newer
+    // ones. Returns false, changing nothing, if the history is shorter
+    public boolean rewind(int steps){
+        if (steps < 1 || steps > snapshots.size()) return false;
+        for (int i = 1; i < steps; i++) {
+            stored -= snapshots.removeLast().data.length;
+        }
+
+        Snapshot target = snapshots.peekLast();
+        Snapshot keyframe = target;
+        Iterator<Snapshot> older = snapshots.descendingIterator();
+        while (!keyframe.keyframe) keyframe = older.next();
+
+        int size = target.size;
+        Arrays.fill(state, 0, size, (byte) 0);
+        decode(keyframe.data, state);
+        if (target != keyframe) decode(target.data, state);
+        bus.loadState(ByteBuffer.wrap(state, 0, size));
+
+        // The next snapshot starts from here
+        sinceKeyframe = 0;
+        sinceSnapshot = 0;
+        return true;
+    }
+
+    // Drops all snapshots
+    public void clear(){
+        snapshots.clear();
+        stored = 0;
+        sinceKeyframe = 0;
+    }
+
+    private void evict(){
+        while (stored > budget) {
+            // Never drop the group of the latest keyframe
+            Iterator<Snapshot> oldest = snapshots.iterator();
+            oldest.next();
+            boolean another = false;
+            while (oldest.hasNext()) {
+                if (oldest.next().keyframe) {
+                    another = true;
+                    break;
+                }
+            }
+            if (!another) return;
+
+            do {
+                stored -= snapshots.removeFirst().data.length;
+            } while (!snapshots.peekFirst().keyframe);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // ENCODING
+    // Writes the XOR of current and base into "encoded" and returns its length
+    private int encode(byte[] current, byte[] base, int size){
+        int length = 0;
+        int i = 0;
+        while (i < size) {
+            int skip = Arrays.mismatch(current, i, size, base, i, size);
+            if (skip < 0) break;
+            i += skip;
+
+            // Changed bytes run until MIN_GAP equal ones in a row
+            int end = i + 1;
+            int equal = 0;
+            for (int k = i + 1; k < size; k++) {
+                if (current[k] != base[k]) {
+                    equal = 0;
+                    end = k + 1;
+                } else if (++equal == MIN_GAP) {
+                    break;
+                }
+            }
+
+            length = putVarint(length, skip);
+            length = putVarint(length, end - i);
+            for (int k = i; k < end; k++) {
+                encoded[length++] = (byte) (current[k] ^ base[k]);
+            }
+            i = end;
+        }
+        return length;
+    }
+
+    private int putVarint(int at, int value){
+        while (value >= 0x80) {
+            encoded[at++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        encoded[at++] = (byte) value;
+        return at;
+    }
+
+    // XORs an encoded snapshot into target
+    private static void decode(byte[] data, byte[] target){
+        int at = 0;
+        int pos = 0;
+        while (at < data.length) {
+            int skip = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = data[at++];
+                skip |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            int count = 0;
+            shift = 0;
+            do {
+                b = data[at++];
+                count |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            pos += skip;
+            for (int end = pos + count; pos < end; pos++) {
+                target[pos] ^= data[at++];
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // STATISTICS
+    public int snapshots(){
+        return snapshots.size();
+    }
+
+    // Bytes held by the history, encoded snapshots plus the reused buffers
+    public long memoryUsed(){
+        return stored + state.length + keyState.length + zeros.length + encoded.length;
+    }
+
+    // Clock cycles between the oldest and the latest snapshot
+    public long historyCycles(){
+        if (snapshots.isEmpty()) return 0;
+        return snapshots.peekLast().clock - snapshots.peekFirst().clock;
+    }
+
+    public long averageCaptureNanos(){
+        return captures == 0 ? 0 : captureNanos / captures;
+    }
+
+    public long maxCaptureNanos(){
+        return maxCaptureNanos;
+    }
+
+    public String report(){
+        return String.format("%d snapshots over %d cycles, %.1f KB (%.1f KB encoded), capture %.1f us avg %.1f us max",
+                snapshots(), historyCycles(), memoryUsed() / 1024.0, stored / 1024.0,
+                averageCaptureNanos() / 1000.0, maxCaptureNanos() / 1000.0);
+    }
+
+}
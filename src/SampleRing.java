@@ -0,0 +1,62 @@
+// Fixed-size queue of 16-bit samples from one producer thread, the
+// emulation, to one consumer, the audio output, without locks. Each side
+// only writes its own count of samples; the volatile write of the producer's
+// count publishes the samples before it, and the consumer's count frees
+// them. When the consumer falls behind, new samples are dropped and counted
+// rather than blocking the emulation.
+public final class SampleRing {
+
+    private final short[] samples;
+    private final int mask;
+    private volatile long written = 0;
+    private volatile long read = 0;
+    private volatile long dropped = 0;
+
+    // capacity must be a power of two
+    public SampleRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two");
+        samples = new short[capacity];
+        mask = capacity - 1;
+    }
+
+
+    // Producer side. Queues what fits of count samples, returns how many
+    public int write(short[] source, int offset, int count){
+        long w = written;
+        int n = Math.min(count, samples.length - (int) (w - read));
+        int start = (int) w & mask;
+        int first = Math.min(n, samples.length - start);
+        System.arraycopy(source, offset, samples, start, first);
+        System.arraycopy(source, offset + first, samples, 0, n - first);
+        written = w + n;
+        if (n < count) dropped += count - n;
+        return n;
+    }
+
+    // Consumer side. Takes up to count samples, returns how many
+    public int read(short[] target, int offset, int count){
+        long r = read;
+        int n = Math.min(count, (int) (written - r));
+        int start = (int) r & mask;
+        int first = Math.min(n, samples.length - start);
+        System.arraycopy(samples, start, target, offset, first);
+        System.arraycopy(samples, 0, target, offset + first, n - first);
+        read = r + n;
+        return n;
+    }
+
+    // Samples waiting for the consumer
+    public int available(){
+        return (int) (written - read);
+    }
+
+    public int capacity(){
+        return samples.length;
+    }
+
+    // Samples lost because the ring was full
+    public long dropped(){
+        return dropped;
+    }
+
+}
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+import utils.ClockedDevice;
+import utils.FLAGS6502;
+
+
+// Master clock of the machine. Time is counted in 64-bit master cycles of the
+// NTSC crystal, CPU_DIVIDER of them to a CPU cycle, so it does not wrap.
+//
+// Only the CPU runs ahead. Devices are not ticked every cycle; each one
+// keeps its own time and catches up to the CPU when it must:
+//   - when the CPU reads or writes it, the device calls catchUp() first
+//   - when the master time it asked for with schedule() is reached, e.g. a
+//     timer running out or the end of a frame
+// runCycles() runs the CPU in slices that end at the earliest scheduled time,
+// so scheduled events happen between instructions. A device that catches up
+// in the middle of an instruction must not call the CPU's interrupts itself;
+// it asserts them with nmi() or setIrq(), and they are taken once the
+// instruction is done: an interrupt that can be taken ends the slice after
+// the instruction. An IRQ asserted while I is set is taken after the CLI,
+// PLP or RTI that clears it.
+public class Scheduler {
+
+    public static final int CPU_DIVIDER = 12; // Master cycles per CPU cycle
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final CPU6502 cpu;
+    private ClockedDevice[] devices = new ClockedDevice[0];
+    private long[] deadlines = new long[0]; // Master time each device asked to run at
+    private long nextDeadline = NEVER;
+
+    private boolean nmiPending = false;
+    private int irqLines = 0; // Bitmask of the devices asserting IRQ
+
+    public Scheduler(CPU6502 cpu) {
+        this.cpu = cpu;
+    }
+
+
+    // Registers a device and returns the id to schedule it with
+    public int add(ClockedDevice device){
+        if (devices.length == 32) throw new IllegalStateException("Too many clocked devices");
+        devices = Arrays.copyOf(devices, devices.length + 1);
+        deadlines = Arrays.copyOf(deadlines, deadlines.length + 1);
+        devices[devices.length - 1] = device;
+        deadlines[deadlines.length - 1] = NEVER;
+        return devices.length - 1;
+    }
+
+    // Master time of the CPU: the start of the instruction it is executing, or
+    // of the next one between instructions
+    public long now(){
+        return cpu.clockCount * CPU_DIVIDER;
+    }
+
+    // Brings a device up to the CPU, for its read and write handlers
+    public void catchUp(int id){
+        devices[id].runUntil(now());
+    }
+
+    // Brings every device up to the CPU, e.g. before showing a frame
+    public void catchUpAll(){
+        long now = now();
+        for (ClockedDevice device : devices) device.runUntil(now);
+    }
+
+    // Asks for the device to be run up to "time" once the CPU gets there,
+    // replacing what it asked for before. NEVER cancels it
+    public void schedule(int id, long time){
+        long previous = deadlines[id];
+        deadlines[id] = time;
+        if (time < nextDeadline) nextDeadline = time;
+        else if (previous == nextDeadline) nextDeadline = earliest();
+    }
+
+    public long deadline(int id){
+        return deadlines[id];
+    }
+
+    // Edge triggered, taken once
+    public void nmi(){
+        nmiPending = true;
+        cpu.interruptPending = true;
+    }
+
+    // Level triggered, taken while asserted by any device and not masked by
+    // the I flag
+    public void setIrq(int id, boolean asserted){
+        if (asserted) irqLines |= 1 << id;
+        else irqLines &= ~(1 << id);
+        cpu.irqAsserted = irqLines != 0;
+        cpu.unmasked();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // RUNNING
+    // Runs the CPU for at least "budget" CPU cycles, running devices as their
+    // scheduled times come, and returns the CPU cycles used. Returns early
+    // when a breakpoint stops the CPU
+    public long runCycles(long budget){
+        long start = cpu.clockCount;
+        long end = start + budget;
+        Breakpoints breakpoints = cpu.bus.breakpoints;
+        while (cpu.clockCount < end && !breakpoints.hit) {
+            runDue();
+            takeInterrupts();
+            long stop = end;
+            if (nextDeadline != NEVER) {
+                stop = Math.min(stop, (nextDeadline + CPU_DIVIDER - 1) / CPU_DIVIDER);
+            }
+            cpu.runCycles(Math.max(1, stop - cpu.clockCount));
+        }
+        runDue();
+        return cpu.clockCount - start;
+    }
+
+    // Runs one instruction (after the cycles still pending from an interrupt),
+    // for single stepping. Returns the CPU cycles used
+    public long step(){
+        long start = cpu.clockCount;
+        runDue();
+        takeInterrupts();
+        cpu.runInstructions(1);
+        runDue();
+        return cpu.clockCount - start;
+    }
+
+    private void runDue(){
+        long now = now();
+        while (nextDeadline <= now) {
+            for (int id = 0; id < devices.length; id++) {
+                if (deadlines[id] <= now) {
+                    deadlines[id] = NEVER;
+                    devices[id].runUntil(now);
+                }
+            }
+            nextDeadline = earliest();
+        }
+    }
+
+    private void takeInterrupts(){
+        cpu.interruptPending = false;
+        if (nmiPending) {
+            nmiPending = false;
+            cpu.nmi();
+        } else if (irqLines != 0 && (cpu.status & FLAGS6502.I.getValue()) == 0) {
+            cpu.irq();
+        }
+    }
+
+    private long earliest(){
+        long earliest = NEVER;
+        for (long deadline : deadlines) earliest = Math.min(earliest, deadline);
+        return earliest;
+    }
+
+}
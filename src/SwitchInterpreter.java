@@ -0,0 +1,702 @@
+import utils.FLAGS6502;
+
+
+// Alternative execution engine for CPU6502. Instead of calling the bound
+// addressing mode and operation functions from the lookup table, every opcode
+// is one case of a dense switch that computes its effective address and hands
+// the operand straight to the operation, so values travel in locals and
+// parameters rather than through fetched/addr_abs/temp.
+//
+// It must stay bit-identical with the table engine (registers, memory, bus
+// access order and cycle counts), including the quirks of the table
+// implementation, so both can be run side by side and cross-checked.
+public class SwitchInterpreter {
+
+    private static final int C = FLAGS6502.C.getValue();
+    private static final int Z = FLAGS6502.Z.getValue();
+    private static final int I = FLAGS6502.I.getValue();
+    private static final int D = FLAGS6502.D.getValue();
+    private static final int B = FLAGS6502.B.getValue();
+    private static final int U = FLAGS6502.U.getValue();
+    private static final int V = FLAGS6502.V.getValue();
+    private static final int N = FLAGS6502.N.getValue();
+
+    private final CPU6502 cpu;
+
+    // Base cycle count of every opcode, copied from the lookup table
+    private final int[] baseCycles = new int[256];
+
+    // Number of operand bytes read after every opcode. BRK reads none, its
+    // padding byte is skipped by brk() itself
+    private final int[] operandBytes = new int[256];
+
+    // Page-cross penalty of the last indexed address computed (0 or 1)
+    private int penalty = 0;
+
+    // Predecoded instructions, null unless the CPU was built with one
+    private final DecodeCache cache;
+
+    public SwitchInterpreter(CPU6502 cpu) {
+        this(cpu, null);
+    }
+
+    public SwitchInterpreter(CPU6502 cpu, DecodeCache cache) {
+        this.cpu = cpu;
+        this.cache = cache;
+        for (int i = 0; i < 256; i++) {
+            Instruction instr = cpu.lookup[i];
+            baseCycles[i] = instr.cycles;
+            operandBytes[i] = operandBytes(instr);
+        }
+    }
+
+    static int operandBytes(Instruction instr){
+        return "BRK".equals(instr.name) ? 0 : BlockCompiler.length(instr.addrmodeName) - 1;
+    }
+
+
+    // Fetches, decodes and executes one whole instruction, returning the total
+    // number of cycles it takes
+    int execute(){
+        if (cache != null) return executeDecoded(cache.fetch(cpu.pc));
+
+        CPU6502 c = cpu;
+        int op = c.read(c.pc);
+        c.opcode = op;
+        c.status |= U;
+        c.pc = (c.pc + 1) & 0xFFFF;
+
+        int operand = 0;
+        switch (operandBytes[op]) {
+            case 1:
+                operand = c.read(c.pc);
+                c.pc = (c.pc + 1) & 0xFFFF;
+                break;
+            case 2: {
+                int low = c.read(c.pc);
+                int high = c.read((c.pc + 1) & 0xFFFF);
+                operand = (high << 8) | low;
+                c.pc = (c.pc + 2) & 0xFFFF;
+                break;
+            }
+        }
+
+        int cycles = baseCycles[op] + dispatch(op, operand);
+
+        c.status |= U;
+        return cycles;
+    }
+
+    // Same as execute(), with opcode, operand and cycles taken from a DecodeCache
+    // entry instead of the bus
+    private int executeDecoded(int entry){
+        CPU6502 c = cpu;
+        int op = DecodeCache.opcode(entry);
+        c.opcode = op;
+        c.status |= U;
+        c.pc = (c.pc + DecodeCache.length(entry)) & 0xFFFF;
+
+        int cycles = DecodeCache.cycles(entry) + dispatch(op, DecodeCache.operand(entry));
+
+        c.status |= U;
+        return cycles;
+    }
+
+    // Executes the opcode and returns the cycles to add to its base count
+    private int dispatch(int op, int operand){
+        CPU6502 c = cpu;
+        switch (op) {
+            // ORA
+            case 0x09: ora(operand); return 0;
+            case 0x05: ora(rd(operand)); return 0;
+            case 0x15: ora(rd(zpxAt(operand))); return 0;
+            case 0x0D: ora(rd(operand)); return 0;
+            case 0x1D: ora(rd(abxAt(operand))); return penalty;
+            case 0x19: ora(rd(abyAt(operand))); return penalty;
+            case 0x01: ora(rd(izxAt(operand))); return 0;
+            case 0x11: ora(rd(izyAt(operand))); return penalty;
+            // AND
+            case 0x29: and(operand); return 0;
+            case 0x25: and(rd(operand)); return 0;
+            case 0x35: and(rd(zpxAt(operand))); return 0;
+            case 0x2D: and(rd(operand)); return 0;
+            case 0x3D: and(rd(abxAt(operand))); return penalty;
+            case 0x39: and(rd(abyAt(operand))); return penalty;
+            case 0x21: and(rd(izxAt(operand))); return 0;
+            case 0x31: and(rd(izyAt(operand))); return penalty;
+            // EOR
+            case 0x49: eor(operand); return 0;
+            case 0x45: eor(rd(operand)); return 0;
+            case 0x55: eor(rd(zpxAt(operand))); return 0;
+            case 0x4D: eor(rd(operand)); return 0;
+            case 0x5D: eor(rd(abxAt(operand))); return penalty;
+            case 0x59: eor(rd(abyAt(operand))); return penalty;
+            case 0x41: eor(rd(izxAt(operand))); return 0;
+            case 0x51: eor(rd(izyAt(operand))); return penalty;
+            // ADC
+            case 0x69: adc(operand); return 0;
+            case 0x65: adc(rd(operand)); return 0;
+            case 0x75: adc(rd(zpxAt(operand))); return 0;
+            case 0x6D: adc(rd(operand)); return 0;
+            case 0x7D: adc(rd(abxAt(operand))); return penalty;
+            case 0x79: adc(rd(abyAt(operand))); return penalty;
+            case 0x61: adc(rd(izxAt(operand))); return 0;
+            case 0x71: adc(rd(izyAt(operand))); return penalty;
+            // SBC (0xEB works on the accumulator, as in the lookup table)
+            case 0xE9: sbc(operand); return 0;
+            case 0xE5: sbc(rd(operand)); return 0;
+            case 0xF5: sbc(rd(zpxAt(operand))); return 0;
+            case 0xED: sbc(rd(operand)); return 0;
+            case 0xFD: sbc(rd(abxAt(operand))); return penalty;
+            case 0xF9: sbc(rd(abyAt(operand))); return penalty;
+            case 0xE1: sbc(rd(izxAt(operand))); return 0;
+            case 0xF1: sbc(rd(izyAt(operand))); return penalty;
+            case 0xEB: sbc(c.a); return 0;
+            // CMP
+            case 0xC9: cmpA(operand); return 0;
+            case 0xC5: cmpA(rd(operand)); return 0;
+            case 0xD5: cmpA(rd(zpxAt(operand))); return 0;
+            case 0xCD: cmpA(rd(operand)); return 0;
+            case 0xDD: cmpA(rd(abxAt(operand))); return penalty;
+            case 0xD9: cmpA(rd(abyAt(operand))); return penalty;
+            case 0xC1: cmpA(rd(izxAt(operand))); return 0;
+            case 0xD1: cmpA(rd(izyAt(operand))); return penalty;
+            // CPX / CPY
+            case 0xE0: cmpX(operand); return 0;
+            case 0xE4: cmpX(rd(operand)); return 0;
+            case 0xEC: cmpX(rd(operand)); return 0;
+            case 0xC0: cmpY(operand); return 0;
+            case 0xC4: cmpY(rd(operand)); return 0;
+            case 0xCC: cmpY(rd(operand)); return 0;
+            // BIT
+            case 0x24: bit(rd(operand)); return 0;
+            case 0x2C: bit(rd(operand)); return 0;
+            // LDA
+            case 0xA9: lda(operand); return 0;
+            case 0xA5: lda(rd(operand)); return 0;
+            case 0xB5: lda(rd(zpxAt(operand))); return 0;
+            case 0xAD: lda(rd(operand)); return 0;
+            case 0xBD: lda(rd(abxAt(operand))); return penalty;
+            case 0xB9: lda(rd(abyAt(operand))); return penalty;
+            case 0xA1: lda(rd(izxAt(operand))); return 0;
+            case 0xB1: lda(rd(izyAt(operand))); return penalty;
+            // LDX
+            case 0xA2: ldx(operand); return 0;
+            case 0xA6: ldx(rd(operand)); return 0;
+            case 0xB6: ldx(rd(zpyAt(operand))); return 0;
+            case 0xAE: ldx(rd(operand)); return 0;
+            case 0xBE: ldx(rd(abyAt(operand))); return penalty;
+            // LDY
+            case 0xA0: ldy(operand); return 0;
+            case 0xA4: ldy(rd(operand)); return 0;
+            case 0xB4: ldy(rd(zpxAt(operand))); return 0;
+            case 0xAC: ldy(rd(operand)); return 0;
+            case 0xBC: ldy(rd(abxAt(operand))); return penalty;
+            // STA / STX / STY
+            case 0x85: sta(operand); return 0;
+            case 0x95: sta(zpxAt(operand)); return 0;
+            case 0x8D: sta(operand); return 0;
+            case 0x9D: sta(abxAt(operand)); return 0;
+            case 0x99: sta(abyAt(operand)); return 0;
+            case 0x81: sta(izxAt(operand)); return 0;
+            case 0x91: sta(izyAt(operand)); return 0;
+            case 0x86: stx(operand); return 0;
+            case 0x96: stx(zpyAt(operand)); return 0;
+            case 0x8E: stx(operand); return 0;
+            case 0x84: sty(operand); return 0;
+            case 0x94: sty(zpxAt(operand)); return 0;
+            case 0x8C: sty(operand); return 0;
+            // ASL
+            case 0x0A: aslA(); return 0;
+            case 0x06: aslAt(operand); return 0;
+            case 0x16: aslAt(zpxAt(operand)); return 0;
+            case 0x0E: aslAt(operand); return 0;
+            case 0x1E: aslAt(abxAt(operand)); return 0;
+            // ROL
+            case 0x2A: rolA(); return 0;
+            case 0x26: rolAt(operand); return 0;
+            case 0x36: rolAt(zpxAt(operand)); return 0;
+            case 0x2E: rolAt(operand); return 0;
+            case 0x3E: rolAt(abxAt(operand)); return 0;
+            // LSR
+            case 0x4A: lsrA(); return 0;
+            case 0x46: lsrAt(operand); return 0;
+            case 0x56: lsrAt(zpxAt(operand)); return 0;
+            case 0x4E: lsrAt(operand); return 0;
+            case 0x5E: lsrAt(abxAt(operand)); return 0;
+            // ROR
+            case 0x6A: rorA(); return 0;
+            case 0x66: rorAt(operand); return 0;
+            case 0x76: rorAt(zpxAt(operand)); return 0;
+            case 0x6E: rorAt(operand); return 0;
+            case 0x7E: rorAt(abxAt(operand)); return 0;
+            // DEC / INC
+            case 0xC6: dec(operand); return 0;
+            case 0xD6: dec(zpxAt(operand)); return 0;
+            case 0xCE: dec(operand); return 0;
+            case 0xDE: dec(abxAt(operand)); return 0;
+            case 0xE6: inc(operand); return 0;
+            case 0xF6: inc(zpxAt(operand)); return 0;
+            case 0xEE: inc(operand); return 0;
+            case 0xFE: inc(abxAt(operand)); return 0;
+            // Register increments, decrements and transfers
+            case 0xE8: inx(); return 0;
+            case 0xC8: iny(); return 0;
+            case 0xCA: dex(); return 0;
+            case 0x88: dey(); return 0;
+            case 0xAA: tax(); return 0;
+            case 0xA8: tay(); return 0;
+            case 0xBA: tsx(); return 0;
+            case 0x8A: txa(); return 0;
+            case 0x98: tya(); return 0;
+            case 0x9A: txs(); return 0;
+            // Branches
+            case 0x10: return branch((c.status & N) == 0, operand);
+            case 0x30: return branch((c.status & N) != 0, operand);
+            case 0x50: return branch((c.status & V) == 0, operand);
+            case 0x70: return branch((c.status & V) != 0, operand);
+            case 0x90: return branch((c.status & C) == 0, operand);
+            case 0xB0: return branch((c.status & C) != 0, operand);
+            case 0xD0: return branch((c.status & Z) == 0, operand);
+            case 0xF0: return branch((c.status & Z) != 0, operand);
+            // Jumps, subroutines and interrupts
+            case 0x4C: c.pc = operand; return 0;
+            case 0x6C: c.pc = indAt(operand); return 0;
+            case 0x20: jsr(operand); return 0;
+            case 0x60: rts(); return 0;
+            case 0x40: rti(); return 0;
+            case 0x00: brk(); return 0;
+            // Stack
+            case 0x48: pha(); return 0;
+            case 0x68: pla(); return 0;
+            case 0x08: php(); return 0;
+            case 0x28: plp(); return 0;
+            // Flags
+            case 0x18: clc(); return 0;
+            case 0x38: sec(); return 0;
+            case 0x58: cli(); return 0;
+            case 0x78: sei(); return 0;
+            case 0xB8: clv(); return 0;
+            case 0xD8: cld(); return 0;
+            case 0xF8: sed(); return 0;
+            // NOPs and unofficial opcodes only take their base cycles
+            default: return 0;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // ADDRESSING MODES
+    // Take the operand fetched by execute() (or decoded ahead of time) and
+    // return the effective address. Code compiled by the Recompiler calls them
+    // with constants.
+    int zpxAt(int zp){
+        return (zp + cpu.x) & 0x00FF;
+    }
+
+    int zpyAt(int zp){
+        return (zp + cpu.y) & 0x00FF;
+    }
+
+    int abxAt(int base){
+        return indexed(base, cpu.x);
+    }
+
+    int abyAt(int base){
+        return indexed(base, cpu.y);
+    }
+
+    int indAt(int ptr){
+        CPU6502 c = cpu;
+        if ((ptr & 0x00FF) == 0x00FF) return (c.read(ptr & 0xFF00) << 8) | c.read(ptr); //Page boundary bug
+        return (c.read(ptr + 1) << 8) | c.read(ptr);
+    }
+
+    int izxAt(int zp){
+        CPU6502 c = cpu;
+        int low = c.read((zp + c.x) & 0x00FF);
+        int high = c.read((zp + c.x + 1) & 0x00FF);
+        return (high << 8) | low;
+    }
+
+    int izyAt(int zp){
+        CPU6502 c = cpu;
+        int low = c.read(zp & 0x00FF);
+        int high = c.read((zp + 1) & 0x00FF);
+        return indexed((high << 8) | low, c.y);
+    }
+
+    private int indexed(int base, int index){
+        int ea = (base + index) & 0xFFFF;
+        penalty = ((ea ^ base) & 0xFF00) != 0 ? 1 : 0;
+        return ea;
+    }
+
+    int penalty(){
+        return penalty;
+    }
+
+    int rd(int ea){
+        return cpu.read(ea);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // OPERATIONS
+    private void setZN(int value){
+        CPU6502 c = cpu;
+        c.status = (c.status & ~(Z | N))
+                | ((value & 0x00FF) == 0 ? Z : 0)
+                | (value & 0x0080);
+    }
+
+    private int load(int value){
+        setZN(value);
+        return value;
+    }
+
+    void lda(int value){
+        cpu.a = load(value);
+    }
+
+    void ldx(int value){
+        cpu.x = load(value);
+    }
+
+    void ldy(int value){
+        cpu.y = load(value);
+    }
+
+    void sta(int ea){
+        cpu.write(ea, cpu.a);
+    }
+
+    void stx(int ea){
+        cpu.write(ea, cpu.x);
+    }
+
+    void sty(int ea){
+        cpu.write(ea, cpu.y);
+    }
+
+    void ora(int value){
+        cpu.a = load((cpu.a | value) & 0x00FF);
+    }
+
+    void and(int value){
+        cpu.a = load((cpu.a & value) & 0x00FF);
+    }
+
+    void eor(int value){
+        cpu.a = load((cpu.a ^ value) & 0x00FF);
+    }
+
+    void adc(int value){
+        CPU6502 c = cpu;
+        int a = c.a;
+        int temp = a + value + (c.status & C);
+        c.status = (c.status & ~(C | V))
+                | (temp > 0xFF ? C : 0)
+                | (((~(a ^ value) & (a ^ temp)) & 0x0080) != 0 ? V : 0);
+        c.a = load(temp & 0x00FF);
+    }
+
+    void sbc(int value){
+        CPU6502 c = cpu;
+        int a = c.a;
+        int complement = value ^ 0x00FF;
+        int temp = (a + complement + (c.status & C)) & 0xFFFF;
+        c.status = (c.status & ~(C | V))
+                | ((temp & 0xFF00) == 0xFF00 ? C : 0)
+                | (((temp ^ a) & (temp ^ complement) & 0x0080) == 0x0080 ? V : 0);
+        c.a = load(temp & 0x00FF);
+    }
+
+    void cmpA(int value){
+        cmp(cpu.a, value);
+    }
+
+    void cmpX(int value){
+        cmp(cpu.x, value);
+    }
+
+    void cmpY(int value){
+        cmp(cpu.y, value);
+    }
+
+    private void cmp(int reg, int value){
+        CPU6502 c = cpu;
+        c.status = (c.status & ~C) | (reg >= value ? C : 0);
+        setZN(reg - value);
+    }
+
+    void bit(int value){
+        CPU6502 c = cpu;
+        c.status = (c.status & ~(Z | N | V))
+                | (((c.a & value) & 0x00FF) == 0 ? Z : 0)
+                | (value & (N | V));
+    }
+
+    void aslA(){
+        cpu.a = asl(cpu.a);
+    }
+
+    void aslAt(int ea){
+        cpu.write(ea, asl(cpu.read(ea)));
+    }
+
+    void rolA(){
+        cpu.a = rol(cpu.a);
+    }
+
+    void rolAt(int ea){
+        cpu.write(ea, rol(cpu.read(ea)));
+    }
+
+    void lsrA(){
+        cpu.a = lsr(cpu.a);
+    }
+
+    void lsrAt(int ea){
+        cpu.write(ea, lsr(cpu.read(ea)));
+    }
+
+    void rorA(){
+        cpu.a = ror(cpu.a);
+    }
+
+    void rorAt(int ea){
+        cpu.write(ea, ror(cpu.read(ea)));
+    }
+
+    private int asl(int value){
+        int temp = value << 1;
+        CPU6502 c = cpu;
+        c.status = (c.status & ~C) | ((temp & 0xFF00) != 0 ? C : 0);
+        return load(temp & 0x00FF);
+    }
+
+    private int lsr(int value){
+        CPU6502 c = cpu;
+        c.status = (c.status & ~C) | (value & 0x0001);
+        return load((value >> 1) & 0x00FF);
+    }
+
+    private int rol(int value){
+        CPU6502 c = cpu;
+        int temp = (c.status & C) | (value << 1);
+        c.status = (c.status & ~C) | ((temp & 0xFF00) != 0 ? C : 0);
+        return load(temp & 0x00FF);
+    }
+
+    private int ror(int value){
+        CPU6502 c = cpu;
+        int temp = ((c.status & C) << 7) | (value >> 1);
+        c.status = (c.status & ~C) | (value & 0x0001);
+        return load(temp & 0x00FF);
+    }
+
+    void dec(int ea){
+        CPU6502 c = cpu;
+        int temp = (c.read(ea) - 1) & 0x00FF;
+        c.write(ea, temp);
+        setZN(temp);
+    }
+
+    void inc(int ea){
+        CPU6502 c = cpu;
+        // Like the table engine, the unmasked result goes to the bus
+        int temp = (c.read(ea) + 1) & 0xFFFF;
+        c.write(ea, temp);
+        setZN(temp);
+    }
+
+    void inx(){
+        cpu.x = load((cpu.x + 1) & 0x00FF);
+    }
+
+    void iny(){
+        cpu.y = load((cpu.y + 1) & 0x00FF);
+    }
+
+    void dex(){
+        cpu.x = load((cpu.x - 1) & 0x00FF);
+    }
+
+    void dey(){
+        cpu.y = load((cpu.y - 1) & 0x00FF);
+    }
+
+    void tax(){
+        cpu.x = load(cpu.a & 0x00FF);
+    }
+
+    void tay(){
+        cpu.y = load(cpu.a & 0x00FF);
+    }
+
+    void tsx(){
+        cpu.x = load(cpu.stkp & 0x00FF);
+    }
+
+    void txa(){
+        cpu.a = load(cpu.x & 0x00FF);
+    }
+
+    void tya(){
+        cpu.a = load(cpu.y & 0x00FF);
+    }
+
+    void txs(){
+        cpu.stkp = cpu.x & 0x00FF;
+    }
+
+    void pha(){
+        cpu.pushStack(cpu.a);
+    }
+
+    void pla(){
+        cpu.a = load(cpu.popStack());
+    }
+
+    // Clears U like the table engine; execute() sets it again afterwards
+    void php(){
+        CPU6502 c = cpu;
+        c.pushStack((c.status | U | B) & 0x00FF);
+        c.status &= ~(B | U);
+    }
+
+    void plp(){
+        cpu.status = cpu.popStack() | U;
+        cpu.unmasked();
+    }
+
+    void clc(){
+        cpu.status &= ~C;
+    }
+
+    void sec(){
+        cpu.status |= C;
+    }
+
+    void cli(){
+        cpu.status &= ~I;
+        cpu.unmasked();
+    }
+
+    void sei(){
+        cpu.status |= I;
+    }
+
+    void clv(){
+        cpu.status &= ~V;
+    }
+
+    void cld(){
+        cpu.status &= ~D;
+    }
+
+    void sed(){
+        cpu.status |= D;
+    }
+
+    private int branch(boolean taken, int rel){
+        if (!taken) return 0;
+
+        CPU6502 c = cpu;
+        if ((rel & 0x80) == 0x80) rel |= 0xFF00;
+        return branchTo((c.pc + rel) & 0xFFFF);
+    }
+
+    // Takes the branch from the current pc (the address after the branch) and
+    // returns the extra cycles it costs
+    private int branchTo(int target){
+        CPU6502 c = cpu;
+        int extra = ((target & 0xFF00) != (c.pc & 0xFF00)) ? 2 : 1;
+        c.pc = target;
+        return extra;
+    }
+
+    private void jsr(int target){
+        CPU6502 c = cpu;
+        c.pc = (c.pc - 1) & 0xFFFF;
+        c.pushStack((c.pc >> 8) & 0x00FF);
+        c.pushStack(c.pc & 0x00FF);
+        c.pc = target;
+    }
+
+    private void rts(){
+        CPU6502 c = cpu;
+        //Dummy read
+        c.read(c.pc);
+        int low = c.popStack();
+        int high = c.popStack();
+        c.pc = (((high << 8) | low) + 1) & 0xFFFF;
+    }
+
+    private void rti(){
+        CPU6502 c = cpu;
+        c.traceInterrupt(Tracer.RTI);
+        //Dummy read
+        c.read(c.pc);
+        int status = c.popStack();
+        int low = c.popStack();
+        int high = c.popStack();
+        c.pc = ((high << 8) | low) & 0xFFFF;
+        c.status = status & ~(B | U) & 0x00FF;
+        c.unmasked();
+    }
+
+    private void brk(){
+        CPU6502 c = cpu;
+        // Skip the padding byte, like the IMM addressing of the lookup table
+        c.pc = (c.pc + 1) & 0xFFFF;
+        c.traceInterrupt(Tracer.BRK);
+        //Dummy Read
+        c.read((c.pc - 1) & 0xFFFF);
+        c.pushStack((c.pc >> 8) & 0x00FF);
+        c.pushStack(c.pc & 0x00FF);
+        c.pushStack((c.status | B) & 0x00FF);
+        c.pc = c.irqVector();
+        c.status |= I;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // COMPILED CODE SUPPORT
+    // Entry points only used by blocks generated by the Recompiler
+
+    // Set by the Recompiler when a write invalidates compiled code, and by
+    // CPU6502.stall(), so the running block stops at the next instruction
+    // boundary. A waiting interrupt stops it there too
+    boolean abort = false;
+
+    boolean aborted(){
+        return abort || cpu.interruptPending;
+    }
+
+    // clockCount when the running block started. Compiled code calls sync()
+    // with the cycles it has used so far before an access that may reach a
+    // device, so the device sees the time of the instruction
+    long blockStart = 0;
+
+    void sync(int cycles){
+        cpu.clockCount = blockStart + cycles;
+    }
+
+    void setPc(int pc){
+        cpu.pc = pc;
+    }
+
+    void setU(){
+        cpu.status |= U;
+    }
+
+    // Conditional branch with everything decoded: taken when the flags selected
+    // by "mask" equal "expect". Expects pc to already point past the branch
+    int branchIf(int mask, int expect, int target){
+        if ((cpu.status & mask) != expect) return 0;
+        return branchTo(target);
+    }
+
+}
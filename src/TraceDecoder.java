@@ -0,0 +1,320 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+// Turns a trace written by TraceRecorder into text in the format of
+// nestest.log, which Conformance reads as a golden log:
+//   C000  4C F5 C5  JMP $C5F5                       A:00 X:00 Y:00 P:24 SP:FD CYC:7
+// with the names and addressing modes of the lookup table of CPU6502, and
+// branch targets worked out. There is no PPU: field, and no "= 00" for the
+// memory an instruction touches, the trace does not have them.
+//
+// The file is mapped a chunk of CHUNK_RECORDS at a time and the chunks are
+// decoded in parallel, one worker per core. Their text is written in order,
+// and only a few chunks are in flight at once, so a trace of any length is
+// decoded in the same memory.
+//
+// Usage: java TraceDecoder [options] trace [output]
+//   --pc=XXXX-YYYY   only instructions at these addresses (hex, inclusive),
+//                    a single address for one
+//   --opcode=XX-YY   only these opcodes (hex, inclusive), or a single one
+//   --threads=N      workers, defaults to the number of cores
+// Writes to standard output when no output file is given.
+public class TraceDecoder {
+
+    private static final int CHUNK_RECORDS = 1 << 16;
+    private static final int COLUMN_REGISTERS = 48; // Where A: starts, as in nestest.log
+
+    // Addressing modes, indexed by the ids in "modes"
+    private static final String[] MODE_NAMES = {
+        "IMP", "IMM", "ZP0", "ZPX", "ZPY", "IZX", "IZY", "ABS", "ABX", "ABY", "IND", "REL"
+    };
+    private static final int IMP = 0, IMM = 1, ZP0 = 2, ZPX = 3, ZPY = 4, IZX = 5,
+            IZY = 6, ABS = 7, ABX = 8, ABY = 9, IND = 10, REL = 11;
+
+    private static final byte[] DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    // Per opcode
+    private final byte[][] names = new byte[256][];
+    private final int[] modes = new int[256];
+    private final int[] lengths = new int[256];
+    private final boolean[] accumulator = new boolean[256]; // ASL A and the like, shown with "A"
+
+    private final int firstPc, lastPc;
+    private final int firstOpcode, lastOpcode;
+    private final ForkJoinPool pool;
+
+    public TraceDecoder(int firstPc, int lastPc, int firstOpcode, int lastOpcode, int threads) {
+        if (firstPc < 0 || lastPc > 0xFFFF || firstPc > lastPc) throw new IllegalArgumentException("Bad pc range");
+        if (firstOpcode < 0 || lastOpcode > 0xFF || firstOpcode > lastOpcode) throw new IllegalArgumentException("Bad opcode range");
+        this.firstPc = firstPc;
+        this.lastPc = lastPc;
+        this.firstOpcode = firstOpcode;
+        this.lastOpcode = lastOpcode;
+        pool = new ForkJoinPool(threads);
+
+        Instruction[] lookup = new CPU6502().lookup;
+        for (int op = 0; op < 256; op++) {
+            names[op] = lookup[op].name.getBytes(StandardCharsets.US_ASCII);
+            modes[op] = Arrays.asList(MODE_NAMES).indexOf(lookup[op].addrmodeName);
+            if (modes[op] < 0) throw new IllegalStateException("Unknown addressing mode " + lookup[op].addrmodeName);
+            lengths[op] = modes[op] == IMP ? 1 : modes[op] >= ABS && modes[op] <= IND ? 3 : 2;
+        }
+        for (int op : new int[] { 0x0A, 0x2A, 0x4A, 0x6A }) accumulator[op] = true;
+    }
+
+
+    // Writes the text of the records that pass the filters to out, and
+    // returns how many did
+    public long decode(Path trace, OutputStream out) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+            long records = readHeader(channel);
+            ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+            int inFlight = pool.getParallelism() * 2;
+            long written = 0;
+            for (long first = 0; first < records; first += CHUNK_RECORDS) {
+                if (pending.size() == inFlight) written += write(pending.poll(), out);
+                long start = first;
+                int count = (int) Math.min(CHUNK_RECORDS, records - first);
+                pending.add(pool.submit(() -> decode(channel, start, count)));
+            }
+            while (!pending.isEmpty()) written += write(pending.poll(), out);
+            out.flush();
+            return written;
+        }
+    }
+
+    public void shutdown(){
+        pool.shutdown();
+    }
+
+    // Checks the header and returns the number of records
+    private static long readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TraceRecorder.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) { }
+        if (header.hasRemaining() || !"6502INS".equals(new String(header.array(), 0, 7, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not an instruction trace");
+        }
+        if (header.get(7) != TraceRecorder.VERSION) throw new IOException("Unknown trace version " + header.get(7));
+        long records = header.getLong(8);
+        if (TraceRecorder.HEADER_BYTES + records * TraceRecorder.RECORD_BYTES > channel.size()) {
+            throw new IOException("Trace is cut short");
+        }
+        return records;
+    }
+
+    private static long write(Future<Chunk> pending, OutputStream out) throws IOException, InterruptedException {
+        try {
+            Chunk chunk = pending.get();
+            out.write(chunk.text, 0, chunk.length);
+            return chunk.lines;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IllegalStateException("Decoding failed", e.getCause());
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // WORKERS
+    // Text of a chunk, grown as needed
+    private static final class Chunk {
+        byte[] text = new byte[1 << 20];
+        int length = 0;
+        long lines = 0;
+
+        void put(byte b){
+            text[length++] = b;
+        }
+
+        void put(byte[] bytes){
+            System.arraycopy(bytes, 0, text, length, bytes.length);
+            length += bytes.length;
+        }
+
+        void put(String s){
+            for (int i = 0; i < s.length(); i++) text[length++] = (byte) s.charAt(i);
+        }
+
+        void hex(int value, int digits){
+            for (int i = digits - 1; i >= 0; i--, value >>= 4) text[length + i] = DIGITS[value & 0xF];
+            length += digits;
+        }
+
+        // Room for another line
+        void reserve(){
+            if (text.length - length < 128) text = Arrays.copyOf(text, text.length * 2);
+        }
+    }
+
+    private Chunk decode(FileChannel channel, long first, int count) throws IOException {
+        MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+                TraceRecorder.HEADER_BYTES + first * TraceRecorder.RECORD_BYTES, (long) count * TraceRecorder.RECORD_BYTES);
+        records.order(ByteOrder.LITTLE_ENDIAN);
+        Chunk chunk = new Chunk();
+        for (int i = 0; i < count; i++) {
+            long where = records.getLong(i * TraceRecorder.RECORD_BYTES);
+            long state = records.getLong(i * TraceRecorder.RECORD_BYTES + 8);
+            int pc = (int) (where >>> 48);
+            int op = (int) state & 0xFF;
+            if (pc < firstPc || pc > lastPc || op < firstOpcode || op > lastOpcode) continue;
+            chunk.reserve();
+            line(chunk, pc, where & 0xFFFF_FFFF_FFFFL, state);
+            chunk.lines++;
+        }
+        return chunk;
+    }
+
+    private void line(Chunk out, int pc, long cycles, long state){
+        int op = (int) state & 0xFF;
+        int low = (int) (state >>> 8) & 0xFF;
+        int high = (int) (state >>> 16) & 0xFF;
+        int start = out.length;
+
+        out.hex(pc, 4);
+        out.put((byte) ' ');
+        out.put((byte) ' ');
+        int length = lengths[op];
+        out.hex(op, 2);
+        out.put((byte) ' ');
+        if (length > 1) out.hex(low, 2);
+        else out.put("  ");
+        out.put((byte) ' ');
+        if (length > 2) out.hex(high, 2);
+        else out.put("  ");
+        out.put("  ");
+        out.put(names[op]);
+        out.put((byte) ' ');
+
+        int word = (high << 8) | low;
+        switch (modes[op]) {
+            case IMP:
+                if (accumulator[op]) out.put((byte) 'A');
+                break;
+            case IMM:
+                out.put("#$");
+                out.hex(low, 2);
+                break;
+            case ZP0:
+                out.put((byte) '$');
+                out.hex(low, 2);
+                break;
+            case ZPX:
+                out.put((byte) '$');
+                out.hex(low, 2);
+                out.put(",X");
+                break;
+            case ZPY:
+                out.put((byte) '$');
+                out.hex(low, 2);
+                out.put(",Y");
+                break;
+            case IZX:
+                out.put("($");
+                out.hex(low, 2);
+                out.put(",X)");
+                break;
+            case IZY:
+                out.put("($");
+                out.hex(low, 2);
+                out.put("),Y");
+                break;
+            case ABS:
+                out.put((byte) '$');
+                out.hex(word, 4);
+                break;
+            case ABX:
+                out.put((byte) '$');
+                out.hex(word, 4);
+                out.put(",X");
+                break;
+            case ABY:
+                out.put((byte) '$');
+                out.hex(word, 4);
+                out.put(",Y");
+                break;
+            case IND:
+                out.put("($");
+                out.hex(word, 4);
+                out.put((byte) ')');
+                break;
+            case REL:
+                out.put((byte) '$');
+                out.hex((pc + 2 + (byte) low) & 0xFFFF, 4);
+                break;
+        }
+
+        while (out.length - start < COLUMN_REGISTERS) out.put((byte) ' ');
+        out.put("A:");
+        out.hex((int) (state >>> 24) & 0xFF, 2);
+        out.put(" X:");
+        out.hex((int) (state >>> 32) & 0xFF, 2);
+        out.put(" Y:");
+        out.hex((int) (state >>> 40) & 0xFF, 2);
+        out.put(" P:");
+        out.hex((int) (state >>> 48) & 0xFF, 2);
+        out.put(" SP:");
+        out.hex((int) (state >>> 56) & 0xFF, 2);
+        out.put(" CYC:");
+        out.put(Long.toString(cycles));
+        out.put((byte) '\n');
+    }
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int[] pcs = { 0x0000, 0xFFFF };
+        int[] opcodes = { 0x00, 0xFF };
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path trace = null;
+        Path output = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--pc=")) pcs = range(arg.substring(5));
+            else if (arg.startsWith("--opcode=")) opcodes = range(arg.substring(9));
+            else if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring(10));
+            else if (trace == null) trace = Paths.get(arg);
+            else output = Paths.get(arg);
+        }
+        if (trace == null) {
+            System.err.println("Usage: java TraceDecoder [--pc=XXXX-YYYY] [--opcode=XX-YY] [--threads=N] trace [output]");
+            System.exit(2);
+        }
+
+        TraceDecoder decoder = new TraceDecoder(pcs[0], pcs[1], opcodes[0], opcodes[1], threads);
+        long start = System.nanoTime();
+        long lines;
+        try (OutputStream out = new BufferedOutputStream(output == null ? System.out : new FileOutputStream(output.toFile()), 1 << 16)) {
+            lines = decoder.decode(trace, out);
+        } finally {
+            decoder.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.err.printf("%d lines in %.3f s, %.1f M lines/s%n", lines, elapsed / 1e9, lines * 1000.0 / elapsed);
+    }
+
+    // "XXXX-YYYY" or "XXXX", hex
+    private static int[] range(String text){
+        int dash = text.indexOf('-');
+        if (dash < 0) {
+            int value = Integer.parseInt(text, 16);
+            return new int[] { value, value };
+        }
+        return new int[] { Integer.parseInt(text.substring(0, dash), 16), Integer.parseInt(text.substring(dash + 1), 16) };
+    }
+
+}
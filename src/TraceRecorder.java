@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+// Records every instruction the CPU runs, with the state before it, into a
+// binary file for TraceDecoder. Unlike Tracer, which records bus events
+// through a ring and a drain thread, the records go straight into the file
+// mapped in memory, a segment of SEGMENT_BYTES at a time; the file grows by
+// a segment when one fills. Recording an instruction is two stores. A
+// segment is unmapped as soon as it is done with, rather than when the
+// collector gets to it, and stop() cuts the file down once nothing is
+// mapped. Where the JVM does not allow unmapping, the file keeps the unused
+// end of its last segment; TraceDecoder goes by the count in the header.
+//   header  16 bytes, little-endian
+//     "6502INS" and the format version
+//     long  records in the file, written when a segment fills and on stop()
+//   record  16 bytes, little-endian
+//     long  bits  0-47 clockCount, 48-63 pc
+//     long  bits  0-7 opcode, 8-23 the two bytes after it, 24-31 A, 32-39 X,
+//           40-47 Y, 48-55 P, 56-63 SP
+// The bytes after the opcode are read as they are before it runs, whether
+// or not the instruction uses them.
+//
+// While stopped it costs the check CPU6502 makes once per bulk run for
+// Breakpoints. Recording, the CPU runs one instruction at a time, so the JIT
+// falls back to its interpreter. Instructions run by clock() are not
+// recorded.
+//
+// Only the thread running the machine may touch this, see Emulator.submit().
+public class TraceRecorder {
+
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 16;
+    static final int SEGMENT_BYTES = 64 << 20; // A multiple of RECORD_BYTES
+
+    // sun.misc.Unsafe and its invokeCleaner(), null if not available
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    boolean enabled = false;
+
+    private final CPU6502 cpu;
+    private FileChannel channel = null;
+    private MappedByteBuffer segment = null;
+    private long segmentStart = 0; // File offset of segment
+    private int position = 0; // Next record in segment
+    private long records = 0;
+    private IOException failure = null;
+
+    public TraceRecorder(CPU6502 cpu) {
+        this.cpu = cpu;
+    }
+
+
+    // Starts recording into file, replacing it
+    public void start(Path file) throws IOException {
+        stop();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        records = 0;
+        failure = null;
+        map(0);
+        segment.put(0, "6502INS".getBytes(StandardCharsets.US_ASCII)).put(7, (byte) VERSION);
+        position = HEADER_BYTES;
+        enabled = true;
+    }
+
+    // Stops recording, cuts the file down to the records in it and closes it.
+    // Throws what went wrong while recording, if anything did
+    public void stop() throws IOException {
+        enabled = false;
+        if (channel == null) return;
+        try {
+            if (failure == null) {
+                writeCount();
+                // Not every system can cut a file that is still mapped
+                if (unmap()) channel.truncate(HEADER_BYTES + records * RECORD_BYTES);
+            }
+        } finally {
+            unmap();
+            channel.close();
+            channel = null;
+        }
+        if (failure != null) throw failure;
+    }
+
+    public boolean recording(){
+        return enabled;
+    }
+
+    public long records(){
+        return records;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // EMULATION THREAD
+    // From the bulk loops of CPU6502, before the instruction at pc runs
+    void record(){
+        if (position == SEGMENT_BYTES && !next()) return;
+        CPU6502 c = cpu;
+        Bus bus = c.bus;
+        int pc = c.pc;
+        int op = bus.read(pc, true) & 0xFF;
+        int low = bus.read((pc + 1) & 0xFFFF, true) & 0xFF;
+        int high = bus.read((pc + 2) & 0xFFFF, true) & 0xFF;
+        segment.putLong(position, ((long) pc << 48) | (c.clockCount & 0xFFFF_FFFF_FFFFL));
+        segment.putLong(position + 8, ((long) c.stkp << 56) | ((long) (c.status & 0xFF) << 48) | ((long) c.y << 40)
+                | ((long) c.x << 32) | ((long) c.a << 24) | (high << 16) | (low << 8) | op);
+        position += RECORD_BYTES;
+        records++;
+    }
+
+    // Moves on to a new segment. On failure recording stops, and stop() throws
+    private boolean next(){
+        try {
+            writeCount();
+            unmap();
+            map(segmentStart + SEGMENT_BYTES);
+            return true;
+        } catch (IOException e) {
+            failure = e;
+            enabled = false;
+            return false;
+        }
+    }
+
+    private void map(long start) throws IOException {
+        // Mapping past the end extends the file
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_BYTES);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segmentStart = start;
+        position = 0;
+    }
+
+    // Unmaps the segment now. Returns false if it may still be mapped, when
+    // the JVM does not allow it and it is left to the collector
+    private boolean unmap(){
+        MappedByteBuffer mapped = segment;
+        segment = null;
+        if (mapped == null) return true;
+        if (INVOKE_CLEANER == null) return false;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, mapped);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private void writeCount() throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, records);
+        channel.write(count, 8);
+    }
+
+}
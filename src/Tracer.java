@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import utils.TraceCategory;
+
+
+// Records bus and CPU events for offline inspection. Bus and CPU6502 check
+// "categories" before building an event, so with tracing disabled an access
+// costs one field load and a branch.
+//
+// Events are written by the emulation thread into a ring buffer, allocated
+// once when tracing is first enabled, and drained by a background thread into
+// a binary file:
+//   header  8 bytes, "6502TRC" and the format version
+//   event   16 bytes, little-endian
+//     long  clockCount of the CPU at the start of the instruction
+//     long  bits  0-15 address, 16-23 data, 24-31 event type, 32-47 pc
+// When the drain falls behind, new events are dropped and counted instead of
+// stalling the emulation.
+public class Tracer {
+
+    // Category masks, for the checks at the call sites
+    static final int READS = TraceCategory.READS.getValue();
+    static final int WRITES = TraceCategory.WRITES.getValue();
+    static final int STACK = TraceCategory.STACK.getValue();
+    static final int INTERRUPTS = TraceCategory.INTERRUPTS.getValue();
+
+    // Event types
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int PUSH = 2;
+    public static final int PULL = 3;
+    public static final int RESET = 4;
+    public static final int IRQ = 5;
+    public static final int NMI = 6;
+    public static final int BRK = 7;
+    public static final int RTI = 8;
+
+    static final int VERSION = 1;
+    static final int EVENT_BYTES = 16;
+
+    private static final int CAPACITY = 1 << 16; // Events, a power of two
+    private static final int BATCH = 4096; // Events written to the file at once
+    private static final long IDLE_NANOS = 1_000_000;
+
+    // Mask of the enabled categories, 0 while disabled
+    volatile int categories = 0;
+
+    private final CPU6502 cpu;
+    private long[] ring = null; // Allocated when first enabled
+    private final AtomicLong head = new AtomicLong(); // Next event to record, only advanced by the emulation thread
+    private final AtomicLong tail = new AtomicLong(); // Next event to drain, only advanced by the drain thread
+    private long cachedTail = 0; // Emulation thread's last look at tail
+
+    private long dropped = 0;
+    private Thread drain = null;
+    private volatile boolean draining = false;
+    private volatile IOException failure = null;
+
+    public Tracer(CPU6502 cpu) {
+        this.cpu = cpu;
+    }
+
+
+    // Starts writing the given categories of events to file, replacing it
+    public synchronized void enable(Path file, TraceCategory... selected) throws IOException {
+        disable();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.put("6502TRC".getBytes(StandardCharsets.US_ASCII)).put((byte) VERSION).flip();
+        while (header.hasRemaining()) channel.write(header);
+
+        if (ring == null) ring = new long[CAPACITY * 2];
+        // Anything left from an earlier session is not wanted
+        tail.set(head.get());
+        failure = null;
+        draining = true;
+        drain = new Thread(() -> drain(channel), "trace-drain");
+        drain.setDaemon(true);
+        drain.start();
+        setCategories(selected);
+    }
+
+    // Changes what is recorded while enabled
+    public synchronized void setCategories(TraceCategory... selected){
+        if (drain == null) return;
+        int mask = 0;
+        for (TraceCategory category : selected) mask |= category.getValue();
+        categories = mask;
+    }
+
+    // Stops recording, writes out what is still buffered and closes the file
+    public synchronized void disable() throws IOException {
+        categories = 0;
+        if (drain == null) return;
+        draining = false;
+        LockSupport.unpark(drain);
+        try {
+            drain.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain = null;
+        if (failure != null) throw failure;
+    }
+
+    public boolean isEnabled(){
+        return categories != 0;
+    }
+
+    // Events lost because the ring buffer was full, read by the emulation thread
+    public long dropped(){
+        return dropped;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // EMULATION THREAD
+    void record(int type, int addr, int data){
+        long h = head.get();
+        if (h - cachedTail == CAPACITY) {
+            cachedTail = tail.get();
+            if (h - cachedTail == CAPACITY) {
+                dropped++;
+                return;
+            }
+        }
+        int i = (int) (h & (CAPACITY - 1)) * 2;
+        ring[i] = cpu.clockCount;
+        ring[i + 1] = ((long) (cpu.pc & 0xFFFF) << 32) | ((long) type << 24) | ((data & 0xFF) << 16) | (addr & 0xFFFF);
+        // Publishes the event to the drain thread
+        head.lazySet(h + 1);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // DRAIN THREAD
+    private void drain(FileChannel channel){
+        ByteBuffer out = ByteBuffer.allocateDirect(BATCH * EVENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel file = channel) {
+            while (true) {
+                boolean last = !draining;
+                long t = tail.get();
+                long h = head.get();
+                if (t == h) {
+                    if (last) break;
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                long end = Math.min(h, t + BATCH);
+                out.clear();
+                for (long e = t; e < end; e++) {
+                    int i = (int) (e & (CAPACITY - 1)) * 2;
+                    out.putLong(ring[i]).putLong(ring[i + 1]);
+                }
+                tail.lazySet(end);
+                out.flip();
+                while (out.hasRemaining()) file.write(out);
+            }
+        } catch (IOException e) {
+            failure = e;
+            categories = 0;
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+
+// Hands the latest of a stream of values from one producer thread to one
+// consumer thread, without locks and without copying. There are three
+// slots: the producer fills its back slot and swaps it with the middle one;
+// the consumer swaps its front slot with the middle one when that holds
+// something newer. Neither side ever waits, and a slot is never written
+// while the consumer holds it. Values published faster than the consumer
+// takes them are skipped, only the newest is seen.
+public final class TripleBuffer<T> {
+
+    private static final int INDEX = 0x3;
+    private static final int FRESH = 0x4; // The middle slot was published and not taken yet
+
+    private final Object[] slots = new Object[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0; // Producer only
+    private int front = 2; // Consumer only
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < 3; i++) slots[i] = factory.get();
+    }
+
+
+    // Producer side. The slot to fill before publish()
+    @SuppressWarnings("unchecked")
+    public T back(){
+        return (T) slots[back];
+    }
+
+    public void publish(){
+        back = middle.getAndSet(back | FRESH) & INDEX;
+    }
+
+    // Consumer side. The newest published value, or the one taken last time
+    // when nothing was published since. It stays as it is until the next call
+    @SuppressWarnings("unchecked")
+    public T front(){
+        if ((middle.get() & FRESH) != 0) front = middle.getAndSet(front) & INDEX;
+        return (T) slots[front];
+    }
+
+}
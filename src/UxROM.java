@@ -0,0 +1,22 @@
+// Mapper 2: any write to $8000-$FFFF selects the 16 KB PRG bank at $8000.
+// The last bank is fixed at $C000, and CHR is 8 KB of RAM
+public class UxROM extends Mapper {
+
+    UxROM(Cartridge cartridge) {
+        super(cartridge);
+    }
+
+
+    @Override
+    protected void reset(){
+        mapPrg(0x8000, 0x4000, 0);
+        mapPrg(0xC000, 0x4000, -1);
+        mapChr(0x0000, 0x2000, 0);
+    }
+
+    @Override
+    public void write(int addr, int data){
+        mapPrg(0x8000, 0x4000, data & 0xFF);
+    }
+
+}
@@ -0,0 +1,107 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import utils.CpuEngine;
+
+
+// Writes the samples of a SampleRing to a 16-bit mono PCM WAV file as they
+// come, for audio without a sound device. The sizes in the header are filled
+// in by close().
+//
+// As a program it plays a cartridge without the UI, as fast as it runs, and
+// saves the sound:
+// Usage: java WavWriter [options] cartridge output.wav
+//   --engine=E    TABLE, SWITCH, PREDECODE or JIT, defaults to SWITCH
+//   --frames=N    frames to run, defaults to 600 (10 seconds)
+//   --rate=N      sample rate, defaults to 44100
+public class WavWriter implements Closeable {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final FileChannel channel;
+    private final short[] samples = new short[4096];
+    private final ByteBuffer bytes = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+    private long dataBytes = 0;
+
+    public WavWriter(Path file, int sampleRate) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' }).putInt(0);
+        header.put(new byte[] { 'W', 'A', 'V', 'E' });
+        header.put(new byte[] { 'f', 'm', 't', ' ' }).putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) 1); // Mono
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * 2); // Bytes per second
+        header.putShort((short) 2); // Bytes per frame
+        header.putShort((short) 16); // Bits per sample
+        header.put(new byte[] { 'd', 'a', 't', 'a' }).putInt(0);
+        header.flip();
+        while (header.hasRemaining()) channel.write(header);
+    }
+
+
+    // Writes everything the ring holds
+    public void drain(SampleRing ring) throws IOException {
+        int count;
+        while ((count = ring.read(samples, 0, samples.length)) > 0) {
+            bytes.clear();
+            for (int i = 0; i < count; i++) bytes.putShort(samples[i]);
+            bytes.flip();
+            while (bytes.hasRemaining()) channel.write(bytes);
+            dataBytes += count * 2;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        size.putInt(0, (int) (HEADER_SIZE - 8 + dataBytes));
+        channel.write(size, 4);
+        size.clear();
+        size.putInt(0, (int) dataBytes);
+        channel.write(size, 40);
+        channel.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        CpuEngine engine = CpuEngine.SWITCH;
+        int frames = 600;
+        int rate = APU2A03.DEFAULT_SAMPLE_RATE;
+        String cartridge = null;
+        String output = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) engine = CpuEngine.valueOf(arg.substring(9));
+            else if (arg.startsWith("--frames=")) frames = Integer.parseInt(arg.substring(9));
+            else if (arg.startsWith("--rate=")) rate = Integer.parseInt(arg.substring(7));
+            else if (cartridge == null) cartridge = arg;
+            else output = arg;
+        }
+        if (output == null) {
+            System.err.println("Usage: java WavWriter [--engine=E] [--frames=N] [--rate=N] cartridge output.wav");
+            System.exit(2);
+        }
+
+        Nes nes = new Nes(engine, rate);
+        nes.insert(Cartridge.load(Paths.get(cartridge)));
+        long start = System.nanoTime();
+        try (WavWriter wav = new WavWriter(Paths.get(output), rate)) {
+            for (int frame = 0; frame < frames; frame++) {
+                nes.runFrame();
+                wav.drain(nes.apu.samples);
+            }
+            nes.bus.scheduler.catchUpAll();
+            wav.drain(nes.apu.samples);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d frames, %.2f s of sound in %.2f s%n", frames, wav.dataBytes / 2.0 / rate, seconds);
+        }
+    }
+
+}
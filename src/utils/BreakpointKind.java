@@ -0,0 +1,9 @@
+package utils;
+
+
+// What a breakpoint stops on, see Breakpoints
+public enum BreakpointKind {
+    EXECUTE, // Before the instruction at the address runs
+    READ,    // After an instruction that reads the address
+    WRITE    // After an instruction that writes the address
+}
@@ -0,0 +1,11 @@
+package utils;
+
+
+// Memory-mapped hardware on the Bus. Gets the full 16 bit address of every
+// access to the pages it is mapped on
+public interface BusDevice {
+    // bReadOnly is set by debugging tools, which must not trigger side effects
+    int read(int addr, boolean bReadOnly);
+
+    void write(int addr, int data);
+}
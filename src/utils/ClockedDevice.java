@@ -0,0 +1,9 @@
+package utils;
+
+
+// Hardware that keeps its own time and is brought up to date by the Scheduler
+// when needed, instead of being ticked every cycle
+public interface ClockedDevice {
+    // Runs the device up to master cycle "time", never earlier than where it is
+    void runUntil(long time);
+}
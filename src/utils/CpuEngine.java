@@ -0,0 +1,10 @@
+package utils;
+
+
+// Selects how CPU6502 executes instructions
+public enum CpuEngine {
+    TABLE,     // Instruction lookup table with bound addressing/operation functions
+    SWITCH,    // Single opcode switch with the addressing mode fused into each operation
+    PREDECODE, // SWITCH, fed from a cache of decoded instructions instead of the bus
+    JIT        // SWITCH, plus hot basic blocks compiled to JVM bytecode in runCycles()
+}
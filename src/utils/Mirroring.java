@@ -0,0 +1,12 @@
+package utils;
+
+
+// How the four nametables of the PPU share its 2 KB of video RAM, set by the
+// cartridge
+public enum Mirroring {
+    HORIZONTAL,   // $2000=$2400 and $2800=$2C00, for vertical scrolling
+    VERTICAL,     // $2000=$2800 and $2400=$2C00, for horizontal scrolling
+    SINGLE_LOWER, // All four show the first 1 KB
+    SINGLE_UPPER, // All four show the second 1 KB
+    FOUR_SCREEN   // Four separate nametables, with RAM on the cartridge
+}
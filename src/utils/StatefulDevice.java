@@ -0,0 +1,17 @@
+package utils;
+
+import java.nio.ByteBuffer;
+
+
+// Hardware with state of its own outside the memory the Bus maps, saved and
+// restored with the save states of the Bus. Only called between instructions
+public interface StatefulDevice {
+    // Bytes saveState() writes, the same every time
+    int stateSize();
+
+    // Writes exactly stateSize() bytes at the position of out and moves past them
+    void saveState(ByteBuffer out);
+
+    // Reads back what saveState() wrote and moves past it
+    void loadState(ByteBuffer in);
+}
@@ -0,0 +1,20 @@
+package utils;
+
+
+// Kinds of events the Tracer can record, selectable at runtime
+public enum TraceCategory {
+    READS(1 << 0),      // CPU reads from the bus
+    WRITES(1 << 1),     // CPU writes to the bus
+    STACK(1 << 2),      // Pushes and pulls
+    INTERRUPTS(1 << 3); // RESET, IRQ, NMI, BRK and RTI
+
+    final int value;
+
+    TraceCategory(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,15 @@
+package utils;
+
+
+// Notified by the Bus when a watched page of memory is written
+@FunctionalInterface
+public interface WriteListener {
+    void written(int addr);
+
+    // The page now shows different memory, e.g. after a bank switch
+    default void remapped(int page){
+        for (int addr = page << 8; addr < (page + 1) << 8; addr++) {
+            written(addr);
+        }
+    }
+}